@@ -0,0 +1,81 @@
+package com.furdei.furdroid.security.benchmark;
+
+import android.util.Base64;
+
+import com.furdei.furdroid.security.encryption.Base64Codec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding and decoding of encrypted column values. Compares
+ * {@link android.util.Base64} with <code>DEFAULT</code> flags previously used for text columns
+ * and {@link com.furdei.furdroid.security.encryption.Base64Codec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+
+    @Param({"16", "64", "256", "4096"})
+    public int encryptedSize;
+
+    private byte[] encryptedBytes;
+    private String encoded;
+    private String encodedNoWrap;
+    private byte[] decodeBuffer;
+
+    @Setup
+    public void setup() {
+        encryptedBytes = new byte[encryptedSize];
+        new Random(encryptedSize).nextBytes(encryptedBytes);
+        encoded = Base64.encodeToString(encryptedBytes, Base64.DEFAULT);
+        encodedNoWrap = Base64Codec.encode(encryptedBytes);
+        decodeBuffer = new byte[Base64Codec.maxDecodedLength(encoded)];
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encodeToString(encryptedBytes, Base64.DEFAULT);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64.decode(encoded, Base64.DEFAULT);
+    }
+
+    @Benchmark
+    public String codecEncode() {
+        return Base64Codec.encode(encryptedBytes);
+    }
+
+    @Benchmark
+    public byte[] codecDecode() {
+        return Base64Codec.decode(encodedNoWrap);
+    }
+
+    @Benchmark
+    public int codecDecodeIntoBuffer() {
+        return Base64Codec.decode(encodedNoWrap, decodeBuffer, 0);
+    }
+
+    @Benchmark
+    public int codecDecodeWrappedIntoBuffer() {
+        return Base64Codec.decode(encoded, decodeBuffer, 0);
+    }
+}
@@ -0,0 +1,23 @@
+package com.furdei.furdroid.security.benchmark;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+/**
+ * Sets up encryption key shared by benchmarks
+ */
+final class BenchmarkKeys {
+
+    static final String PASSWORD = "benchmarkPassword";
+
+    private static boolean initialized;
+
+    private BenchmarkKeys() {
+    }
+
+    static synchronized void init() throws Exception {
+        if (!initialized) {
+            EncryptionUtils.setPassword(PASSWORD);
+            initialized = true;
+        }
+    }
+}
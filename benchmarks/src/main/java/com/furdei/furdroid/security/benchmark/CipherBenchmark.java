@@ -0,0 +1,85 @@
+package com.furdei.furdroid.security.benchmark;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encryption and decryption of a single value of various sizes through
+ * {@link EncryptionUtils#encrypt(javax.crypto.Cipher, byte[])},
+ * {@link EncryptionUtils#decrypt(javax.crypto.Cipher, byte[])} and their overloads writing into
+ * buffers supplied by caller
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+    private byte[] rawBytes;
+    private byte[] encryptedBytes;
+    private byte[] outputBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys.init();
+        encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+        decryptCipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+        rawBytes = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(rawBytes);
+        encryptedBytes = EncryptionUtils.encrypt(encryptCipher, rawBytes);
+        outputBuffer = new byte[encryptCipher.getOutputSize(payloadSize)];
+    }
+
+    @TearDown
+    public void tearDown() {
+        EncryptionUtils.releaseCipher(encryptCipher);
+        EncryptionUtils.releaseCipher(decryptCipher);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws IOException {
+        return EncryptionUtils.encrypt(encryptCipher, rawBytes);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws IOException {
+        return EncryptionUtils.decrypt(decryptCipher, encryptedBytes);
+    }
+
+    @Benchmark
+    public int encryptIntoBuffer() throws IOException {
+        return EncryptionUtils.encrypt(encryptCipher, rawBytes, 0, rawBytes.length,
+                outputBuffer, 0);
+    }
+
+    @Benchmark
+    public int decryptIntoBuffer() throws IOException {
+        return EncryptionUtils.decrypt(decryptCipher, encryptedBytes, 0, encryptedBytes.length,
+                outputBuffer, 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.furdei.furdroid.security.benchmark;
+
+import android.content.ContentValues;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decryption of a single Base64 encoded column value through
+ * {@link EncryptionUtils#decrypt(javax.crypto.Cipher, String)}. This is the work
+ * {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor} does for every encrypted
+ * cell it returns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnValueBenchmark {
+
+    @Param({"8", "64", "1024"})
+    public int valueLength;
+
+    private Cipher decryptCipher;
+    private String encryptedValue;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys.init();
+        StringBuilder value = new StringBuilder();
+        while (value.length() < valueLength) {
+            value.append((char) ('0' + value.length() % 10));
+        }
+
+        ContentValues row = new ContentValues();
+        row.put("value", value.toString());
+        Cipher encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+        EncryptionUtils.encryptContentValues(encryptCipher, row, new String[] {"value"});
+        EncryptionUtils.releaseCipher(encryptCipher);
+        encryptedValue = row.getAsString("value");
+        decryptCipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        EncryptionUtils.releaseCipher(decryptCipher);
+    }
+
+    @Benchmark
+    public String decrypt() throws IOException {
+        return EncryptionUtils.decrypt(decryptCipher, encryptedValue);
+    }
+}
@@ -0,0 +1,86 @@
+package com.furdei.furdroid.security.benchmark;
+
+import android.content.ContentValues;
+
+import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettingsProvider;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encryption of a row through
+ * {@link EncryptionUtils#encryptContentValues(javax.crypto.Cipher, android.content.ContentValues, String)}
+ * with a different number of encrypted columns. Each row also has as many unencrypted columns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentValuesBenchmark {
+
+    private static final String TABLE = "payments";
+
+    @Param({"1", "5", "10", "50"})
+    public int encryptedColumns;
+
+    private Cipher encryptCipher;
+    private ContentValues row;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys.init();
+
+        final EncryptionSettings settings = new EncryptionSettings();
+        EncryptedTableSettings table = new EncryptedTableSettings(TABLE);
+        row = new ContentValues();
+
+        for (int i = 0; i < encryptedColumns; i++) {
+            table.markColumnEncrypted("encrypted_" + i);
+            row.put("encrypted_" + i, "Account 4081781009910000" + i);
+            row.put("plain_" + i, (long) i);
+        }
+
+        settings.getEncryptedTables().put(TABLE, table);
+        EncryptionUtils.setEncryptionSettingsProvider(new EncryptionSettingsProvider() {
+            @Override
+            public EncryptionSettings getEncryptionSettings() {
+                return settings;
+            }
+        });
+
+        encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        EncryptionUtils.releaseCipher(encryptCipher);
+    }
+
+    @Benchmark
+    public ContentValues encryptContentValues() throws IOException {
+        // values are encrypted in place, so every invocation works on a fresh copy
+        ContentValues values = new ContentValues(row);
+        EncryptionUtils.encryptContentValues(encryptCipher, values, TABLE);
+        return values;
+    }
+}
@@ -0,0 +1,105 @@
+package com.furdei.furdroid.security.benchmark;
+
+import com.furdei.furdroid.security.encryption.EncryptedFileStorage;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * Writing and reading encrypted files of 1 KB to 100 MB through
+ * {@link EncryptedFileStorage}. Byte array APIs keep the whole file in memory, stream APIs work
+ * through a fixed size buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileStorageBenchmark {
+
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int fileSize;
+
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+    private byte[] rawBytes;
+    private byte[] buffer;
+    private File file;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkKeys.init();
+        encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+        decryptCipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+        rawBytes = new byte[fileSize];
+        new Random(fileSize).nextBytes(rawBytes);
+        buffer = new byte[8192];
+        file = File.createTempFile("furdroid-benchmark", ".enc");
+        EncryptedFileStorage.write(encryptCipher, file, rawBytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        EncryptionUtils.releaseCipher(encryptCipher);
+        EncryptionUtils.releaseCipher(decryptCipher);
+        file.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        EncryptedFileStorage.write(encryptCipher, file, rawBytes);
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        return EncryptedFileStorage.read(decryptCipher, file);
+    }
+
+    @Benchmark
+    public void writeStream() throws IOException {
+        OutputStream out = EncryptedFileStorage.openEncryptingOutputStream(encryptCipher, file);
+        try {
+            for (int offset = 0; offset < rawBytes.length; offset += buffer.length) {
+                out.write(rawBytes, offset, Math.min(buffer.length, rawBytes.length - offset));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public long readStream() throws IOException {
+        InputStream in = EncryptedFileStorage.openDecryptingInputStream(decryptCipher, file);
+        long total = 0;
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) >= 0) {
+                total += bytesRead;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
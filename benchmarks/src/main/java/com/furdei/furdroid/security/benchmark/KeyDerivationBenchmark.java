@@ -0,0 +1,46 @@
+package com.furdei.furdroid.security.benchmark;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+import com.furdei.furdroid.security.encryption.KeyDerivationParams;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PBKDF2 key derivation through
+ * {@link EncryptionUtils#setPassword(String, KeyDerivationParams)}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int iterationCount;
+
+    private KeyDerivationParams params;
+
+    @Setup
+    public void setup() {
+        params = new KeyDerivationParams(iterationCount);
+    }
+
+    @Benchmark
+    public void setPassword() throws Exception {
+        EncryptionUtils.setPassword(BenchmarkKeys.PASSWORD, params);
+    }
+}
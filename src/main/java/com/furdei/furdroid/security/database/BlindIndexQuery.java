@@ -0,0 +1,140 @@
+package com.furdei.furdroid.security.database;
+
+import com.furdei.furdroid.security.encryption.EncryptedTablePlan;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds <code>WHERE</code> clauses that look up rows by values of encrypted columns. Encrypted
+ * values can't be compared in SQL, so equality predicates on encrypted columns are turned into
+ * predicates on their blind index columns. Create an SQLite index on a blind index column to make
+ * such lookups an index search instead of decrypting every row of the table:
+ * <pre>
+ * {@code
+ *
+ *  BlindIndexQuery where = BlindIndexQuery.whereEquals("customers", "phone", phone)
+ *          .andEquals("status", "active");
+ *  Cursor cursor = db.query("customers", null, where.getSelection(),
+ *          where.getSelectionArgs(), null, null, null);
+ * }
+ * </pre>
+ * Columns used in the query must have a <code>blindIndex</code> attribute in encryption
+ * settings unless they are not encrypted at all. Values written to a column with binary storage
+ * as byte arrays are indexed as they are, look them up with
+ * {@link #whereEquals(String, String, byte[])} and {@link #andEquals(String, byte[])}.
+ */
+public class BlindIndexQuery {
+
+    private final EncryptedTablePlan table;
+    private final StringBuilder selection = new StringBuilder();
+    private final List<String> selectionArgs = new ArrayList<String>();
+
+    private BlindIndexQuery(String tableName) {
+        this.table = EncryptionUtils.getTablePlan(tableName);
+    }
+
+    /**
+     * Start a query with an equality predicate
+     *
+     * @param tableName a name of the table to query
+     * @param column a column to compare. Encrypted columns are compared through their blind
+     *               index columns.
+     * @param value a value to look for. <code>null</code> values are looked up with
+     *              <code>IS NULL</code>.
+     * @throws IOException
+     */
+    public static BlindIndexQuery whereEquals(String tableName, String column, String value)
+            throws IOException {
+        return new BlindIndexQuery(tableName).andEquals(column, value);
+    }
+
+    /**
+     * Start a query with an equality predicate on an encrypted column with a binary value
+     *
+     * @param tableName a name of the table to query
+     * @param column an encrypted column to compare through its blind index column
+     * @param value a value to look for as it was written to the column. <code>null</code> values
+     *              are looked up with <code>IS NULL</code>.
+     * @throws IOException
+     */
+    public static BlindIndexQuery whereEquals(String tableName, String column, byte[] value)
+            throws IOException {
+        return new BlindIndexQuery(tableName).andEquals(column, value);
+    }
+
+    /**
+     * Add one more equality predicate joined with <code>AND</code>
+     *
+     * @param column a column to compare
+     * @param value a value to look for
+     * @throws IOException
+     */
+    public BlindIndexQuery andEquals(String column, String value) throws IOException {
+        if (table != null && table.isColumnEncrypted(column)) {
+            return appendEquals(getIndexColumn(column), EncryptionUtils.blindIndex(value));
+        }
+
+        return appendEquals(column, value);
+    }
+
+    /**
+     * Add one more equality predicate on an encrypted column with a binary value joined with
+     * <code>AND</code>. Values are compared exactly as they were written to the column.
+     *
+     * @param column an encrypted column to compare
+     * @param value a value to look for
+     * @throws IOException
+     * @throws IllegalArgumentException if the column is not encrypted
+     */
+    public BlindIndexQuery andEquals(String column, byte[] value) throws IOException {
+        if (table == null || !table.isColumnEncrypted(column)) {
+            throw new IllegalArgumentException("Column " + column + " is not encrypted, " +
+                    "binary values are compared only through blind indexes");
+        }
+
+        return appendEquals(getIndexColumn(column), EncryptionUtils.blindIndex(value));
+    }
+
+    private String getIndexColumn(String column) {
+        String indexColumn = table.getBlindIndexColumn(column);
+
+        if (indexColumn == null) {
+            throw new IllegalArgumentException("Column " + column + " of table " +
+                    table.getTableName() + " is encrypted and has no blind index");
+        }
+
+        return indexColumn;
+    }
+
+    private BlindIndexQuery appendEquals(String column, String indexValue) {
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+
+        if (indexValue == null) {
+            selection.append(column).append(" IS NULL");
+        } else {
+            selection.append(column).append(" = ?");
+            selectionArgs.add(indexValue);
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns a <code>WHERE</code> clause without the <code>WHERE</code> keyword
+     */
+    public String getSelection() {
+        return selection.toString();
+    }
+
+    /**
+     * Returns arguments of the <code>WHERE</code> clause returned by {@link #getSelection()}
+     */
+    public String[] getSelectionArgs() {
+        return selectionArgs.toArray(new String[selectionArgs.size()]);
+    }
+}
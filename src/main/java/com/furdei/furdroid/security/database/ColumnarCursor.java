@@ -0,0 +1,414 @@
+package com.furdei.furdroid.security.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Read-only cursor over a result materialized by
+ * {@link com.furdei.furdroid.security.database.ColumnarQuery}. Values are stored column by
+ * column: integer columns in <code>long[]</code>, floating point columns in
+ * <code>double[]</code> and text columns in <code>String[]</code>, each with a mask of
+ * <code>NULL</code> values. Encrypted values are decrypted and parsed once when the result is
+ * built, so getters and aggregations like {@link #sumLong(int)} and {@link #sumDouble(int)} don't
+ * decrypt or parse anything.
+ * </p>
+ * <p>
+ * Decrypted text values are kept as {@link java.lang.String} objects and can't be erased from
+ * memory. Don't keep the cursor longer than the result is needed.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.database.ColumnarQuery ColumnarQuery
+ */
+public final class ColumnarCursor extends AbstractCursor {
+
+    static final int TYPE_LONG = 0;
+    static final int TYPE_DOUBLE = 1;
+    static final int TYPE_TEXT = 2;
+
+    private final String[] columnNames;
+    private final int[] types;
+    private final int count;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private final boolean[][] nulls;
+
+    ColumnarCursor(String[] columnNames, int[] types, int count) {
+        this.columnNames = columnNames;
+        this.types = types;
+        this.count = count;
+        this.longs = new long[columnNames.length][];
+        this.doubles = new double[columnNames.length][];
+        this.strings = new String[columnNames.length][];
+        this.nulls = new boolean[columnNames.length][count];
+
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case TYPE_LONG:
+                    longs[i] = new long[count];
+                    break;
+                case TYPE_DOUBLE:
+                    doubles[i] = new double[count];
+                    break;
+                default:
+                    strings[i] = new String[count];
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Store an unencrypted value of the current row of a source cursor
+     */
+    void read(int row, int column, Cursor source, int sourceColumn) {
+        if (source.isNull(sourceColumn)) {
+            nulls[column][row] = true;
+            return;
+        }
+
+        switch (types[column]) {
+            case TYPE_LONG:
+                longs[column][row] = source.getLong(sourceColumn);
+                break;
+            case TYPE_DOUBLE:
+                doubles[column][row] = source.getDouble(sourceColumn);
+                break;
+            default:
+                strings[column][row] = source.getString(sourceColumn);
+                break;
+        }
+    }
+
+    /**
+     * Parse and store a decrypted value. The value is erased afterwards. Rows may be stored
+     * concurrently as long as each row is stored by a single thread.
+     *
+     * @param value decrypted value or <code>null</code> for <code>NULL</code>
+     * @throws IOException
+     */
+    void store(int row, int column, byte[] value) throws IOException {
+        if (value == null) {
+            nulls[column][row] = true;
+            return;
+        }
+
+        try {
+            switch (types[column]) {
+                case TYPE_LONG:
+                    longs[column][row] = parseLong(value);
+                    break;
+                case TYPE_DOUBLE:
+                    doubles[column][row] =
+                            Double.parseDouble(EncryptionUtils.bytesToString(value));
+                    break;
+                default:
+                    strings[column][row] = EncryptionUtils.bytesToString(value);
+                    break;
+            }
+        } finally {
+            Arrays.fill(value, (byte) 0);
+        }
+    }
+
+    /**
+     * Parse decimal digits without creating a string. Anything else is left to
+     * {@link Long#parseLong(String)}.
+     */
+    private static long parseLong(byte[] value) throws IOException {
+        int i = 0;
+        boolean negative = false;
+
+        if (value.length > 0 && (value[0] == '-' || value[0] == '+')) {
+            negative = value[0] == '-';
+            i = 1;
+        }
+
+        // 18 digits never overflow
+        if (i == value.length || value.length - i > 18) {
+            return Long.parseLong(EncryptionUtils.bytesToString(value));
+        }
+
+        long result = 0;
+        for (; i < value.length; i++) {
+            int digit = value[i] - '0';
+
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(EncryptionUtils.bytesToString(value));
+            }
+
+            result = result * 10 + digit;
+        }
+
+        return negative ? -result : result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getString(int column) {
+        int row = checkRow(column);
+
+        if (nulls[column][row]) {
+            return null;
+        }
+
+        switch (types[column]) {
+            case TYPE_LONG:
+                return Long.toString(longs[column][row]);
+            case TYPE_DOUBLE:
+                return Double.toString(doubles[column][row]);
+            default:
+                return strings[column][row];
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(int column) {
+        int row = checkRow(column);
+
+        if (nulls[column][row]) {
+            return 0;
+        }
+
+        switch (types[column]) {
+            case TYPE_LONG:
+                return longs[column][row];
+            case TYPE_DOUBLE:
+                return (long) doubles[column][row];
+            default:
+                return Long.parseLong(strings[column][row]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getDouble(int column) {
+        int row = checkRow(column);
+
+        if (nulls[column][row]) {
+            return 0;
+        }
+
+        switch (types[column]) {
+            case TYPE_LONG:
+                return longs[column][row];
+            case TYPE_DOUBLE:
+                return doubles[column][row];
+            default:
+                return Double.parseDouble(strings[column][row]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getType(int column) {
+        int row = checkRow(column);
+
+        if (nulls[column][row]) {
+            return FIELD_TYPE_NULL;
+        }
+
+        switch (types[column]) {
+            case TYPE_LONG:
+                return FIELD_TYPE_INTEGER;
+            case TYPE_DOUBLE:
+                return FIELD_TYPE_FLOAT;
+            default:
+                return FIELD_TYPE_STRING;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNull(int column) {
+        return nulls[column][checkRow(column)];
+    }
+
+    /**
+     * Returns the sum of non-<code>NULL</code> values of an integer column
+     *
+     * @throws IllegalArgumentException if the column is not an integer column
+     */
+    public long sumLong(int column) {
+        long[] values = longValues(column);
+        boolean[] nullValues = nulls[column];
+        long sum = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (!nullValues[i]) {
+                sum += values[i];
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Returns the sum of non-<code>NULL</code> values of an integer or a floating point column
+     *
+     * @throws IllegalArgumentException if the column is a text column
+     */
+    public double sumDouble(int column) {
+        if (types[column] == TYPE_LONG) {
+            return sumLong(column);
+        }
+
+        double[] values = doubleValues(column);
+        boolean[] nullValues = nulls[column];
+        double sum = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (!nullValues[i]) {
+                sum += values[i];
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Returns the average of non-<code>NULL</code> values of an integer or a floating point
+     * column or {@link Double#NaN} if there are no such values
+     *
+     * @throws IllegalArgumentException if the column is a text column
+     */
+    public double average(int column) {
+        int nonNullCount = getNonNullCount(column);
+        return nonNullCount > 0 ? sumDouble(column) / nonNullCount : Double.NaN;
+    }
+
+    /**
+     * Returns the number of non-<code>NULL</code> values of a column
+     */
+    public int getNonNullCount(int column) {
+        checkColumn(column);
+        boolean[] nullValues = nulls[column];
+        int nonNullCount = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (!nullValues[i]) {
+                nonNullCount++;
+            }
+        }
+
+        return nonNullCount;
+    }
+
+    /**
+     * Returns a copy of the values of an integer column. <code>NULL</code> values are zeros, use
+     * {@link #getNullMask(int)} to tell them apart.
+     *
+     * @throws IllegalArgumentException if the column is not an integer column
+     */
+    public long[] getLongValues(int column) {
+        return longValues(column).clone();
+    }
+
+    /**
+     * Returns a copy of the values of a floating point column. <code>NULL</code> values are zeros,
+     * use {@link #getNullMask(int)} to tell them apart.
+     *
+     * @throws IllegalArgumentException if the column is not a floating point column
+     */
+    public double[] getDoubleValues(int column) {
+        return doubleValues(column).clone();
+    }
+
+    /**
+     * Returns a copy of the mask of <code>NULL</code> values of a column
+     */
+    public boolean[] getNullMask(int column) {
+        checkColumn(column);
+        return nulls[column].clone();
+    }
+
+    private long[] longValues(int column) {
+        checkColumn(column);
+
+        if (types[column] != TYPE_LONG) {
+            throw new IllegalArgumentException("Not an integer column: " + columnNames[column]);
+        }
+
+        return longs[column];
+    }
+
+    private double[] doubleValues(int column) {
+        checkColumn(column);
+
+        if (types[column] != TYPE_DOUBLE) {
+            throw new IllegalArgumentException("Not a floating point column: "
+                    + columnNames[column]);
+        }
+
+        return doubles[column];
+    }
+
+    private int checkRow(int column) {
+        checkPosition();
+        checkColumn(column);
+        return getPosition();
+    }
+
+    private void checkColumn(int column) {
+        if (column < 0 || column >= columnNames.length) {
+            throw new IllegalArgumentException("column out of range. column: " + column
+                    + " getColumnCount(): " + columnNames.length);
+        }
+    }
+}
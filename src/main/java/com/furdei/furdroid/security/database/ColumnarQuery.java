@@ -0,0 +1,296 @@
+package com.furdei.furdroid.security.database;
+
+import android.database.Cursor;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>
+ * Reads query results into a {@link com.furdei.furdroid.security.database.ColumnarCursor}.
+ * Every value is decrypted and parsed exactly once, so reports and charts that read the same
+ * numeric columns many times don't pay for decryption and parsing on every access:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  ColumnarCursor result = ColumnarQuery.select()
+ *          .textColumn("description")
+ *          .doubleColumn("amount")
+ *          .longColumn("date")
+ *          .execute(db.query("payments", null, null, null, null, null, null), executor);
+ *  double total = result.sumDouble(1);
+ * }
+ * </pre>
+ * <p>
+ * When the source is a {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor},
+ * encrypted values are copied from the cursor as they are stored in the database and decrypted
+ * afterwards. Results of at least {@value #PARALLEL_THRESHOLD} rows are decrypted in parallel
+ * if an executor is given.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.database.DecryptedQuery DecryptedQuery
+ */
+public class ColumnarQuery {
+
+    /**
+     * The minimum number of rows decrypted in parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 1024;
+
+    private final List<String> columns = new ArrayList<String>();
+    private final List<Integer> types = new ArrayList<Integer>();
+
+    private ColumnarQuery() {
+    }
+
+    /**
+     * Start a query. Columns of the result are added in the order of the calls to
+     * {@link #longColumn(String)}, {@link #doubleColumn(String)} and {@link #textColumn(String)}.
+     */
+    public static ColumnarQuery select() {
+        return new ColumnarQuery();
+    }
+
+    /**
+     * Add an integer column. Values are stored in a <code>long[]</code> array.
+     *
+     * @param column a name of the column in the source cursor
+     */
+    public ColumnarQuery longColumn(String column) {
+        return addColumn(column, ColumnarCursor.TYPE_LONG);
+    }
+
+    /**
+     * Add a floating point column. Values are stored in a <code>double[]</code> array.
+     *
+     * @param column a name of the column in the source cursor
+     */
+    public ColumnarQuery doubleColumn(String column) {
+        return addColumn(column, ColumnarCursor.TYPE_DOUBLE);
+    }
+
+    /**
+     * Add a text column. Values are stored in a <code>String[]</code> array.
+     *
+     * @param column a name of the column in the source cursor
+     */
+    public ColumnarQuery textColumn(String column) {
+        return addColumn(column, ColumnarCursor.TYPE_TEXT);
+    }
+
+    private ColumnarQuery addColumn(String column, int type) {
+        if (column == null) {
+            throw new IllegalArgumentException("column is null");
+        }
+
+        columns.add(column);
+        types.add(type);
+        return this;
+    }
+
+    /**
+     * Read all rows of a cursor and decrypt them on the calling thread. The source cursor is
+     * closed when this method returns.
+     *
+     * @param source a cursor to read rows from, usually a
+     *               {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor}
+     * @return a cursor with the columns of the query
+     * @throws IOException
+     */
+    public ColumnarCursor execute(Cursor source) throws IOException {
+        return execute(source, null);
+    }
+
+    /**
+     * Read all rows of a cursor and decrypt them in parallel. The cursor itself is read on
+     * the calling thread. Rows are split between workers evenly, each worker uses its own
+     * {@link javax.crypto.Cipher} instance taken by
+     * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#borrowCipher(int)}.
+     * The source cursor is closed when this method returns.
+     *
+     * @param source a cursor to read rows from, usually a
+     *               {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor}
+     * @param executor an executor to run workers on or <code>null</code> to decrypt rows on
+     *                 the calling thread. The number of workers is equal to the number of
+     *                 available processors.
+     * @return a cursor with the columns of the query
+     * @throws IOException if a value can't be decrypted or parsed, or the source returns fewer
+     *                     rows than its {@link android.database.Cursor#getCount()}
+     */
+    public ColumnarCursor execute(Cursor source, Executor executor) throws IOException {
+        if (columns.isEmpty()) {
+            source.close();
+            throw new IllegalStateException("No columns selected");
+        }
+
+        try {
+            int columnCount = columns.size();
+            int rowCount = source.getCount();
+            int[] sourceColumns = new int[columnCount];
+            int[] columnTypes = new int[columnCount];
+            DecryptingSQLiteCursor decryptingSource = source instanceof DecryptingSQLiteCursor ?
+                    (DecryptingSQLiteCursor) source : null;
+            Object[][] encryptedValues = new Object[columnCount][];
+
+            for (int i = 0; i < columnCount; i++) {
+                sourceColumns[i] = source.getColumnIndexOrThrow(columns.get(i));
+                columnTypes[i] = types.get(i);
+
+                if (decryptingSource != null
+                        && decryptingSource.isColumnEncrypted(sourceColumns[i])) {
+                    encryptedValues[i] = new Object[rowCount];
+                }
+            }
+
+            ColumnarCursor result = new ColumnarCursor(
+                    columns.toArray(new String[columnCount]), columnTypes, rowCount);
+
+            if (decryptingSource != null) {
+                // values are decrypted afterwards, the source is closed and needn't decrypt them
+                decryptingSource.setWindowDecryption(false);
+                decryptingSource.setReadAheadRows(0);
+            }
+
+            source.moveToPosition(-1);
+            int row = 0;
+            for (; row < rowCount && source.moveToNext(); row++) {
+                for (int i = 0; i < columnCount; i++) {
+                    if (encryptedValues[i] != null) {
+                        encryptedValues[i][row] =
+                                decryptingSource.getEncryptedValue(sourceColumns[i]);
+                    } else {
+                        result.read(row, i, source, sourceColumns[i]);
+                    }
+                }
+            }
+
+            if (row < rowCount) {
+                // missing rows would read as zeros instead of values
+                throw new IOException("Cursor returned " + row + " rows of " + rowCount);
+            }
+
+            if (decryptingSource != null) {
+                decrypt(result, encryptedValues, rowCount, executor);
+            }
+
+            return result;
+        } finally {
+            source.close();
+        }
+    }
+
+    static void decrypt(final ColumnarCursor result, final Object[][] encryptedValues,
+                        int rowCount, Executor executor) throws IOException {
+        if (executor == null || rowCount < PARALLEL_THRESHOLD) {
+            Cipher cipher;
+            try {
+                cipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+            } catch (Exception e) {
+                IOException ioException = new IOException("Error while initializing cipher");
+                ioException.initCause(e);
+                throw ioException;
+            }
+
+            // on failure cipher may be left in the middle of decryption and isn't released
+            decryptRows(cipher, result, encryptedValues, 0, rowCount);
+            EncryptionUtils.releaseCipher(cipher);
+            return;
+        }
+
+        int workerCount = Math.min(Runtime.getRuntime().availableProcessors(), rowCount);
+        final CountDownLatch done = new CountDownLatch(workerCount);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int i = 0; i < workerCount; i++) {
+            final int from = (int) ((long) rowCount * i / workerCount);
+            final int to = (int) ((long) rowCount * (i + 1) / workerCount);
+
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    Cipher cipher = null;
+                    try {
+                        cipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+                        decryptRows(cipher, result, encryptedValues, from, to);
+                    } catch (Throwable e) {
+                        // errors are rethrown on the calling thread
+                        error.compareAndSet(null, e);
+                        // cipher may be left in the middle of decryption
+                        cipher = null;
+                    } finally {
+                        EncryptionUtils.releaseCipher(cipher);
+                        done.countDown();
+                    }
+                }
+            };
+
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // workers that have been submitted are waited for before rethrowing
+                error.compareAndSet(null, e);
+                for (int j = i; j < workerCount; j++) {
+                    done.countDown();
+                }
+                break;
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decrypting cursor");
+        }
+
+        Throwable e = error.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            IOException ioException = new IOException("Error while decrypting cursor");
+            ioException.initCause(e);
+            throw ioException;
+        }
+    }
+
+    private static void decryptRows(Cipher cipher, ColumnarCursor result,
+                                    Object[][] encryptedValues, int from, int to)
+            throws IOException {
+        for (int column = 0; column < encryptedValues.length; column++) {
+            Object[] values = encryptedValues[column];
+            if (values == null) {
+                continue;
+            }
+
+            for (int row = from; row < to; row++) {
+                Object value = values[row];
+                try {
+                    result.store(row, column, value instanceof byte[] ?
+                            EncryptionUtils.decryptBinary(cipher, (byte[]) value) :
+                            EncryptionUtils.decryptToBytes(cipher, (String) value));
+                } catch (RuntimeException e) {
+                    // malformed values must not escape as unchecked exceptions
+                    IOException ioException = new IOException(
+                            "Error while decrypting cursor, row: " + row + ", column: " + column);
+                    ioException.initCause(e);
+                    throw ioException;
+                }
+            }
+        }
+    }
+}
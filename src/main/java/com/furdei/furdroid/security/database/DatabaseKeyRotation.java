@@ -0,0 +1,343 @@
+package com.furdei.furdroid.security.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * <p>
+ * Re-encrypts encrypted tables with a new key. Set a new password with
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#setPassword(String)} first and
+ * pass the old key derived with
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#deriveKey(String,
+ * com.furdei.furdroid.security.encryption.KeyDerivationParams)}:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+ *  EncryptionUtils.setPassword(newPassword);
+ *  new DatabaseKeyRotation(db, oldKey).run();
+ * }
+ * </pre>
+ * <p>
+ * Every table listed in encryption settings is processed in batches of rows ordered by
+ * <code>rowid</code>. Each batch is re-encrypted and saved in its own transaction together with
+ * a checkpoint, so a rotation interrupted by a process kill resumes from the last committed batch
+ * when {@link #run()} is called again with the same keys. Rows beyond the checkpoint are still
+ * encrypted with the old key, so finish the rotation before reading encrypted tables. Blind
+ * indexes of all rows, including rows with empty values, are recomputed with the new key.
+ * Tables must have a <code>rowid</code>.
+ * </p>
+ * <p>
+ * Fingerprints of the keys are kept in the database after the rotation is finished, see
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#keyFingerprint(javax.crypto.SecretKey)}.
+ * A rotation is refused if the database is known to be encrypted with a key other than the old
+ * one, so running a finished rotation again can't damage the data.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.encryption.FileKeyRotation FileKeyRotation
+ */
+public class DatabaseKeyRotation {
+
+    /**
+     * Default number of rows re-encrypted in a single transaction
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final String CHECKPOINT_TABLE = "furdroid_key_rotation";
+    private static final String STATE_TABLE = "furdroid_key_rotation_state";
+
+    private static final SQLiteDatabase.CursorFactory PLAIN_CURSOR_FACTORY =
+            new SQLiteDatabase.CursorFactory() {
+                @Override
+                public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                        String editTable, SQLiteQuery query) {
+                    return new SQLiteCursor(db, masterQuery, editTable, query);
+                }
+            };
+
+    private final SQLiteDatabase db;
+    private final SecretKey oldKey;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * @param db a database to re-encrypt
+     * @param oldKey a key the data is currently encrypted with. Data is re-encrypted with
+     *               the current key of {@link com.furdei.furdroid.security.encryption.EncryptionUtils}.
+     */
+    public DatabaseKeyRotation(SQLiteDatabase db, SecretKey oldKey) {
+        this.db = db;
+        this.oldKey = oldKey;
+    }
+
+    /**
+     * Set the number of rows re-encrypted in a single transaction. Smaller batches hold the
+     * database lock for a shorter time.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0. batchSize: " + batchSize);
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Check whether a rotation was started and hasn't been finished yet
+     */
+    public boolean isInProgress() {
+        if (!hasStateTable()) {
+            return false;
+        }
+
+        String[] state = readState();
+        return state != null && !"1".equals(state[2]);
+    }
+
+    private boolean hasStateTable() {
+        Cursor cursor = db.rawQueryWithFactory(PLAIN_CURSOR_FACTORY,
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { STATE_TABLE }, null);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the old key fingerprint, the new key fingerprint and the completion flag of the
+     * last rotation or <code>null</code> if there has been none
+     */
+    private String[] readState() {
+        Cursor cursor = db.rawQueryWithFactory(PLAIN_CURSOR_FACTORY, "SELECT old_key, new_key, " +
+                "completed FROM " + STATE_TABLE + " WHERE id = 0", null, null);
+        try {
+            return cursor.moveToFirst() ? new String[] { cursor.getString(0),
+                    cursor.getString(1), cursor.getString(2) } : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Check that the data is encrypted with the old key as far as the database knows, and record
+     * the start of a new rotation unless an interrupted one is resumed
+     */
+    private void begin(String oldKeyFingerprint, String newKeyFingerprint) {
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + STATE_TABLE + " (id INTEGER PRIMARY KEY, " +
+                    "old_key TEXT NOT NULL, new_key TEXT NOT NULL, completed INTEGER NOT NULL)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + CHECKPOINT_TABLE + " (table_name TEXT " +
+                    "PRIMARY KEY, last_rowid INTEGER NOT NULL, completed INTEGER NOT NULL)");
+
+            String[] state = readState();
+
+            if (state != null && !"1".equals(state[2])) {
+                if (!state[0].equals(oldKeyFingerprint) || !state[1].equals(newKeyFingerprint)) {
+                    throw new IllegalStateException("Another key rotation is in progress. " +
+                            "Finish it with the keys it was started with first.");
+                }
+            } else {
+                if (state != null && !state[1].equals(oldKeyFingerprint)) {
+                    throw new IllegalStateException("Database is not encrypted with the old " +
+                            "key. The key rotation may have been finished already.");
+                }
+
+                db.execSQL("DELETE FROM " + CHECKPOINT_TABLE);
+                db.execSQL("INSERT OR REPLACE INTO " + STATE_TABLE + " (id, old_key, new_key, " +
+                        "completed) VALUES (0, ?, ?, 0)",
+                        new Object[] { oldKeyFingerprint, newKeyFingerprint });
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void complete() {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + CHECKPOINT_TABLE);
+            db.execSQL("UPDATE " + STATE_TABLE + " SET completed = 1 WHERE id = 0");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Re-encrypt all encrypted tables or resume an interrupted rotation. The method blocks until
+     * all the tables are re-encrypted, so call it on a background thread. Interrupting the thread
+     * stops the rotation after the current batch.
+     *
+     * @return the number of rows processed by this call
+     * @throws IllegalStateException if the database is known to be encrypted with another key,
+     * e.g. the rotation has already been finished, or another rotation is in progress
+     * @throws InterruptedIOException if the thread was interrupted
+     * @throws IOException
+     */
+    public long run() throws IOException {
+        String oldKeyFingerprint = EncryptionUtils.keyFingerprint(oldKey);
+        String newKeyFingerprint = EncryptionUtils.keyFingerprint();
+
+        if (oldKeyFingerprint.equals(newKeyFingerprint)) {
+            throw new IllegalArgumentException("The old key is the current key");
+        }
+
+        begin(oldKeyFingerprint, newKeyFingerprint);
+
+        Cipher decryptCipher;
+        Cipher encryptCipher;
+        try {
+            decryptCipher = EncryptionUtils.initForDecrypt(oldKey);
+            encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+        } catch (Exception e) {
+            IOException ioException = new IOException("Error while initializing ciphers");
+            ioException.initCause(e);
+            throw ioException;
+        }
+
+        try {
+            long rowCount = 0;
+            Map<String, EncryptedTableSettings> encryptedTables =
+                    EncryptionUtils.getEncSettings().getEncryptedTables();
+            List<String> tables = new ArrayList<String>(encryptedTables.keySet());
+            Collections.sort(tables);
+
+            for (String table : tables) {
+                EncryptedTableSettings settings = encryptedTables.get(table);
+
+                if (!settings.getEncColumns().isEmpty()) {
+                    rowCount += rotateTable(settings, decryptCipher, encryptCipher);
+                }
+            }
+
+            complete();
+            return rowCount;
+        } finally {
+            EncryptionUtils.releaseCipher(encryptCipher);
+        }
+    }
+
+    private long rotateTable(EncryptedTableSettings settings, Cipher decryptCipher,
+                             Cipher encryptCipher) throws IOException {
+        String table = settings.getTableName();
+        long lastRowId = 0;
+
+        Cursor checkpoint = db.rawQueryWithFactory(PLAIN_CURSOR_FACTORY, "SELECT last_rowid, " +
+                "completed FROM " + CHECKPOINT_TABLE + " WHERE table_name = ?",
+                new String[] { table }, null);
+        try {
+            if (checkpoint.moveToFirst()) {
+                if (checkpoint.getInt(1) != 0) {
+                    return 0;
+                }
+
+                lastRowId = checkpoint.getLong(0);
+            }
+        } finally {
+            checkpoint.close();
+        }
+
+        String[] columns = settings.getEncColumns().toArray(new String[0]);
+        Set<String> binaryColumns = settings.getBinaryColumns();
+        StringBuilder sql = new StringBuilder("SELECT rowid");
+        for (String column : columns) {
+            sql.append(", ").append(column);
+        }
+        sql.append(" FROM ").append(table).append(" WHERE rowid > ? ORDER BY rowid LIMIT ")
+                .append(batchSize);
+
+        long rowCount = 0;
+        int batchRowCount;
+
+        do {
+            batchRowCount = 0;
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.rawQueryWithFactory(PLAIN_CURSOR_FACTORY, sql.toString(),
+                        new String[] { String.valueOf(lastRowId) }, table);
+                try {
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        batchRowCount++;
+
+                        ContentValues values = decryptRow(cursor, columns, binaryColumns,
+                                decryptCipher);
+
+                        if (values.size() > 0) {
+                            EncryptionUtils.encryptContentValues(encryptCipher, values, table);
+                            db.update(table, values, "rowid = ?",
+                                    new String[] { String.valueOf(lastRowId) });
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                db.execSQL("INSERT OR REPLACE INTO " + CHECKPOINT_TABLE + " (table_name, " +
+                        "last_rowid, completed) VALUES (?, ?, ?)",
+                        new Object[] { table, lastRowId, batchRowCount < batchSize ? 1 : 0 });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            rowCount += batchRowCount;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Key rotation has been interrupted");
+            }
+        } while (batchRowCount == batchSize);
+
+        return rowCount;
+    }
+
+    /**
+     * Decrypt encrypted columns of a row. <code>NULL</code> and empty values are not encrypted,
+     * they are passed as they are so that their blind indexes are recomputed too.
+     */
+    private static ContentValues decryptRow(Cursor cursor, String[] columns,
+                                            Set<String> binaryColumns, Cipher decryptCipher)
+            throws IOException {
+        ContentValues values = new ContentValues();
+
+        for (int i = 0; i < columns.length; i++) {
+            if (cursor.isNull(i + 1)) {
+                values.putNull(columns[i]);
+            } else if (binaryColumns.contains(columns[i])) {
+                byte[] encryptedValue = cursor.getBlob(i + 1);
+                values.put(columns[i], encryptedValue.length > 0 ?
+                        EncryptionUtils.decryptBinary(decryptCipher, encryptedValue) :
+                        encryptedValue);
+            } else {
+                String encryptedValue = cursor.getString(i + 1);
+                values.put(columns[i], encryptedValue.length() > 0 ?
+                        EncryptionUtils.decrypt(decryptCipher, encryptedValue) : encryptedValue);
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,341 @@
+package com.furdei.furdroid.security.database;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * Filters and sorts query results by values of encrypted columns. SQLite can't evaluate
+ * <code>WHERE</code> and <code>ORDER BY</code> clauses on encrypted data, so this class does it
+ * while streaming through a {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor}.
+ * It reads only the columns used by the filter and the sort order for each row. Since the cursor
+ * decrypts values lazily, the rest of the projection is decrypted only for the rows that make it
+ * into the result. Queries with a limit and without a sort order stop as soon as the limit is
+ * reached. Sorted queries with a limit keep only the best <code>limit</code> rows in memory.
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  Cursor result = DecryptedQuery.select("name", "phone", "balance")
+ *          .whereEquals("city", "Paris")
+ *          .orderBy("balance", DecryptedQuery.NUMERIC_ORDER, false)
+ *          .limit(10)
+ *          .execute(db.query("customers", null, null, null, null, null, null));
+ * }
+ * </pre>
+ * <p>
+ * Use unencrypted columns and blind indexes in SQL to reduce the number of rows passed to this
+ * class whenever possible.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.database.BlindIndexQuery BlindIndexQuery
+ */
+public class DecryptedQuery {
+
+    /**
+     * Row filter. Filter reads values of the current row of the cursor and must not move it.
+     */
+    public interface Filter {
+
+        /**
+         * Returns <code>true</code> if the current row of the cursor matches the filter
+         */
+        boolean accept(Cursor cursor);
+    }
+
+    /**
+     * Orders values by their numeric values. Values must be valid decimal numbers.
+     */
+    public static final Comparator<String> NUMERIC_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return Double.compare(Double.parseDouble(lhs), Double.parseDouble(rhs));
+        }
+    };
+
+    /**
+     * Orders values lexicographically
+     */
+    public static final Comparator<String> TEXT_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    private static final Comparator<SortEntry> POSITION_ORDER = new Comparator<SortEntry>() {
+        @Override
+        public int compare(SortEntry lhs, SortEntry rhs) {
+            return lhs.position - rhs.position;
+        }
+    };
+
+    private static final int NO_LIMIT = -1;
+
+    private final String[] projection;
+    private final List<Filter> filters = new ArrayList<Filter>();
+    private String orderColumn;
+    private Comparator<SortEntry> order;
+    private int limit = NO_LIMIT;
+
+    private DecryptedQuery(String[] projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Start a query
+     *
+     * @param projection columns of the result
+     */
+    public static DecryptedQuery select(String... projection) {
+        if (projection == null || projection.length == 0) {
+            throw new IllegalArgumentException("projection is empty");
+        }
+
+        return new DecryptedQuery(projection.clone());
+    }
+
+    /**
+     * Add a filter. Rows must match all the filters to get into the result.
+     */
+    public DecryptedQuery where(Filter filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    /**
+     * Add a filter that accepts rows with a column equal to the value
+     *
+     * @param column a name of the column
+     * @param value a value to compare with or <code>null</code> to accept rows with
+     *              <code>NULL</code> values
+     */
+    public DecryptedQuery whereEquals(final String column, final String value) {
+        return where(new Filter() {
+            private Cursor lastCursor;
+            private int columnIndex;
+
+            @Override
+            public boolean accept(Cursor cursor) {
+                if (cursor != lastCursor) {
+                    columnIndex = cursor.getColumnIndexOrThrow(column);
+                    lastCursor = cursor;
+                }
+
+                String columnValue = cursor.getString(columnIndex);
+                return value == null ? columnValue == null : value.equals(columnValue);
+            }
+        });
+    }
+
+    /**
+     * Sort the result by a column. <code>NULL</code> values go first in ascending order.
+     *
+     * @param column a name of the column
+     * @param comparator value order, e.g. {@link #TEXT_ORDER} or {@link #NUMERIC_ORDER}
+     * @param ascending <code>false</code> for descending order
+     */
+    public DecryptedQuery orderBy(String column, final Comparator<String> comparator,
+                                  final boolean ascending) {
+        this.orderColumn = column;
+        this.order = new Comparator<SortEntry>() {
+            @Override
+            public int compare(SortEntry lhs, SortEntry rhs) {
+                int result;
+
+                if (lhs.key == null || rhs.key == null) {
+                    result = lhs.key == null ? (rhs.key == null ? 0 : -1) : 1;
+                } else {
+                    result = comparator.compare(lhs.key, rhs.key);
+                }
+
+                if (!ascending) {
+                    result = -result;
+                }
+
+                // keep the order of the source cursor for equal values
+                return result != 0 ? result : lhs.position - rhs.position;
+            }
+        };
+        return this;
+    }
+
+    /**
+     * Limit the number of rows in the result
+     */
+    public DecryptedQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0. limit: " + limit);
+        }
+
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Run the query over a cursor. The source cursor is closed when this method returns.
+     *
+     * @param source a cursor to read rows from, usually a
+     *               {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor}
+     * @return a cursor with projected columns of matching rows
+     */
+    public Cursor execute(Cursor source) {
+        try {
+            int[] columns = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                columns[i] = source.getColumnIndexOrThrow(projection[i]);
+            }
+
+            MatrixCursor result = new MatrixCursor(projection);
+
+            if (order == null) {
+                while (!isFull(result) && source.moveToNext()) {
+                    if (accept(source)) {
+                        result.addRow(readRow(source, columns));
+                    }
+                }
+            } else {
+                for (Object[] row : readSorted(source, sort(source), columns)) {
+                    result.addRow(row);
+                }
+            }
+
+            return result;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Collect positions and sort keys of matching rows. Only <code>limit</code> best rows are
+     * kept when there is a limit.
+     */
+    private List<SortEntry> sort(Cursor source) {
+        int orderColumnIndex = source.getColumnIndexOrThrow(orderColumn);
+        List<SortEntry> entries;
+
+        if (limit == NO_LIMIT) {
+            entries = new ArrayList<SortEntry>();
+
+            while (source.moveToNext()) {
+                if (accept(source)) {
+                    entries.add(new SortEntry(source.getPosition(),
+                            source.getString(orderColumnIndex)));
+                }
+            }
+        } else {
+            if (limit == 0) {
+                return Collections.emptyList();
+            }
+
+            // the worst of the best rows is on top of the heap
+            PriorityQueue<SortEntry> heap = new PriorityQueue<SortEntry>(limit,
+                    Collections.reverseOrder(order));
+
+            while (source.moveToNext()) {
+                if (accept(source)) {
+                    SortEntry entry = new SortEntry(source.getPosition(),
+                            source.getString(orderColumnIndex));
+
+                    if (heap.size() < limit) {
+                        heap.add(entry);
+                    } else if (order.compare(entry, heap.peek()) < 0) {
+                        heap.poll();
+                        heap.add(entry);
+                    }
+                }
+            }
+
+            entries = new ArrayList<SortEntry>(heap);
+        }
+
+        Collections.sort(entries, order);
+        return entries;
+    }
+
+    /**
+     * Read sorted rows in the order of their positions, so the source cursor moves forward only
+     * and doesn't refill its window again and again
+     *
+     * @return rows in the sort order
+     */
+    private static Object[][] readSorted(Cursor source, List<SortEntry> entries, int[] columns) {
+        SortEntry[] byPosition = entries.toArray(new SortEntry[entries.size()]);
+        for (int i = 0; i < byPosition.length; i++) {
+            byPosition[i].rank = i;
+        }
+
+        Arrays.sort(byPosition, POSITION_ORDER);
+
+        Object[][] rows = new Object[byPosition.length][];
+        for (SortEntry entry : byPosition) {
+            source.moveToPosition(entry.position);
+            rows[entry.rank] = readRow(source, columns);
+        }
+
+        return rows;
+    }
+
+    private boolean accept(Cursor source) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).accept(source)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isFull(Cursor result) {
+        return limit != NO_LIMIT && result.getCount() >= limit;
+    }
+
+    private static Object[] readRow(Cursor source, int[] columns) {
+        Object[] row = new Object[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = readValue(source, columns[i]);
+        }
+
+        return row;
+    }
+
+    private static Object readValue(Cursor source, int column) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return source.getString(column);
+        }
+
+        switch (source.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return source.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return source.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return source.getBlob(column);
+            default:
+                return source.getString(column);
+        }
+    }
+
+    private static class SortEntry {
+
+        private final int position;
+        private final String key;
+        private int rank;
+
+        private SortEntry(int position, String key) {
+            this.position = position;
+            this.key = key;
+        }
+    }
+}
@@ -7,10 +7,17 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQuery;
 import android.os.Bundle;
 
-import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptedTablePlan;
 import com.furdei.furdroid.security.encryption.EncryptionUtils;
+import com.furdei.furdroid.security.metrics.EncryptionMetrics;
+import com.furdei.furdroid.security.metrics.EncryptionOperation;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
 
@@ -22,6 +29,29 @@ import javax.crypto.Cipher;
  * {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursorFactory
  * DecryptingSQLiteCursorFactory} class. See
  * {@link com.furdei.furdroid.security.encryption.EncryptionUtils EncryptionUtils} for details.
+ * <p>
+ * Cursor can keep recently decrypted values in a cache so that reading the same cell again
+ * doesn't require decryption. Cache is disabled by default. Call
+ * {@link #setDecryptedValueCacheSize(int)} to enable it. Cached values are erased from memory
+ * when they are evicted from the cache and when cursor is closed or requeried.
+ * </p>
+ * <p>
+ * Cursor can also decrypt the rows ahead of its position on a background thread, so that list
+ * binding on the UI thread gets decrypted values without doing AES work. Read-ahead is disabled
+ * by default. Call {@link #setReadAheadRows(int)} to enable it.
+ * </p>
+ * <p>
+ * Alternatively, cursor can decrypt all encrypted cells of its window in one pass every time
+ * the window is filled. Getters then read decrypted values from memory until the cursor moves
+ * outside of the window. This suits code that reads every row of a result, e.g. exports and
+ * aggregations. Call {@link #setWindowDecryption(boolean)} to enable it.
+ * </p>
+ * <p>
+ * Cursor takes a snapshot of encryption settings when it is created and keeps using it even if
+ * settings are replaced with
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#setEncSettings(com.furdei.furdroid.security.encryption.EncryptionSettings)}
+ * while the cursor is open.
+ * </p>
  *
  * @see com.furdei.furdroid.security.database.DecryptingSQLiteCursorFactory
  * DecryptingSQLiteCursorFactory
@@ -31,13 +61,22 @@ import javax.crypto.Cipher;
  */
 public class DecryptingSQLiteCursor extends SQLiteCursor {
 
+    private static final BitSet NO_ENCRYPTED_COLUMNS = new BitSet(0);
+
     private Bundle  extras;
     private String  editTable;
+    private final EncryptedTablePlan encTable;
+    private DecryptedValueCache decryptedValues;
+    private int readAheadRows;
+    private ReadAheadDecryptor readAhead;
+    private boolean windowDecryption;
+    private WindowDecryptor windowDecryptor;
 
     public DecryptingSQLiteCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
                                   String editTable, SQLiteQuery query) {
         super(db, driver, editTable, query);
         this.editTable = editTable;
+        this.encTable = EncryptionUtils.getTablePlan(editTable);
     }
 
     /**
@@ -51,20 +90,95 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
         return extras;
     }
 
-    private boolean[] encryptedColumns = null;
+    /**
+     * Set the maximum number of decrypted values the cursor keeps in the cache. Cache is keyed by
+     * cursor position and column index.
+     *
+     * @param cacheSize the maximum number of cached values. Zero disables the cache.
+     */
+    public void setDecryptedValueCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cacheSize < 0. cacheSize: " + cacheSize);
+        }
 
-    private boolean isColumnEncrypted(int columnIndex) {
-        if (encryptedColumns == null) {
-            encryptedColumns = new boolean[getColumnCount()];
-            EncryptedTableSettings encTable = EncryptionUtils.getEncSettings()
-                    .getEncryptedTables().get(editTable);
+        clearDecryptedValues();
+        decryptedValues = cacheSize > 0 ? new DecryptedValueCache(cacheSize) : null;
+    }
+
+    /**
+     * Set the number of rows ahead of the cursor position to decrypt on a background thread.
+     * Getters return values decrypted in background when they are ready and decrypt values
+     * themselves otherwise. Only the rows in the current cursor window are read ahead.
+     *
+     * @param rows the number of rows to read ahead. Zero disables read-ahead.
+     */
+    public void setReadAheadRows(int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("rows < 0. rows: " + rows);
+        }
 
-            for (int i = 0; i < getColumnCount(); i++) {
-                encryptedColumns[i] = encTable != null && encTable.getEncColumns().contains(getColumnName(i));
+        clearReadAhead();
+        readAheadRows = rows;
+        readAhead = null;
+    }
+
+    /**
+     * Enable or disable decryption of the whole cursor window. When enabled, all encrypted cells
+     * of the window are decrypted with a single cipher as soon as the window is filled, and
+     * getters don't decrypt anything while the cursor stays in the window. Decrypted values of
+     * the window are erased when the window is refilled and when cursor is closed or requeried.
+     * Read-ahead is not used while window decryption is enabled.
+     *
+     * @param enabled <code>true</code> to decrypt the whole window at once
+     */
+    public void setWindowDecryption(boolean enabled) {
+        clearWindowDecryptor();
+        windowDecryption = enabled;
+        windowDecryptor = null;
+    }
+
+    private WindowDecryptor getWindowDecryptor() {
+        if (windowDecryptor == null && windowDecryption) {
+            loadEncryptedColumns();
+            windowDecryptor = new WindowDecryptor(getColumnCount(), encryptedColumns,
+                    binaryColumns);
+        }
+
+        return windowDecryptor;
+    }
+
+    private ReadAheadDecryptor getReadAhead() {
+        if (readAhead == null && readAheadRows > 0) {
+            loadEncryptedColumns();
+            readAhead = new ReadAheadDecryptor(readAheadRows, getColumnCount(),
+                    encryptedColumns, binaryColumns);
+        }
+
+        return readAhead;
+    }
+
+    private BitSet encryptedColumns = null;
+    private BitSet binaryColumns = null;
+
+    private void loadEncryptedColumns() {
+        if (encryptedColumns == null) {
+            if (encTable != null) {
+                binaryColumns = encTable.getBinaryColumns(getColumnNames());
+                encryptedColumns = encTable.getEncryptedColumns(getColumnNames());
+            } else {
+                binaryColumns = NO_ENCRYPTED_COLUMNS;
+                encryptedColumns = NO_ENCRYPTED_COLUMNS;
             }
         }
+    }
 
-        return encryptedColumns[columnIndex];
+    boolean isColumnEncrypted(int columnIndex) {
+        loadEncryptedColumns();
+        return encryptedColumns.get(columnIndex);
+    }
+
+    private boolean isColumnBinary(int columnIndex) {
+        return isColumnEncrypted(columnIndex) && binaryColumns.get(columnIndex);
     }
 
     private Cipher decryptingCipher = null;
@@ -72,7 +186,7 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
     private Cipher getDecryptingCipher() {
         if (decryptingCipher == null) {
             try {
-                decryptingCipher = EncryptionUtils.initForDecrypt();
+                decryptingCipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -81,6 +195,116 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
         return decryptingCipher;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (!super.onMove(oldPosition, newPosition)) {
+            return false;
+        }
+
+        if (windowDecryption) {
+            // errors of cells are reported by getters
+            getWindowDecryptor().fill(getWindow(), getDecryptingCipher());
+        } else if (readAheadRows > 0) {
+            getReadAhead().onMove(getWindow(), oldPosition, newPosition);
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        clearDecryptedValues();
+        clearReadAhead();
+        clearWindowDecryptor();
+        EncryptionUtils.releaseCipher(decryptingCipher);
+        decryptingCipher = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requery() {
+        clearDecryptedValues();
+        clearReadAhead();
+        clearWindowDecryptor();
+        return super.requery();
+    }
+
+    private void clearDecryptedValues() {
+        if (decryptedValues != null) {
+            decryptedValues.clear();
+        }
+    }
+
+    private void clearReadAhead() {
+        if (readAhead != null) {
+            readAhead.clear();
+        }
+    }
+
+    private void clearWindowDecryptor() {
+        if (windowDecryptor != null) {
+            windowDecryptor.clear();
+        }
+    }
+
+    /**
+     * Returns decrypted value of the encrypted column in the current row. Takes value from
+     * the decrypted window, the cache or the read-ahead buffer if they are enabled.
+     */
+    private byte[] getDecryptedValue(int columnIndex) throws IOException {
+        if (windowDecryptor != null && windowDecryptor.contains(getPosition())) {
+            return windowDecryptor.get(getPosition(), columnIndex);
+        }
+
+        if (decryptedValues == null) {
+            return readValue(columnIndex);
+        }
+
+        long key = (long) getPosition() * getColumnCount() + columnIndex;
+        byte[] value = decryptedValues.get(key);
+
+        if (value == null) {
+            value = readValue(columnIndex);
+
+            if (value != null) {
+                decryptedValues.put(key, value);
+            }
+        }
+
+        return value;
+    }
+
+    private byte[] readValue(int columnIndex) throws IOException {
+        byte[] value = readAhead != null ? readAhead.take(getPosition(), columnIndex) : null;
+        return value != null ? value : decryptValue(columnIndex);
+    }
+
+    private byte[] decryptValue(int columnIndex) throws IOException {
+        return isColumnBinary(columnIndex) ?
+                EncryptionUtils.decryptBinary(getDecryptingCipher(), super.getBlob(columnIndex)) :
+                EncryptionUtils.decryptToBytes(getDecryptingCipher(), super.getString(columnIndex));
+    }
+
+    /**
+     * Returns the value of an encrypted column in the current row as it is stored in
+     * the database: a byte array for columns with binary storage and a Base64 encoded string
+     * otherwise. Lets callers decrypt values outside of the cursor thread.
+     */
+    Object getEncryptedValue(int columnIndex) {
+        checkColumnIndex(columnIndex);
+        return isColumnBinary(columnIndex) ? super.getBlob(columnIndex) :
+                super.getString(columnIndex);
+    }
+
     private void checkColumnIndex(int columnIndex) {
         if (columnIndex < 0) {
             throw new IllegalArgumentException("columnIndex < 0. columnIndex: " + columnIndex);
@@ -99,9 +323,20 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
     public byte[] getBlob(int columnIndex) {
         checkColumnIndex(columnIndex);
 
+        if (isColumnBinary(columnIndex)) {
+            try {
+                byte[] value = getDecryptedValue(columnIndex);
+                // cached values get erased, so caller receives a copy
+                return value != null && (decryptedValues != null || windowDecryption) ?
+                        value.clone() : value;
+            } catch (IOException e) {
+                throw new RuntimeException("Error while decrypting cursor", e);
+            }
+        }
+
         if (isColumnEncrypted(columnIndex)) {
-            throw new IllegalStateException("Blob encryption is not supported. " +
-                    "Use getString(int columnIndex) instead.");
+            throw new IllegalStateException("Blob encryption is supported only for columns with " +
+                    "binary storage. Use getString(int columnIndex) instead.");
         }
 
         return super.getBlob(columnIndex);
@@ -114,10 +349,20 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
     public String getString(int columnIndex) {
         checkColumnIndex(columnIndex);
 
+        if (!isColumnEncrypted(columnIndex)) {
+            return super.getString(columnIndex);
+        }
+
         try {
-            return isColumnEncrypted(columnIndex) ?
-                    EncryptionUtils.decrypt(getDecryptingCipher(), super.getString(columnIndex))
-                    : super.getString(columnIndex);
+            long start = EncryptionMetrics.isEnabled() ? System.nanoTime() : 0;
+            byte[] value = getDecryptedValue(columnIndex);
+
+            if (start != 0) {
+                EncryptionMetrics.record(EncryptionOperation.CURSOR_GET, editTable,
+                        getColumnName(columnIndex), value != null ? value.length : 0, start);
+            }
+
+            return EncryptionUtils.bytesToString(value);
         } catch (IOException e) {
             throw new RuntimeException("Error while decrypting cursor", e);
         }
@@ -213,4 +458,37 @@ public class DecryptingSQLiteCursor extends SQLiteCursor {
         return super.getDouble(columnIndex);
     }
 
+    /**
+     * LRU cache of decrypted values. Evicted values are erased.
+     */
+    private static class DecryptedValueCache extends LinkedHashMap<Long, byte[]> {
+
+        private final int maxSize;
+
+        private DecryptedValueCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            if (size() > maxSize) {
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            Iterator<byte[]> values = values().iterator();
+            while (values.hasNext()) {
+                Arrays.fill(values.next(), (byte) 0);
+            }
+
+            super.clear();
+        }
+    }
+
 }
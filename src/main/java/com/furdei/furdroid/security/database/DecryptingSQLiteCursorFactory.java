@@ -31,9 +31,58 @@ import android.database.sqlite.SQLiteQuery;
  */
 public class DecryptingSQLiteCursorFactory implements SQLiteDatabase.CursorFactory {
 
+    private int decryptedValueCacheSize;
+    private int readAheadRows;
+    private boolean windowDecryption;
+
+    public DecryptingSQLiteCursorFactory() {
+        this(0);
+    }
+
+    /**
+     * Create a factory of cursors that cache decrypted values
+     *
+     * @param decryptedValueCacheSize the maximum number of decrypted values each cursor keeps in
+     *                                the cache. See
+     *                                {@link DecryptingSQLiteCursor#setDecryptedValueCacheSize(int)}
+     */
+    public DecryptingSQLiteCursorFactory(int decryptedValueCacheSize) {
+        this(decryptedValueCacheSize, 0);
+    }
+
+    /**
+     * Create a factory of cursors that cache decrypted values and decrypt rows ahead of their
+     * position on a background thread
+     *
+     * @param decryptedValueCacheSize the maximum number of decrypted values each cursor keeps in
+     *                                the cache. See
+     *                                {@link DecryptingSQLiteCursor#setDecryptedValueCacheSize(int)}
+     * @param readAheadRows the number of rows each cursor decrypts ahead of its position. See
+     *                      {@link DecryptingSQLiteCursor#setReadAheadRows(int)}
+     */
+    public DecryptingSQLiteCursorFactory(int decryptedValueCacheSize, int readAheadRows) {
+        this.decryptedValueCacheSize = decryptedValueCacheSize;
+        this.readAheadRows = readAheadRows;
+    }
+
+    /**
+     * Make cursors decrypt their whole window at once. See
+     * {@link DecryptingSQLiteCursor#setWindowDecryption(boolean)}
+     *
+     * @param windowDecryption <code>true</code> to decrypt the whole window at once
+     */
+    public void setWindowDecryption(boolean windowDecryption) {
+        this.windowDecryption = windowDecryption;
+    }
+
     public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
                             SQLiteQuery query) {
-        return new DecryptingSQLiteCursor(db, masterQuery, editTable, query);
+        DecryptingSQLiteCursor cursor =
+                new DecryptingSQLiteCursor(db, masterQuery, editTable, query);
+        cursor.setDecryptedValueCacheSize(decryptedValueCacheSize);
+        cursor.setReadAheadRows(readAheadRows);
+        cursor.setWindowDecryption(windowDecryption);
+        return cursor;
     }
 
 }
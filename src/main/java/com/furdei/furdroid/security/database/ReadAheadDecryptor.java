@@ -0,0 +1,265 @@
+package com.furdei.furdroid.security.database;
+
+import android.database.CursorWindow;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decrypts encrypted columns of the rows ahead of the cursor position on a background thread.
+ * Encrypted values are copied from the cursor window on the cursor thread when the cursor moves,
+ * so the window itself is never accessed concurrently. Only the AES work and Base64 decoding are
+ * done in background. The buffer holds decrypted values for at most <code>rows</code> rows on
+ * each side of the cursor position. Values are erased when they leave the buffer. Tasks for
+ * rows the cursor has already left are skipped, and only a few of the latest tasks are kept in
+ * the queue, so read-ahead keeps up with a fling.
+ */
+class ReadAheadDecryptor {
+
+    private final int rows;
+    private final int columnCount;
+    private final int[] columns;
+    private final boolean[] binary;
+    private final ConcurrentMap<Long, byte[]> decryptedValues =
+            new ConcurrentHashMap<Long, byte[]>();
+    private final ConcurrentMap<Integer, Boolean> scheduledRows =
+            new ConcurrentHashMap<Integer, Boolean>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * @param rows the number of rows to decrypt ahead of the cursor position
+     * @param columnCount the number of columns in the cursor
+     * @param encryptedColumns indexes of encrypted columns
+     * @param binaryColumns indexes of encrypted columns with binary storage
+     */
+    ReadAheadDecryptor(int rows, int columnCount, BitSet encryptedColumns,
+                       BitSet binaryColumns) {
+        this.rows = rows;
+        this.columnCount = columnCount;
+        this.columns = new int[encryptedColumns.cardinality()];
+        this.binary = new boolean[columns.length];
+
+        int i = 0;
+        for (int column = encryptedColumns.nextSetBit(0); column >= 0;
+             column = encryptedColumns.nextSetBit(column + 1)) {
+            columns[i] = column;
+            binary[i] = binaryColumns.get(column);
+            i++;
+        }
+    }
+
+    /**
+     * Drop the rows that are too far from the new position and schedule decryption of the rows
+     * ahead of it in the direction of movement. Rows outside of the current window are skipped
+     * so read-ahead never causes the window to be refilled.
+     */
+    void onMove(CursorWindow window, int oldPosition, int newPosition) {
+        if (columns.length == 0 || window == null) {
+            return;
+        }
+
+        evict(newPosition);
+
+        int step = newPosition >= oldPosition ? 1 : -1;
+        int windowStart = window.getStartPosition();
+        int windowEnd = windowStart + window.getNumRows();
+        int[] rowsToDecrypt = new int[rows];
+        int rowCount = 0;
+
+        for (int row = newPosition + step; Math.abs(row - newPosition) <= rows; row += step) {
+            if (row < windowStart || row >= windowEnd) {
+                break;
+            }
+
+            if (scheduledRows.putIfAbsent(row, Boolean.TRUE) == null) {
+                rowsToDecrypt[rowCount++] = row;
+            }
+        }
+
+        if (rowCount == 0) {
+            return;
+        }
+
+        Object[] encryptedValues = new Object[rowCount * columns.length];
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < columns.length; c++) {
+                encryptedValues[r * columns.length + c] = binary[c] ?
+                        window.getBlob(rowsToDecrypt[r], columns[c]) :
+                        window.getString(rowsToDecrypt[r], columns[c]);
+            }
+        }
+
+        int[] taskRows = new int[rowCount];
+        System.arraycopy(rowsToDecrypt, 0, taskRows, 0, rowCount);
+        BackgroundExecutor.INSTANCE.execute(
+                new DecryptTask(generation.get(), taskRows, encryptedValues));
+    }
+
+    /**
+     * Take a decrypted value out of the buffer
+     *
+     * @return decrypted value or <code>null</code> if it is not ready yet
+     */
+    byte[] take(int position, int columnIndex) {
+        return decryptedValues.remove(key(position, columnIndex));
+    }
+
+    /**
+     * Erase all decrypted values and discard the results of tasks that are still running
+     */
+    void clear() {
+        generation.incrementAndGet();
+        scheduledRows.clear();
+
+        Iterator<byte[]> values = decryptedValues.values().iterator();
+        while (values.hasNext()) {
+            Arrays.fill(values.next(), (byte) 0);
+            values.remove();
+        }
+    }
+
+    private void evict(int position) {
+        Iterator<Integer> scheduled = scheduledRows.keySet().iterator();
+        while (scheduled.hasNext()) {
+            int row = scheduled.next();
+
+            if (Math.abs(row - position) > rows) {
+                scheduled.remove();
+
+                for (int column : columns) {
+                    byte[] value = decryptedValues.remove(key(row, column));
+                    if (value != null) {
+                        Arrays.fill(value, (byte) 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private long key(int position, int columnIndex) {
+        return (long) position * columnCount + columnIndex;
+    }
+
+    private class DecryptTask implements Runnable {
+
+        private final int taskGeneration;
+        private final int[] taskRows;
+        private final Object[] encryptedValues;
+
+        private DecryptTask(int taskGeneration, int[] taskRows, Object[] encryptedValues) {
+            this.taskGeneration = taskGeneration;
+            this.taskRows = taskRows;
+            this.encryptedValues = encryptedValues;
+        }
+
+        @Override
+        public void run() {
+            if (taskGeneration != generation.get()) {
+                return;
+            }
+
+            Cipher cipher = null;
+            try {
+                cipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+
+                for (int r = 0; r < taskRows.length; r++) {
+                    if (taskGeneration != generation.get()) {
+                        return;
+                    }
+
+                    // the row has been evicted while the task was waiting in the queue
+                    if (!scheduledRows.containsKey(taskRows[r])) {
+                        continue;
+                    }
+
+                    for (int c = 0; c < columns.length; c++) {
+                        Object encryptedValue = encryptedValues[r * columns.length + c];
+                        byte[] value = binary[c] ?
+                                EncryptionUtils.decryptBinary(cipher, (byte[]) encryptedValue) :
+                                EncryptionUtils.decryptToBytes(cipher, (String) encryptedValue);
+
+                        if (value == null) {
+                            continue;
+                        }
+
+                        long key = key(taskRows[r], columns[c]);
+                        byte[] previous = decryptedValues.put(key, value);
+                        if (previous != null) {
+                            Arrays.fill(previous, (byte) 0);
+                        }
+
+                        // the row may have been evicted or the cursor cleared meanwhile. If
+                        // the value has already been taken, it belongs to the cursor now.
+                        if ((taskGeneration != generation.get()
+                                || !scheduledRows.containsKey(taskRows[r]))
+                                && decryptedValues.remove(key, value)) {
+                            Arrays.fill(value, (byte) 0);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // values that failed here are decrypted on the cursor thread which reports errors
+                e.printStackTrace();
+            } finally {
+                EncryptionUtils.releaseCipher(cipher);
+            }
+        }
+
+        /**
+         * Called when the task is dropped from the queue. Its rows may be scheduled again.
+         */
+        private void discard() {
+            if (taskGeneration == generation.get()) {
+                for (int row : taskRows) {
+                    scheduledRows.remove(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lazily created executor shared by all cursors. When the queue is full the oldest task is
+     * dropped, since the cursor that scheduled it has most likely moved on.
+     */
+    private static class BackgroundExecutor {
+
+        private static final int QUEUE_CAPACITY = 2;
+
+        private static final Executor INSTANCE = new ThreadPoolExecutor(1, 1, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "furdroid-read-ahead");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest instanceof DecryptTask) {
+                            ((DecryptTask) oldest).discard();
+                        }
+
+                        executor.execute(r);
+                    }
+                });
+    }
+}
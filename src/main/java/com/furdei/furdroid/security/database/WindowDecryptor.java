@@ -0,0 +1,153 @@
+package com.furdei.furdroid.security.database;
+
+import android.database.CursorWindow;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decrypts all encrypted cells of a cursor window in one pass right after the window is filled.
+ * Decrypted values are kept in a flat array indexed by the row in the window and the encrypted
+ * column, so cursor getters don't decrypt anything while the cursor stays in the window. Values
+ * are erased when the window is refilled and when the decryptor is cleared. A cell that fails to
+ * decrypt keeps its error, the error is reported by {@link #get(int, int)} and the window isn't
+ * decrypted again.
+ */
+class WindowDecryptor {
+
+    private final int[] columns;
+    private final int[] slots;
+    private final boolean[] binary;
+    private byte[][] values = new byte[0][];
+    private IOException[] errors;
+    private int windowStart = -1;
+    private int rowCount = 0;
+
+    /**
+     * @param columnCount the number of columns in the cursor
+     * @param encryptedColumns indexes of encrypted columns
+     * @param binaryColumns indexes of encrypted columns with binary storage
+     */
+    WindowDecryptor(int columnCount, BitSet encryptedColumns, BitSet binaryColumns) {
+        this.columns = new int[encryptedColumns.cardinality()];
+        this.slots = new int[columnCount];
+        this.binary = new boolean[columns.length];
+        Arrays.fill(slots, -1);
+
+        int i = 0;
+        for (int column = encryptedColumns.nextSetBit(0); column >= 0;
+             column = encryptedColumns.nextSetBit(column + 1)) {
+            columns[i] = column;
+            slots[column] = i;
+            binary[i] = binaryColumns.get(column);
+            i++;
+        }
+    }
+
+    /**
+     * Decrypt the window unless it has already been decrypted. A window is recognized by its
+     * start position and the number of rows, a cursor refills its window only when it moves
+     * outside of it. Errors of cells that fail to decrypt are kept instead of values.
+     *
+     * @param window the cursor window
+     * @param cipher a cipher used for all cells of the window
+     */
+    void fill(CursorWindow window, Cipher cipher) {
+        if (window == null || columns.length == 0) {
+            return;
+        }
+
+        int start = window.getStartPosition();
+        int rows = window.getNumRows();
+        if (start == windowStart && rows == rowCount) {
+            return;
+        }
+
+        clear();
+
+        int cellCount = rows * columns.length;
+        if (values.length < cellCount) {
+            values = new byte[cellCount][];
+        }
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns.length; c++) {
+                int cell = r * columns.length + c;
+                try {
+                    values[cell] = binary[c] ?
+                            EncryptionUtils.decryptBinary(cipher,
+                                    window.getBlob(start + r, columns[c])) :
+                            EncryptionUtils.decryptToBytes(cipher,
+                                    window.getString(start + r, columns[c]));
+                } catch (IOException e) {
+                    setError(cell, e);
+                } catch (RuntimeException e) {
+                    IOException ioException = new IOException("Error while decrypting cell");
+                    ioException.initCause(e);
+                    setError(cell, ioException);
+                }
+            }
+        }
+
+        windowStart = start;
+        rowCount = rows;
+    }
+
+    private void setError(int cell, IOException error) {
+        if (errors == null || errors.length < values.length) {
+            errors = new IOException[values.length];
+        }
+        errors[cell] = error;
+    }
+
+    /**
+     * Returns <code>true</code> if values of the row at the position have been decrypted
+     */
+    boolean contains(int position) {
+        return position >= windowStart && position < windowStart + rowCount;
+    }
+
+    /**
+     * Returns a decrypted value. The value belongs to the decryptor and is erased when the window
+     * is refilled, so it must not be handed out without a copy.
+     *
+     * @return decrypted value or <code>null</code> if the cell is <code>NULL</code> or empty
+     * @throws IOException if the cell has failed to decrypt
+     */
+    byte[] get(int position, int columnIndex) throws IOException {
+        int cell = (position - windowStart) * columns.length + slots[columnIndex];
+
+        if (errors != null && errors[cell] != null) {
+            throw errors[cell];
+        }
+
+        return values[cell];
+    }
+
+    /**
+     * Erase all decrypted values
+     */
+    void clear() {
+        erase(rowCount * columns.length);
+        windowStart = -1;
+        rowCount = 0;
+    }
+
+    private void erase(int cellCount) {
+        for (int i = 0; i < cellCount; i++) {
+            if (values[i] != null) {
+                Arrays.fill(values[i], (byte) 0);
+                values[i] = null;
+            }
+        }
+
+        if (errors != null) {
+            Arrays.fill(errors, null);
+        }
+    }
+}
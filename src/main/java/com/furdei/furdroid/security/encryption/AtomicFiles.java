@@ -0,0 +1,152 @@
+package com.furdei.furdroid.security.encryption;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Helpers for replacing files atomically: data is written into a temporary file in the same
+ * directory, flushed to disk and renamed over the target file. Rename is atomic within a file
+ * system, so readers see either the old or the new content of the file.
+ */
+final class AtomicFiles {
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Create a new temporary file in the directory of the target file
+     */
+    static File createTempFile(File target) throws IOException {
+        return File.createTempFile("." + target.getName() + "-", TEMP_FILE_SUFFIX,
+                getDirectory(target));
+    }
+
+    /**
+     * Returns <code>true</code> if the file is named like a temporary file created by
+     * {@link #createTempFile(java.io.File)}
+     */
+    static boolean isTempFile(File file) {
+        String name = file.getName();
+        return name.startsWith(".") && name.endsWith(TEMP_FILE_SUFFIX) && name.indexOf('-') > 0;
+    }
+
+    /**
+     * Delete temporary files of a directory
+     *
+     * @return the number of deleted files
+     */
+    static int deleteTempFiles(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list directory " + dir);
+        }
+
+        int count = 0;
+        for (File file : files) {
+            if (file.isFile() && isTempFile(file)) {
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete temporary file " + file);
+                }
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Flush the content of a closed file to disk
+     */
+    static void sync(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Rename a temporary file over the target file
+     */
+    static void replace(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            throw new IOException("Unable to replace " + target + " with " + temp);
+        }
+    }
+
+    /**
+     * Flush a directory entry to disk so that files renamed into the directory survive a crash.
+     * Directories can't be synced before Android 5.0, this method does nothing there.
+     */
+    static void syncDirectory(File dir) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Api21.syncDirectory(dir);
+        }
+    }
+
+    /**
+     * Returns a directory a file is located in
+     */
+    static File getDirectory(File file) {
+        return file.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * File stream that flushes data to disk when it is closed
+     */
+    static class SyncingOutputStream extends FileOutputStream {
+
+        private boolean closed;
+
+        SyncingOutputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                getFD().sync();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Methods of API 21 are kept in a separate class so that it is never loaded on older devices
+     */
+    private static class Api21 {
+
+        private static void syncDirectory(File dir) throws IOException {
+            try {
+                FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+                try {
+                    Os.fsync(fd);
+                } finally {
+                    Os.close(fd);
+                }
+            } catch (ErrnoException e) {
+                IOException ioException = new IOException("Unable to sync directory " + dir);
+                ioException.initCause(e);
+                throw ioException;
+            }
+        }
+    }
+}
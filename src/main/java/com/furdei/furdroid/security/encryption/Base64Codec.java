@@ -0,0 +1,188 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base64 codec used to store encrypted data in text columns. Encoder produces standard Base64
+ * without line breaks. Decoder skips whitespace, so it reads both values encoded without line
+ * breaks and values encoded by {@link android.util.Base64} with <code>DEFAULT</code> flags.
+ * Decoder can write decoded data directly into a buffer supplied by caller. The codec does not
+ * depend on Android framework classes.
+ */
+public final class Base64Codec {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char PADDING = '=';
+    private static final int SKIP = -1;
+    private static final int INVALID = -2;
+    private static final int[] DECODE_TABLE = new int[128];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = INVALID;
+        }
+
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE_TABLE[ALPHABET[i]] = i;
+        }
+
+        DECODE_TABLE[' '] = SKIP;
+        DECODE_TABLE['\t'] = SKIP;
+        DECODE_TABLE['\r'] = SKIP;
+        DECODE_TABLE['\n'] = SKIP;
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Encode data into a Base64 string without line breaks
+     */
+    public static String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    /**
+     * Encode a range of an array into a Base64 string without line breaks
+     *
+     * @param data a buffer containing data to encode
+     * @param offset an offset of data in the buffer
+     * @param length a length of data
+     */
+    public static String encode(byte[] data, int offset, int length) {
+        char[] encoded = new char[(length + 2) / 3 * 4];
+        int end = offset + length;
+        int out = 0;
+
+        while (offset + 3 <= end) {
+            int bits = (data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8
+                    | data[offset + 2] & 0xff;
+            encoded[out++] = ALPHABET[bits >>> 18];
+            encoded[out++] = ALPHABET[bits >>> 12 & 0x3f];
+            encoded[out++] = ALPHABET[bits >>> 6 & 0x3f];
+            encoded[out++] = ALPHABET[bits & 0x3f];
+            offset += 3;
+        }
+
+        int remaining = end - offset;
+        if (remaining > 0) {
+            int bits = (data[offset] & 0xff) << 16;
+            if (remaining == 2) {
+                bits |= (data[offset + 1] & 0xff) << 8;
+            }
+
+            encoded[out++] = ALPHABET[bits >>> 18];
+            encoded[out++] = ALPHABET[bits >>> 12 & 0x3f];
+            encoded[out++] = remaining == 2 ? ALPHABET[bits >>> 6 & 0x3f] : PADDING;
+            encoded[out] = PADDING;
+        }
+
+        return new String(encoded);
+    }
+
+    /**
+     * Returns the maximum number of bytes a Base64 string can be decoded into
+     */
+    public static int maxDecodedLength(CharSequence encoded) {
+        return (encoded.length() + 3) / 4 * 3;
+    }
+
+    /**
+     * Decode a Base64 string
+     *
+     * @param encoded Base64 encoded data. Whitespace is ignored.
+     * @return decoded data
+     * @throws IllegalArgumentException if <code>encoded</code> is not a valid Base64 string
+     */
+    public static byte[] decode(CharSequence encoded) {
+        byte[] buffer = new byte[maxDecodedLength(encoded)];
+        int length = decode(encoded, buffer, 0);
+
+        if (length == buffer.length) {
+            return buffer;
+        }
+
+        byte[] decoded = new byte[length];
+        System.arraycopy(buffer, 0, decoded, 0, length);
+        return decoded;
+    }
+
+    /**
+     * Decode a Base64 string into a buffer supplied by caller. This method doesn't allocate any
+     * memory.
+     *
+     * @param encoded Base64 encoded data. Whitespace is ignored.
+     * @param out a buffer for decoded data. It should have at least
+     *            {@link #maxDecodedLength(CharSequence)} bytes available after
+     *            <code>outOffset</code>.
+     * @param outOffset an offset in the buffer
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IllegalArgumentException if <code>encoded</code> is not a valid Base64 string
+     */
+    public static int decode(CharSequence encoded, byte[] out, int outOffset) {
+        int start = outOffset;
+        int bits = 0;
+        int count = 0;
+        int padding = 0;
+
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+
+            if (c == PADDING) {
+                padding++;
+                continue;
+            }
+
+            int value = c < DECODE_TABLE.length ? DECODE_TABLE[c] : INVALID;
+
+            if (value == SKIP) {
+                continue;
+            }
+
+            if (value == INVALID || padding > 0) {
+                throw new IllegalArgumentException("Bad Base64 input at position " + i);
+            }
+
+            bits = bits << 6 | value;
+
+            if (++count == 4) {
+                out[outOffset++] = (byte) (bits >>> 16);
+                out[outOffset++] = (byte) (bits >>> 8);
+                out[outOffset++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        if (count == 2) {
+            out[outOffset++] = (byte) (bits >>> 4);
+        } else if (count == 3) {
+            out[outOffset++] = (byte) (bits >>> 10);
+            out[outOffset++] = (byte) (bits >>> 2);
+        } else if (count == 1 || padding > 2) {
+            throw new IllegalArgumentException("Bad Base64 input: unexpected end of data");
+        }
+
+        return outOffset - start;
+    }
+
+    /**
+     * Decode a Base64 string into a {@link java.nio.ByteBuffer}. Decoded data is written at
+     * the current position of the buffer, the position is advanced.
+     *
+     * @param encoded Base64 encoded data. Whitespace is ignored.
+     * @param out a buffer for decoded data. It must be backed by an accessible array.
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if <code>encoded</code> is not a valid Base64 string
+     */
+    public static int decode(CharSequence encoded, ByteBuffer out) {
+        if (out.remaining() < maxDecodedLength(encoded)) {
+            throw new IllegalArgumentException("Buffer is too small to decode Base64 data");
+        }
+
+        int length = decode(encoded, out.array(), out.arrayOffset() + out.position());
+        out.position(out.position() + length);
+        return length;
+    }
+}
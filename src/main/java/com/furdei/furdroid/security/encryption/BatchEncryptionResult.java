@@ -0,0 +1,70 @@
+package com.furdei.furdroid.security.encryption;
+
+/**
+ * Statistics of a batch encryption returned by
+ * {@link EncryptionUtils#encryptContentValues(java.util.List, String, java.util.concurrent.Executor)}
+ */
+public class BatchEncryptionResult {
+
+    private final int rowCount;
+    private final long byteCount;
+    private final long elapsedNanos;
+    private final int workerCount;
+
+    public BatchEncryptionResult(int rowCount, long byteCount, long elapsedNanos,
+                                 int workerCount) {
+        this.rowCount = rowCount;
+        this.byteCount = byteCount;
+        this.elapsedNanos = elapsedNanos;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Returns the number of processed rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the number of unencrypted bytes that have been encrypted
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns wall clock time the batch took in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the number of workers the batch was split between
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Returns throughput in rows per second
+     */
+    public double getRowsPerSecond() {
+        return elapsedNanos > 0 ? rowCount * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * Returns throughput in unencrypted bytes per second
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos > 0 ? byteCount * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchEncryptionResult{rows=" + rowCount + ", bytes=" + byteCount
+                + ", elapsedNanos=" + elapsedNanos + ", workers=" + workerCount
+                + ", rowsPerSecond=" + getRowsPerSecond() + "}";
+    }
+}
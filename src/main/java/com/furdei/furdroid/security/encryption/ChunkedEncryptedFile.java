@@ -0,0 +1,425 @@
+package com.furdei.furdroid.security.encryption;
+
+import com.furdei.furdroid.security.metrics.EncryptionOperation;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>
+ * Encrypted file with support for random-access reads. Unlike files written by
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage EncryptedFileStorage}
+ * that are encrypted as a single piece of data, a chunked file consists of fixed-size chunks of
+ * data that are encrypted independently. Reading a slice of a file requires reading and decrypting
+ * only the chunks the slice touches, so you can page through large encrypted logs and media
+ * without loading the whole file.
+ * </p>
+ * <p>
+ * A file has the following layout: a versioned header, encrypted chunks one by one and
+ * a chunk index containing the offset of each chunk in the file. Chunks encrypted with
+ * a {@link com.furdei.furdroid.security.encryption.CipherSuite} other than
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_ECB AES_ECB} start with their own
+ * initialization vector, the suite is recorded in the header. Chunks encrypted with
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_GCM AES_GCM} also authenticate
+ * their index, so chunks can't be swapped or moved. Use
+ * {@link #write(javax.crypto.Cipher, java.io.File, java.io.InputStream, int)} to create a file
+ * and {@link #open(java.io.File)} to read it:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  ChunkedEncryptedFile file = ChunkedEncryptedFile.open(logFile);
+ *  try {
+ *      byte[] page = file.read(EncryptionUtils.initForDecrypt(), offset, 4096);
+ *  } finally {
+ *      file.close();
+ *  }
+ * }
+ * </pre>
+ *
+ * @see com.furdei.furdroid.security.encryption.EncryptedFileStorage EncryptedFileStorage
+ */
+public class ChunkedEncryptedFile implements Closeable {
+
+    /**
+     * Default size of unencrypted data in a single chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x46444346; // "FDCF"
+    private static final int VERSION_ECB = 1;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int SUITE_HEADER_SIZE = 8;
+    private static final int FLAG_CHUNK_INDEX_AAD = 1;
+    private static final int CIPHER_BLOCK_SIZE = 16;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long length;
+    private final long[] chunkOffsets;
+    private final long indexOffset;
+    private final CipherSuite suite;
+    private final boolean chunkIndexAad;
+
+    private final ByteBuffer encryptedChunk;
+    private final byte[] decryptedChunk;
+    private int decryptedChunkIndex = -1;
+    private int decryptedChunkLength;
+
+    private ChunkedEncryptedFile(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a chunked encrypted file");
+        }
+
+        int version = header.getInt();
+        if (version != VERSION_ECB && version != VERSION) {
+            throw new IOException("Unsupported chunked encrypted file version: " + version);
+        }
+
+        chunkSize = header.getInt();
+        int chunkCount = header.getInt();
+        length = header.getLong();
+        indexOffset = header.getLong();
+
+        if (version == VERSION) {
+            ByteBuffer suiteHeader = ByteBuffer.allocate(SUITE_HEADER_SIZE);
+            readFully(suiteHeader, HEADER_SIZE);
+            int suiteId = suiteHeader.getInt(0);
+            suite = CipherSuite.forId(suiteId);
+            chunkIndexAad = (suiteHeader.getInt(4) & FLAG_CHUNK_INDEX_AAD) != 0;
+
+            if (suite == null) {
+                throw new IOException("Unknown cipher suite: " + suiteId);
+            }
+        } else {
+            suite = CipherSuite.AES_ECB;
+            chunkIndexAad = false;
+        }
+
+        long dataOffset = version == VERSION ? HEADER_SIZE + SUITE_HEADER_SIZE : HEADER_SIZE;
+        long fileLength = file.length();
+
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Chunked encrypted file is damaged, chunk size: " + chunkSize);
+        }
+
+        if (chunkCount < 0 || length < 0 || (length + chunkSize - 1) / chunkSize != chunkCount
+                || indexOffset < dataOffset
+                || indexOffset + chunkCount * 8L != fileLength) {
+            throw new IOException("Chunked encrypted file is damaged or truncated");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(chunkCount * 8);
+        readFully(index, indexOffset);
+        index.flip();
+        chunkOffsets = new long[chunkCount];
+        index.asLongBuffer().get(chunkOffsets);
+
+        int maxChunkSize = maxEncryptedChunkSize(chunkSize);
+        for (int i = 0; i < chunkCount; i++) {
+            long chunkStart = chunkOffsets[i];
+            long chunkEnd = i + 1 < chunkCount ? chunkOffsets[i + 1] : indexOffset;
+
+            if ((i == 0 ? chunkStart != dataOffset : chunkStart < dataOffset)
+                    || chunkEnd - chunkStart <= 0 || chunkEnd - chunkStart > maxChunkSize) {
+                throw new IOException("Chunked encrypted file is damaged, chunk: " + i);
+            }
+        }
+
+        encryptedChunk = ByteBuffer.allocate(maxEncryptedChunkSize(chunkSize));
+        decryptedChunk = new byte[encryptedChunk.capacity()];
+    }
+
+    /**
+     * Open a chunked encrypted file for reading. Only the header and the chunk index are read
+     * here.
+     *
+     * @param file a file previously written with
+     *             {@link #write(javax.crypto.Cipher, java.io.File, java.io.InputStream, int)}
+     * @throws IOException if the file can't be read, has an unknown format or is damaged
+     */
+    public static ChunkedEncryptedFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return new ChunkedEncryptedFile(randomAccessFile);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypt data and write it into a chunked file with the default chunk size
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param rawBytes unencrypted data
+     * @throws IOException
+     */
+    public static void write(Cipher encryptCipher, File file, byte[] rawBytes) throws IOException {
+        write(encryptCipher, file, new ByteArrayInputStream(rawBytes), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Encrypt data read from a stream and write it into a chunked file. Source stream is read
+     * up to the end but is not closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param source unencrypted data
+     * @param chunkSize a size of unencrypted data in a single chunk. Reading any slice of a file
+     *                  requires decryption of at least one whole chunk. At most 16 MB.
+     * @throws IOException
+     */
+    public static void write(Cipher encryptCipher, File file, InputStream source, int chunkSize)
+            throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize out of range. chunkSize: " + chunkSize);
+        }
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            write(encryptCipher, output, source, chunkSize);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Check whether a file has the chunked file header
+     */
+    static boolean isChunkedFile(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.readInt() == MAGIC;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write a chunked file into an open file. The file is not closed.
+     */
+    static void write(Cipher encryptCipher, RandomAccessFile output, InputStream source,
+                      int chunkSize) throws IOException {
+        CipherSuite suite = CipherSuite.of(encryptCipher);
+        boolean chunkIndexAad = suite.getTagLength() > 0;
+        output.setLength(0);
+        output.seek(suite == CipherSuite.AES_ECB ? HEADER_SIZE : HEADER_SIZE + SUITE_HEADER_SIZE);
+
+        byte[] chunk = new byte[chunkSize];
+        byte[] encryptedChunk =
+                new byte[EncryptionUtils.getMaxEncryptedSize(encryptCipher, chunkSize)];
+        long[] offsets = new long[16];
+        int chunkCount = 0;
+        long length = 0;
+        int chunkLength;
+
+        while ((chunkLength = readChunk(source, chunk)) > 0) {
+            if (chunkCount == offsets.length) {
+                long[] newOffsets = new long[offsets.length * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+                offsets = newOffsets;
+            }
+
+            offsets[chunkCount] = output.getFilePointer();
+            int encryptedLength = EncryptionUtils.encrypt(encryptCipher,
+                    chunkIndexAad ? chunkAad(chunkCount) : null, chunk, 0, chunkLength,
+                    encryptedChunk, 0);
+            chunkCount++;
+            output.write(encryptedChunk, 0, encryptedLength);
+            length += chunkLength;
+        }
+
+        long indexOffset = output.getFilePointer();
+        ByteBuffer index = ByteBuffer.allocate(chunkCount * 8);
+        index.asLongBuffer().put(offsets, 0, chunkCount);
+        output.write(index.array());
+
+        output.seek(0);
+        output.writeInt(MAGIC);
+        // files of the original suite keep the first version readable by older versions
+        output.writeInt(suite == CipherSuite.AES_ECB ? VERSION_ECB : VERSION);
+        output.writeInt(chunkSize);
+        output.writeInt(chunkCount);
+        output.writeLong(length);
+        output.writeLong(indexOffset);
+
+        if (suite != CipherSuite.AES_ECB) {
+            output.writeInt(suite.getId());
+            output.writeInt(chunkIndexAad ? FLAG_CHUNK_INDEX_AAD : 0);
+        }
+    }
+
+    /**
+     * Returns the length of unencrypted data stored in the file
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the size of unencrypted data in a single chunk of the file
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Read and decrypt a slice of the file
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param position an offset of the slice in unencrypted data
+     * @param length a length of the slice. Returned slice is shorter if the end of the file is
+     *               reached.
+     * @return decrypted data
+     * @throws IOException
+     */
+    public byte[] read(Cipher decryptCipher, long position, int length) throws IOException {
+        int available = (int) Math.max(0, Math.min(length, this.length - position));
+        byte[] result = new byte[available];
+        int offset = 0;
+
+        while (offset < available) {
+            offset += read(decryptCipher, position + offset, result, offset, available - offset);
+        }
+
+        return result;
+    }
+
+    /**
+     * Read and decrypt a slice of the file into a buffer. Only the chunks the slice touches are
+     * read and decrypted.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param position an offset of the slice in unencrypted data
+     * @param buffer a buffer for decrypted data
+     * @param offset an offset in the buffer
+     * @param length a maximum number of bytes to read
+     * @return the number of bytes actually read or -1 if <code>position</code> is beyond the end
+     * of the file
+     * @throws IOException
+     */
+    public synchronized int read(Cipher decryptCipher, long position, byte[] buffer, int offset,
+                                 int length) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0. position: " + position);
+        }
+
+        if (position >= this.length) {
+            return -1;
+        }
+
+        long start = EncryptionUtils.startMetrics();
+        int bytesRead = 0;
+
+        while (bytesRead < length && position < this.length) {
+            int chunkIndex = (int) (position / chunkSize);
+            int chunkOffset = (int) (position % chunkSize);
+            decryptChunk(decryptCipher, chunkIndex);
+
+            int count = Math.min(length - bytesRead, decryptedChunkLength - chunkOffset);
+            System.arraycopy(decryptedChunk, chunkOffset, buffer, offset + bytesRead, count);
+            bytesRead += count;
+            position += count;
+        }
+
+        EncryptionUtils.recordMetrics(start, EncryptionOperation.FILE_READ, null, null, bytesRead);
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        decryptedChunkIndex = -1;
+        Arrays.fill(decryptedChunk, (byte) 0);
+        file.close();
+    }
+
+    private void decryptChunk(Cipher decryptCipher, int chunkIndex) throws IOException {
+        if (chunkIndex == decryptedChunkIndex) {
+            return;
+        }
+
+        long start = chunkOffsets[chunkIndex];
+        long end = chunkIndex + 1 < chunkOffsets.length ?
+                chunkOffsets[chunkIndex + 1] : indexOffset;
+
+        encryptedChunk.clear();
+        encryptedChunk.limit((int) (end - start));
+        readFully(encryptedChunk, start);
+
+        decryptedChunkIndex = -1;
+        decryptedChunkLength = EncryptionUtils.decrypt(decryptCipher, suite,
+                chunkIndexAad ? chunkAad(chunkIndex) : null,
+                encryptedChunk.array(), 0, encryptedChunk.limit(), decryptedChunk, 0);
+
+        // every chunk but the last one is full, chunks that were swapped or shifted are not
+        long expectedLength = chunkIndex + 1 < chunkOffsets.length ?
+                chunkSize : length - (long) chunkIndex * chunkSize;
+        if (decryptedChunkLength != expectedLength) {
+            Arrays.fill(decryptedChunk, (byte) 0);
+            throw new IOException("Chunked encrypted file is damaged, chunk: " + chunkIndex);
+        }
+
+        decryptedChunkIndex = chunkIndex;
+    }
+
+    private static byte[] chunkAad(int chunkIndex) {
+        return ByteBuffer.allocate(4).putInt(chunkIndex).array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Chunked encrypted file is truncated");
+            }
+            position += bytesRead;
+        }
+    }
+
+    private static int readChunk(InputStream source, byte[] chunk) throws IOException {
+        int chunkLength = 0;
+        int bytesRead;
+
+        while (chunkLength < chunk.length
+                && (bytesRead = source.read(chunk, chunkLength, chunk.length - chunkLength)) >= 0) {
+            chunkLength += bytesRead;
+        }
+
+        return chunkLength;
+    }
+
+    private static int maxEncryptedChunkSize(int chunkSize) {
+        // PKCS5 padding adds up to a whole block, other suites add an IV and a tag
+        return Math.max((chunkSize / CIPHER_BLOCK_SIZE + 1) * CIPHER_BLOCK_SIZE,
+                CipherSuite.MAX_IV_LENGTH + chunkSize + CipherSuite.MAX_TAG_LENGTH);
+    }
+}
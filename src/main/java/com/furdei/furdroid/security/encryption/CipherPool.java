@@ -0,0 +1,130 @@
+package com.furdei.furdroid.security.encryption;
+
+import com.furdei.furdroid.security.metrics.EncryptionOperation;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * A pool of initialized {@link javax.crypto.Cipher} instances. Looking up a cipher provider and
+ * initializing a cipher with a key is expensive so ciphers are reused once released. All pooled
+ * ciphers are dropped when the key changes. Each {@link CipherSuite} has its own pool. The pool
+ * is thread-safe. It is used by
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#borrowCipher(int)}.
+ */
+final class CipherPool {
+
+    private static final int MAX_IDLE_CIPHERS = 8;
+
+    private final CipherSuite suite;
+    private volatile Generation generation = new Generation(null);
+    private final Map<Cipher, Generation> borrowedForEncrypt =
+            Collections.synchronizedMap(new WeakHashMap<Cipher, Generation>());
+    private final Map<Cipher, Generation> borrowedForDecrypt =
+            Collections.synchronizedMap(new WeakHashMap<Cipher, Generation>());
+
+    CipherPool(CipherSuite suite) {
+        this.suite = suite;
+    }
+
+    /**
+     * Drop all idle ciphers and start creating new ones with a new key. Ciphers borrowed before
+     * this call are not returned to the pool when released.
+     */
+    void setKey(SecretKey key) {
+        generation = new Generation(key);
+    }
+
+    /**
+     * Take an idle cipher or create a new one
+     *
+     * @param mode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *             {@link javax.crypto.Cipher#DECRYPT_MODE}
+     */
+    Cipher borrow(int mode)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Generation current = generation;
+
+        if (current.key == null) {
+            throw new IllegalStateException("Password has not been specified. Call " +
+                    "EncryptionUtils.setPassword(String) first.");
+        }
+
+        Queue<Cipher> idle = current.idle(mode);
+        Cipher cipher = idle.poll();
+
+        if (cipher != null) {
+            current.idleCount(mode).decrementAndGet();
+        } else {
+            long start = EncryptionUtils.startMetrics();
+            cipher = CipherSuites.create(suite, mode, current.key);
+            EncryptionUtils.recordMetrics(start, EncryptionOperation.CIPHER_INIT, null, null, 0);
+        }
+
+        borrowed(mode).put(cipher, current);
+        return cipher;
+    }
+
+    /**
+     * Return a cipher to the pool. Cipher must not be used after it is released.
+     */
+    void release(Cipher cipher) {
+        if (cipher == null) {
+            return;
+        }
+
+        int mode = Cipher.ENCRYPT_MODE;
+        Generation owner = borrowedForEncrypt.remove(cipher);
+
+        if (owner == null) {
+            mode = Cipher.DECRYPT_MODE;
+            owner = borrowedForDecrypt.remove(cipher);
+        }
+
+        if (owner == null || owner != generation) {
+            // not borrowed from this pool or borrowed with an outdated key
+            return;
+        }
+
+        if (owner.idleCount(mode).incrementAndGet() <= MAX_IDLE_CIPHERS) {
+            owner.idle(mode).offer(cipher);
+        } else {
+            owner.idleCount(mode).decrementAndGet();
+        }
+    }
+
+    private Map<Cipher, Generation> borrowed(int mode) {
+        return mode == Cipher.ENCRYPT_MODE ? borrowedForEncrypt : borrowedForDecrypt;
+    }
+
+    private static final class Generation {
+
+        private final SecretKey key;
+        private final Queue<Cipher> idleEncrypt = new ConcurrentLinkedQueue<Cipher>();
+        private final Queue<Cipher> idleDecrypt = new ConcurrentLinkedQueue<Cipher>();
+        private final AtomicInteger idleEncryptCount = new AtomicInteger();
+        private final AtomicInteger idleDecryptCount = new AtomicInteger();
+
+        private Generation(SecretKey key) {
+            this.key = key;
+        }
+
+        private Queue<Cipher> idle(int mode) {
+            return mode == Cipher.ENCRYPT_MODE ? idleEncrypt : idleDecrypt;
+        }
+
+        private AtomicInteger idleCount(int mode) {
+            return mode == Cipher.ENCRYPT_MODE ? idleEncryptCount : idleDecryptCount;
+        }
+    }
+}
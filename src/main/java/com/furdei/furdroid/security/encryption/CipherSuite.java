@@ -0,0 +1,143 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>
+ * Cipher suites used to encrypt data. A suite is selected with
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#setCipherSuite(CipherSuite)}
+ * and applies to data encrypted after that call. Data encrypted with other suites is still
+ * readable: every value and file encrypted with a suite other than {@link #AES_ECB} carries
+ * the identifier of its suite and a random initialization vector.
+ * </p><p>
+ * {@link #AES_ECB} is the default suite, it is the only format understood by older versions of
+ * the library. Equal values encrypted with {@link #AES_ECB} produce equal encrypted data,
+ * {@link #AES_CTR} and {@link #AES_GCM} don't have this weakness. Counter based suites don't pad
+ * data and let files be decrypted from any position, see
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage#read(javax.crypto.Cipher,
+ * java.io.File, long, int)}. {@link #AES_GCM} also detects tampering with encrypted data, but
+ * needs Android 4.4 or later.
+ * </p>
+ */
+public enum CipherSuite {
+
+    /**
+     * AES in ECB mode with PKCS#5 padding. No initialization vector.
+     */
+    AES_ECB(0, "AES/ECB/PKCS5Padding", 0, 0),
+
+    /**
+     * AES in counter mode with a random 16-byte initial counter block. No padding.
+     */
+    AES_CTR(1, "AES/CTR/NoPadding", 16, 0),
+
+    /**
+     * AES in Galois/Counter mode with a random 12-byte nonce and a 16-byte authentication tag.
+     * Requires Android 4.4.
+     */
+    AES_GCM(2, "AES/GCM/NoPadding", 12, 16);
+
+    /**
+     * The largest initialization vector among all suites
+     */
+    static final int MAX_IV_LENGTH = 16;
+
+    /**
+     * The largest authentication tag among all suites
+     */
+    static final int MAX_TAG_LENGTH = 16;
+
+    private final int id;
+    private final String transformation;
+    private final int ivLength;
+    private final int tagLength;
+
+    CipherSuite(int id, String transformation, int ivLength, int tagLength) {
+        this.id = id;
+        this.transformation = transformation;
+        this.ivLength = ivLength;
+        this.tagLength = tagLength;
+    }
+
+    /**
+     * Returns the identifier of the suite stored with encrypted data
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the transformation passed to {@link javax.crypto.Cipher#getInstance(String)}
+     */
+    public String getTransformation() {
+        return transformation;
+    }
+
+    /**
+     * Returns the length of the initialization vector stored in front of encrypted data
+     */
+    public int getIvLength() {
+        return ivLength;
+    }
+
+    /**
+     * Returns the length of the authentication tag appended to encrypted data
+     */
+    public int getTagLength() {
+        return tagLength;
+    }
+
+    /**
+     * Returns a suite by its identifier or <code>null</code> if the identifier is unknown
+     */
+    public static CipherSuite forId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a suite of a cipher. Ciphers created for any transformation not listed here are
+     * treated as {@link #AES_ECB}, which is what "AES" stands for on all providers.
+     */
+    public static CipherSuite of(Cipher cipher) {
+        String algorithm = cipher.getAlgorithm();
+
+        for (CipherSuite suite : values()) {
+            if (suite.transformation.equalsIgnoreCase(algorithm)) {
+                return suite;
+            }
+        }
+
+        return AES_ECB;
+    }
+
+    /**
+     * Returns cipher parameters for an initialization vector
+     */
+    AlgorithmParameterSpec parameters(byte[] iv) {
+        if (this == AES_GCM) {
+            return Api19.gcmParameters(tagLength, iv);
+        }
+
+        return new IvParameterSpec(iv);
+    }
+
+    /**
+     * Methods of API 19 are kept in a separate class so that it is never loaded on older devices
+     */
+    private static class Api19 {
+
+        private static AlgorithmParameterSpec gcmParameters(int tagLength, byte[] iv) {
+            return new GCMParameterSpec(tagLength * 8, iv);
+        }
+    }
+}
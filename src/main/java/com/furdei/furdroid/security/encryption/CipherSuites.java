@@ -0,0 +1,214 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Helpers for ciphers of different {@link CipherSuite suites}. Ciphers of suites with
+ * an initialization vector have to be initialized again for every value, so the key of every
+ * cipher created by the library is remembered. The same key is used to decrypt data encrypted
+ * with a suite other than the suite of the cipher passed by caller. Keys are looked up in
+ * a synchronized registry, the last cipher and key are cached per thread so that the registry
+ * isn't locked for every value.
+ */
+final class CipherSuites {
+
+    private static final Map<Cipher, SecretKey> keys =
+            Collections.synchronizedMap(new WeakHashMap<Cipher, SecretKey>());
+    private static final ThreadLocal<SecureRandom> randoms = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+    private static final ThreadLocal<SharedCiphers> sharedCiphers =
+            new ThreadLocal<SharedCiphers>() {
+                @Override
+                protected SharedCiphers initialValue() {
+                    return new SharedCiphers();
+                }
+            };
+
+    private CipherSuites() {
+    }
+
+    /**
+     * Create a cipher of a suite and remember its key
+     *
+     * @param mode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *             {@link javax.crypto.Cipher#DECRYPT_MODE}
+     */
+    static Cipher create(CipherSuite suite, int mode, SecretKey key)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+
+        if (suite.getIvLength() == 0) {
+            cipher.init(mode, key);
+        } else {
+            try {
+                cipher.init(mode, key, suite.parameters(newIv(suite)));
+            } catch (InvalidAlgorithmParameterException e) {
+                InvalidKeyException keyException =
+                        new InvalidKeyException("Unable to initialize " + suite + " cipher");
+                keyException.initCause(e);
+                throw keyException;
+            }
+        }
+
+        keys.put(cipher, key);
+        return cipher;
+    }
+
+    /**
+     * Generate a random initialization vector for a suite
+     */
+    static byte[] newIv(CipherSuite suite) {
+        byte[] iv = new byte[suite.getIvLength()];
+        randoms.get().nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Get a cipher ready to process a single value or stream of a suite. If the cipher passed by
+     * caller belongs to the suite, it is used, otherwise a cipher of the suite is initialized with
+     * the key of the caller's cipher.
+     *
+     * @param handle a cipher passed by caller
+     * @param suite a suite of data
+     * @param mode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *             {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @param iv an initialization vector or <code>null</code> if the suite doesn't use one
+     * @param shared <code>true</code> to use a per-thread cipher that is valid until the next
+     *               call on this thread, <code>false</code> to create a new one
+     * @throws IOException if the cipher passed by caller hasn't been created by the library
+     */
+    static Cipher prepare(Cipher handle, CipherSuite suite, int mode, byte[] iv, boolean shared)
+            throws IOException {
+        try {
+            if (CipherSuite.of(handle) == suite) {
+                if (iv != null) {
+                    handle.init(mode, keyOf(handle), suite.parameters(iv));
+                }
+                return handle;
+            }
+
+            SecretKey key = keyOf(handle);
+
+            if (!shared) {
+                Cipher cipher = Cipher.getInstance(suite.getTransformation());
+                init(cipher, suite, mode, key, iv);
+                return cipher;
+            }
+
+            SharedCiphers ciphers = sharedCiphers.get();
+            int slot = suite.ordinal() * 2 + (mode == Cipher.ENCRYPT_MODE ? 0 : 1);
+            Cipher cipher = ciphers.ciphers[slot];
+
+            if (cipher == null) {
+                cipher = Cipher.getInstance(suite.getTransformation());
+                ciphers.ciphers[slot] = cipher;
+            } else if (iv == null && ciphers.keys[slot] == key) {
+                // ciphers without initialization vector are reset by doFinal
+                return cipher;
+            }
+
+            ciphers.keys[slot] = null;
+            init(cipher, suite, mode, key, iv);
+            ciphers.keys[slot] = key;
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw EncryptionUtils.cryptoError("Unable to initialize " + suite + " cipher", e);
+        }
+    }
+
+    /**
+     * Initialize a cipher returned by
+     * {@link #prepare(javax.crypto.Cipher, CipherSuite, int, byte[], boolean)} again with a new
+     * initialization vector
+     *
+     * @param cipher a cipher to initialize
+     * @param handle a cipher passed by caller
+     * @param suite a suite of the cipher
+     * @param mode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *             {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @param iv an initialization vector
+     * @throws IOException
+     */
+    static void reinit(Cipher cipher, Cipher handle, CipherSuite suite, int mode, byte[] iv)
+            throws IOException {
+        try {
+            cipher.init(mode, keyOf(handle), suite.parameters(iv));
+        } catch (GeneralSecurityException e) {
+            throw EncryptionUtils.cryptoError("Unable to initialize " + suite + " cipher", e);
+        }
+    }
+
+    /**
+     * Pass additional authenticated data to a cipher of a suite with an authentication tag. Must
+     * be called after the cipher is initialized and before any data is processed.
+     */
+    static void updateAad(Cipher cipher, byte[] aad) {
+        Api19.updateAad(cipher, aad);
+    }
+
+    private static void init(Cipher cipher, CipherSuite suite, int mode, SecretKey key, byte[] iv)
+            throws GeneralSecurityException {
+        if (iv != null) {
+            cipher.init(mode, key, suite.parameters(iv));
+        } else {
+            cipher.init(mode, key);
+        }
+    }
+
+    private static SecretKey keyOf(Cipher handle) throws IOException {
+        SharedCiphers ciphers = sharedCiphers.get();
+        if (ciphers.lastHandle != null && ciphers.lastHandle.get() == handle) {
+            SecretKey key = ciphers.lastKey.get();
+            if (key != null) {
+                return key;
+            }
+        }
+
+        SecretKey key = keys.get(handle);
+
+        if (key == null) {
+            throw new IOException("Cipher has not been created by EncryptionUtils, its key " +
+                    "is unknown");
+        }
+
+        // references are weak, the cache mustn't keep ciphers and keys in memory
+        ciphers.lastHandle = new WeakReference<Cipher>(handle);
+        ciphers.lastKey = new WeakReference<SecretKey>(key);
+        return key;
+    }
+
+    /**
+     * Methods of API 19 are kept in a separate class so that it is never loaded on older devices
+     */
+    private static class Api19 {
+
+        private static void updateAad(Cipher cipher, byte[] aad) {
+            cipher.updateAAD(aad);
+        }
+    }
+
+    private static class SharedCiphers {
+
+        private final Cipher[] ciphers = new Cipher[CipherSuite.values().length * 2];
+        private final SecretKey[] keys = new SecretKey[ciphers.length];
+        private WeakReference<Cipher> lastHandle;
+        private WeakReference<SecretKey> lastKey;
+    }
+}
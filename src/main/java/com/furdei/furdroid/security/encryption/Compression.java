@@ -0,0 +1,190 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression applied to data before encryption. Encrypted data doesn't compress, so
+ * compression has to take place before encryption. Data that doesn't shrink by at least
+ * {@link #MIN_SAVING_PERCENT} percent is left uncompressed. Compressed values start with
+ * the length of uncompressed data.
+ */
+final class Compression {
+
+    /**
+     * The number of leading bytes tried to decide whether data is worth compressing
+     */
+    static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * Data shorter than this is never compressed, deflate overhead outweighs the gain
+     */
+    static final int MIN_LENGTH = 128;
+
+    /**
+     * Data is compressed only if it shrinks by at least this number of percent
+     */
+    static final int MIN_SAVING_PERCENT = 10;
+
+    /**
+     * Deflate never shrinks data more than this number of times
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static final int LENGTH_SIZE = 4;
+    private static final int SCRATCH_SIZE = 512;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private Compression() {
+    }
+
+    /**
+     * Compress a sample of data and check whether it shrinks enough
+     *
+     * @param data a buffer containing data
+     * @param offset an offset of data in the buffer
+     * @param length a length of data. Only the first {@link #SAMPLE_SIZE} bytes are compressed.
+     */
+    static boolean isCompressible(byte[] data, int offset, int length) {
+        if (length < MIN_LENGTH) {
+            return false;
+        }
+
+        int sampleLength = Math.min(length, SAMPLE_SIZE);
+        int limit = maxCompressedLength(sampleLength);
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data, offset, sampleLength);
+            deflater.finish();
+
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < limit) {
+                compressedLength += deflater.deflate(scratch);
+            }
+
+            return deflater.finished() && compressedLength < limit;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Compress a value. Values longer than {@link #SAMPLE_SIZE} are checked with
+     * {@link #isCompressible(byte[], int, int)} first, so incompressible values are never
+     * compressed in full.
+     *
+     * @return compressed value or <code>null</code> if the value doesn't shrink enough
+     */
+    static byte[] compress(byte[] data) {
+        if (data.length < MIN_LENGTH) {
+            return null;
+        }
+
+        if (data.length > SAMPLE_SIZE && !isCompressible(data, 0, data.length)) {
+            return null;
+        }
+
+        byte[] buffer = new byte[LENGTH_SIZE + maxCompressedLength(data.length)];
+        writeLength(buffer, data.length);
+        int length = LENGTH_SIZE;
+
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(data, 0, data.length);
+            deflater.finish();
+
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            if (!deflater.finished()) {
+                Arrays.fill(buffer, (byte) 0);
+                return null;
+            }
+        } finally {
+            deflater.reset();
+        }
+
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        Arrays.fill(buffer, (byte) 0);
+        return compressed;
+    }
+
+    /**
+     * Decompress a value produced by {@link #compress(byte[])}
+     *
+     * @param data a buffer containing compressed value
+     * @param offset an offset of the value in the buffer
+     * @param length a length of the value
+     * @return decompressed value
+     * @throws IOException if the value is damaged
+     */
+    static byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        if (length < LENGTH_SIZE) {
+            throw new IOException("Compressed value is damaged");
+        }
+
+        int rawLength = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+                ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        // a damaged length mustn't make us allocate more than the data can possibly hold
+        if (rawLength < 0 || rawLength > (long) (length - LENGTH_SIZE) * MAX_DEFLATE_RATIO) {
+            throw new IOException("Compressed value is damaged");
+        }
+
+        byte[] raw = new byte[rawLength];
+        int rawOffset = 0;
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(data, offset + LENGTH_SIZE, length - LENGTH_SIZE);
+
+            while (rawOffset < rawLength) {
+                int inflated = inflater.inflate(raw, rawOffset, rawLength - rawOffset);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                rawOffset += inflated;
+            }
+        } catch (DataFormatException e) {
+            IOException ioException = new IOException("Compressed value is damaged");
+            ioException.initCause(e);
+            throw ioException;
+        } finally {
+            inflater.reset();
+        }
+
+        if (rawOffset != rawLength) {
+            throw new IOException("Compressed value is damaged");
+        }
+
+        return raw;
+    }
+
+    private static int maxCompressedLength(int length) {
+        return (int) ((long) length * (100 - MIN_SAVING_PERCENT) / 100);
+    }
+
+    private static void writeLength(byte[] buffer, int length) {
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+    }
+}
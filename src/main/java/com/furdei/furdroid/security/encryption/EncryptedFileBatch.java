@@ -0,0 +1,340 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>
+ * Reads and writes many encrypted files in parallel. Files are processed by a fixed number of
+ * workers running on an executor supplied by caller, each worker uses its own
+ * {@link javax.crypto.Cipher} taken by
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#borrowCipher(int)}. The total
+ * size of files being processed at the same time is limited, so the batch doesn't run out of
+ * memory whatever the number of files is. A failure of one file doesn't stop the batch, results
+ * are reported for each file. Only an {@link java.lang.Error} stops the batch, it is rethrown on
+ * the calling thread:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  EncryptedFileBatch batch = new EncryptedFileBatch(executor);
+ *  for (EncryptedFileBatch.Result result : batch.writeAll(files)) {
+ *      if (!result.isSuccessful()) {
+ *          Log.w(TAG, "Unable to write " + result.getFile(), result.getError());
+ *      }
+ *  }
+ * }
+ * </pre>
+ *
+ * @see com.furdei.furdroid.security.encryption.EncryptedFileStorage EncryptedFileStorage
+ */
+public class EncryptedFileBatch {
+
+    /**
+     * Default limit of the total size of files processed at the same time
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Receives decrypted files read by {@link #readAll(java.util.Collection, ReadCallback)}
+     */
+    public interface ReadCallback {
+
+        /**
+         * Called on a worker thread for each file that has been read and decrypted. Callback is
+         * called concurrently by different workers. Decrypted data is released when this method
+         * returns, so a slow callback holds back other workers.
+         *
+         * @param file a file
+         * @param data decrypted content of the file
+         * @throws IOException
+         */
+        void onFileRead(File file, byte[] data) throws IOException;
+    }
+
+    /**
+     * Result of processing a single file
+     */
+    public static final class Result {
+
+        private final File file;
+        private final long length;
+        private final Exception error;
+
+        private Result(File file, long length, Exception error) {
+            this.file = file;
+            this.length = length;
+            this.error = error;
+        }
+
+        /**
+         * Returns the file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the length of unencrypted data that has been written or read
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns <code>true</code> if the file has been processed successfully
+         */
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * Returns an error that occurred while processing the file or <code>null</code>
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return file + (error == null ? ": " + length + " bytes" : ": " + error);
+        }
+    }
+
+    private final Executor executor;
+    private final int workerCount;
+    private final int maxInFlightBytes;
+
+    /**
+     * Create a batch with a worker per available processor and
+     * {@link #DEFAULT_MAX_IN_FLIGHT_BYTES} limit
+     *
+     * @param executor an executor to run workers on
+     */
+    public EncryptedFileBatch(Executor executor) {
+        this(executor, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    /**
+     * @param executor an executor to run workers on
+     * @param workerCount the maximum number of files processed in parallel
+     * @param maxInFlightBytes the maximum total size of files processed at the same time. A file
+     *                         larger than this limit is processed alone.
+     */
+    public EncryptedFileBatch(Executor executor, int workerCount, int maxInFlightBytes) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount <= 0. workerCount: " + workerCount);
+        }
+
+        if (maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("maxInFlightBytes <= 0. maxInFlightBytes: "
+                    + maxInFlightBytes);
+        }
+
+        this.executor = executor;
+        this.workerCount = workerCount;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Encrypt and write files in parallel
+     *
+     * @param files unencrypted content of files keyed by files. Use a map with predictable
+     *              iteration order, e.g. {@link java.util.LinkedHashMap}, to get results in
+     *              the same order.
+     * @return results in the iteration order of <code>files</code>
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<Result> writeAll(Map<File, byte[]> files) throws InterruptedIOException {
+        final List<File> fileList = new ArrayList<File>(files.keySet());
+        final List<byte[]> dataList = new ArrayList<byte[]>(files.values());
+
+        return run(fileList, Cipher.ENCRYPT_MODE, new Task() {
+            @Override
+            public long size(int index) {
+                return dataList.get(index).length;
+            }
+
+            @Override
+            public long process(int index, Cipher cipher) throws IOException {
+                byte[] data = dataList.get(index);
+                EncryptedFileStorage.write(cipher, fileList.get(index), data);
+                return data.length;
+            }
+        });
+    }
+
+    /**
+     * Encrypt files in parallel into temporary files of a group commit. Target files are not
+     * changed until {@link com.furdei.furdroid.security.encryption.GroupCommit#commit()} is
+     * called.
+     *
+     * @param files unencrypted content of files keyed by files
+     * @param groupCommit a group commit to add files to
+     * @return results in the iteration order of <code>files</code>
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<Result> writeAll(Map<File, byte[]> files, final GroupCommit groupCommit)
+            throws InterruptedIOException {
+        final List<File> fileList = new ArrayList<File>(files.keySet());
+        final List<byte[]> dataList = new ArrayList<byte[]>(files.values());
+
+        return run(fileList, Cipher.ENCRYPT_MODE, new Task() {
+            @Override
+            public long size(int index) {
+                return dataList.get(index).length;
+            }
+
+            @Override
+            public long process(int index, Cipher cipher) throws IOException {
+                byte[] data = dataList.get(index);
+                groupCommit.write(cipher, fileList.get(index), data);
+                return data.length;
+            }
+        });
+    }
+
+    /**
+     * Read and decrypt all files of a directory in parallel. Subdirectories and temporary files
+     * of atomic writes are not read.
+     *
+     * @param dir a directory
+     * @param callback a callback receiving decrypted files
+     * @return results sorted by file name
+     * @throws IOException if the directory can't be listed
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<Result> readAll(File dir, ReadCallback callback) throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && !AtomicFiles.isTempFile(file);
+            }
+        });
+
+        if (files == null) {
+            throw new IOException("Unable to list directory " + dir);
+        }
+
+        Arrays.sort(files);
+        return readAll(Arrays.asList(files), callback);
+    }
+
+    /**
+     * Read and decrypt files in parallel
+     *
+     * @param files files to read
+     * @param callback a callback receiving decrypted files
+     * @return results in the iteration order of <code>files</code>
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public List<Result> readAll(Collection<File> files, final ReadCallback callback)
+            throws InterruptedIOException {
+        final List<File> fileList = new ArrayList<File>(files);
+
+        return run(fileList, Cipher.DECRYPT_MODE, new Task() {
+            @Override
+            public long size(int index) {
+                return fileList.get(index).length();
+            }
+
+            @Override
+            public long process(int index, Cipher cipher) throws IOException {
+                File file = fileList.get(index);
+                byte[] data = EncryptedFileStorage.read(cipher, file);
+                callback.onFileRead(file, data);
+                return data.length;
+            }
+        });
+    }
+
+    private List<Result> run(final List<File> files, final int mode, final Task task)
+            throws InterruptedIOException {
+        final int fileCount = files.size();
+        final Result[] results = new Result[fileCount];
+        final AtomicInteger nextFile = new AtomicInteger();
+        final Semaphore inFlightBytes = new Semaphore(maxInFlightBytes);
+        final int workers = Math.min(workerCount, fileCount);
+        final CountDownLatch done = new CountDownLatch(workers);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Cipher cipher = null;
+                    try {
+                        int index;
+                        while ((index = nextFile.getAndIncrement()) < fileCount) {
+                            int permits = (int) Math.min(Math.max(task.size(index), 1),
+                                    maxInFlightBytes);
+                            inFlightBytes.acquireUninterruptibly(permits);
+
+                            try {
+                                if (cipher == null) {
+                                    cipher = EncryptionUtils.borrowCipher(mode);
+                                }
+
+                                long length = task.process(index, cipher);
+                                results[index] = new Result(files.get(index), length, null);
+                            } catch (Exception e) {
+                                results[index] = new Result(files.get(index), 0, e);
+                                // cipher may be left in the middle of an operation
+                                cipher = null;
+                            } finally {
+                                inFlightBytes.release(permits);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        // errors are rethrown on the calling thread, the rest of files is skipped
+                        error.compareAndSet(null, e);
+                        nextFile.set(fileCount);
+                        cipher = null;
+                    } finally {
+                        EncryptionUtils.releaseCipher(cipher);
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // skip the files that haven't been started yet
+            nextFile.set(fileCount);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("File batch has been interrupted");
+        }
+
+        Throwable e = error.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw (RuntimeException) e;
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private interface Task {
+
+        long size(int index);
+
+        long process(int index, Cipher cipher) throws IOException;
+    }
+}
@@ -1,17 +1,66 @@
 package com.furdei.furdroid.security.encryption;
 
-import java.io.DataInputStream;
+import com.furdei.furdroid.security.metrics.EncryptionOperation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 
 /**
  * Provides APIs to store/retrieve encrypted data into/from application file storage. See
  * {@link com.furdei.furdroid.security.encryption.EncryptionUtils EncryptionUtils} for details
  * about configuring and working with encrypted storage.
+ * <p>
+ * Large files should be accessed through
+ * {@link #openEncryptingOutputStream(javax.crypto.Cipher, java.io.File)} and
+ * {@link #openDecryptingInputStream(javax.crypto.Cipher, java.io.File)}. Data is encrypted and
+ * decrypted on the fly while it passes through these streams, so heap usage is bounded by a fixed
+ * size buffer whatever the size of the file.
+ * </p>
+ * <p>
+ * Regular writes overwrite files in place, a crash in the middle of a write leaves a truncated
+ * file that can't be decrypted. Use
+ * {@link #writeAtomically(javax.crypto.Cipher, java.io.File, byte[])} when a file must keep
+ * either its old or its new content. Use
+ * {@link com.furdei.furdroid.security.encryption.GroupCommit GroupCommit} to write many small
+ * files atomically with fewer disk flushes.
+ * </p>
+ * <p>
+ * Text documents such as JSON and XML usually shrink several times when compressed, but
+ * encrypted data doesn't compress. Files written by
+ * {@link #writeCompressed(javax.crypto.Cipher, java.io.File, java.io.InputStream)} are deflated
+ * before encryption, so there is less data to encrypt and to write. Such files start with
+ * a short unencrypted header. All the read methods detect the header and decompress data
+ * transparently.
+ * </p>
+ * <p>
+ * Files encrypted with a {@link com.furdei.furdroid.security.encryption.CipherSuite} other than
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_ECB AES_ECB} have the same
+ * header followed by a random initialization vector. Files encrypted with
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_CTR AES_CTR} can be read from
+ * any position without decrypting preceding data, see
+ * {@link #read(javax.crypto.Cipher, java.io.File, long, int)}. Files encrypted with
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_GCM AES_GCM} are split into
+ * segments of 64 KB authenticated separately, so a stream never holds more than a segment of
+ * unverified data. The last segment is marked, a truncated file fails to decrypt.
+ * </p>
  *
  * @see com.furdei.furdroid.security.encryption.EncryptionUtils EncryptionUtils
  *
@@ -19,6 +68,273 @@ import javax.crypto.Cipher;
  */
 public class EncryptedFileStorage {
 
+    private static final int BUFFER_SIZE = 8192;
+    private static final int FORMAT_MAGIC = 0x46444546; // "FDEF"
+    private static final int FORMAT_VERSION_DEFLATE = 1;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int FLAG_DEFLATE = 1;
+    private static final int FLAG_SEGMENTED = 2;
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int CIPHER_BLOCK_SIZE = 16;
+
+    /**
+     * Open a stream that encrypts everything written into it and stores encrypted data into
+     * a file. Caller is responsible for closing the stream. Encryption is finished when the stream
+     * is closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @return a stream accepting unencrypted data
+     * @throws IOException
+     */
+    public static OutputStream openEncryptingOutputStream(Cipher encryptCipher, File file)
+            throws IOException {
+        OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            return openCipherOutputStream(encryptCipher, fileStream, 0);
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a stream that reads and decrypts data from a file. Caller is responsible for closing
+     * the stream.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param file source file
+     * @return a stream of decrypted data
+     * @throws IOException
+     */
+    public static InputStream openDecryptingInputStream(Cipher decryptCipher, File file)
+            throws IOException {
+        InputStream fileStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        Header header;
+        Cipher cipher = decryptCipher;
+        InputStream decryptingStream = null;
+        try {
+            header = readHeader(fileStream, file.length());
+
+            if (header != null && header.suite.getIvLength() > 0) {
+                byte[] iv = new byte[header.suite.getIvLength()];
+                if (readFully(fileStream, iv) < iv.length) {
+                    throw new IOException("Encrypted file header is truncated");
+                }
+
+                if ((header.flags & FLAG_SEGMENTED) != 0) {
+                    decryptingStream = new SegmentDecryptingInputStream(fileStream, decryptCipher,
+                            header.suite, iv);
+                } else {
+                    cipher = CipherSuites.prepare(decryptCipher, header.suite,
+                            Cipher.DECRYPT_MODE, iv, false);
+                }
+            } else if (header != null || CipherSuite.of(decryptCipher) != CipherSuite.AES_ECB) {
+                CipherSuite suite = header != null ? header.suite : CipherSuite.AES_ECB;
+                cipher = CipherSuites.prepare(decryptCipher, suite, Cipher.DECRYPT_MODE, null,
+                        false);
+            }
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+
+        if (decryptingStream == null) {
+            decryptingStream = new CipherInputStream(fileStream, cipher);
+        }
+
+        return header != null && (header.flags & FLAG_DEFLATE) != 0 ?
+                new InflaterInputStream(decryptingStream) : decryptingStream;
+    }
+
+    /**
+     * Encrypt data read from a stream and write encrypted data into a file. Source stream is
+     * read up to the end but is not closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param source unencrypted data
+     * @throws IOException
+     */
+    public static void write(Cipher encryptCipher, File file, InputStream source)
+            throws IOException {
+        write(encryptCipher, new FileOutputStream(file), source);
+    }
+
+    /**
+     * Encrypt data read from a stream and replace a file with encrypted data atomically. Data
+     * is written into a temporary file in the same directory, flushed to disk and renamed over
+     * the target file, so the file keeps either its old or its new content after a crash.
+     * A temporary file left by a crash is removed by {@link #deleteTempFiles(java.io.File)}.
+     * Source stream is read up to the end but is not closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param source unencrypted data
+     * @throws IOException
+     */
+    public static void writeAtomically(Cipher encryptCipher, File file, InputStream source)
+            throws IOException {
+        File temp = AtomicFiles.createTempFile(file);
+        boolean replaced = false;
+        try {
+            write(encryptCipher, new AtomicFiles.SyncingOutputStream(temp), source);
+            AtomicFiles.replace(temp, file);
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                temp.delete();
+            }
+        }
+        AtomicFiles.syncDirectory(AtomicFiles.getDirectory(file));
+    }
+
+    /**
+     * Delete temporary files left in a directory by atomic writes and group commits interrupted
+     * by a crash. Temporary files of writes in progress are deleted too, so call it before
+     * anything is written into the directory, e.g. when the application starts.
+     *
+     * @param dir a directory
+     * @return the number of deleted files
+     * @throws IOException if the directory can't be listed or a file can't be deleted
+     * @see com.furdei.furdroid.security.encryption.GroupCommit GroupCommit
+     */
+    public static int deleteTempFiles(File dir) throws IOException {
+        return AtomicFiles.deleteTempFiles(dir);
+    }
+
+    /**
+     * Encrypt data and replace a file with encrypted data atomically. See
+     * {@link #writeAtomically(javax.crypto.Cipher, java.io.File, java.io.InputStream)}.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param rawBytes unencrypted data
+     * @throws IOException
+     */
+    public static void writeAtomically(Cipher encryptCipher, File file, byte[] rawBytes)
+            throws IOException {
+        writeAtomically(encryptCipher, file, new ByteArrayInputStream(rawBytes));
+    }
+
+    /**
+     * Compress data read from a stream, encrypt it and write encrypted data into a file. The first
+     * 4 KB of data are compressed first as a sample, data is written uncompressed if the sample
+     * doesn't shrink by at least 10%. Source stream is read up to the end but is not closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param source unencrypted data
+     * @throws IOException
+     */
+    public static void writeCompressed(Cipher encryptCipher, File file, InputStream source)
+            throws IOException {
+        write(encryptCipher, new FileOutputStream(file), source, true);
+    }
+
+    /**
+     * Compress data, encrypt it and write encrypted data into a file. See
+     * {@link #writeCompressed(javax.crypto.Cipher, java.io.File, java.io.InputStream)}.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param rawBytes unencrypted data
+     * @throws IOException
+     */
+    public static void writeCompressed(Cipher encryptCipher, File file, byte[] rawBytes)
+            throws IOException {
+        writeCompressed(encryptCipher, file, new ByteArrayInputStream(rawBytes));
+    }
+
+    /**
+     * Encrypt data read from a stream and write it into a file stream. File stream is closed.
+     */
+    static void write(Cipher encryptCipher, OutputStream fileStream, InputStream source)
+            throws IOException {
+        write(encryptCipher, fileStream, source, false);
+    }
+
+    /**
+     * Encrypt data read from a stream and write it into a file stream, compressing it first if
+     * <code>compress</code> is set and a sample of data shrinks. File stream is closed.
+     */
+    static void write(Cipher encryptCipher, OutputStream fileStream, InputStream source,
+                      boolean compress) throws IOException {
+        long start = EncryptionUtils.startMetrics();
+        long length = 0;
+        OutputStream bufferedStream = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+        OutputStream outputStream = bufferedStream;
+        Deflater deflater = null;
+        try {
+            if (compress) {
+                byte[] sample = new byte[Compression.SAMPLE_SIZE];
+                int sampleLength = readFully(source, sample);
+
+                if (Compression.isCompressible(sample, 0, sampleLength)) {
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    outputStream = new DeflaterOutputStream(
+                            openCipherOutputStream(encryptCipher, bufferedStream, FLAG_DEFLATE),
+                            deflater, BUFFER_SIZE);
+                } else {
+                    // incompressible data is stored in the plain format
+                    outputStream = openCipherOutputStream(encryptCipher, bufferedStream, 0);
+                }
+
+                outputStream.write(sample, 0, sampleLength);
+                length = sampleLength;
+            } else {
+                outputStream = openCipherOutputStream(encryptCipher, bufferedStream, 0);
+            }
+
+            length += copy(source, outputStream);
+        } finally {
+            try {
+                outputStream.close();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+        EncryptionUtils.recordMetrics(start, EncryptionOperation.FILE_WRITE, null, null, length);
+    }
+
+    /**
+     * Check whether a file has been compressed before encryption
+     */
+    static boolean isCompressed(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file), HEADER_SIZE);
+        try {
+            Header header = readHeader(input, file.length());
+            return header != null && (header.flags & FLAG_DEFLATE) != 0;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Read and decrypt data from file writing decrypted data into a stream. Target stream is
+     * not closed.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param file source file
+     * @param target a stream for decrypted data
+     * @throws IOException
+     */
+    public static void read(Cipher decryptCipher, File file, OutputStream target)
+            throws IOException {
+        long start = EncryptionUtils.startMetrics();
+        long length;
+        InputStream inputStream = openDecryptingInputStream(decryptCipher, file);
+        try {
+            length = copy(inputStream, target);
+        } finally {
+            inputStream.close();
+        }
+        EncryptionUtils.recordMetrics(start, EncryptionOperation.FILE_READ, null, null, length);
+    }
+
     /**
      * Encrypt data and write encrypted data into a file
      *
@@ -28,9 +344,15 @@ public class EncryptedFileStorage {
      * @throws IOException
      */
     public static void write(Cipher encryptCipher, File file, byte[] rawBytes) throws IOException {
-        byte[] encrypted = EncryptionUtils.encrypt(encryptCipher, rawBytes);
-        FileOutputStream outputStream = new FileOutputStream(file);
-        outputStream.write(encrypted);
+        long start = EncryptionUtils.startMetrics();
+        OutputStream outputStream = openEncryptingOutputStream(encryptCipher, file);
+        try {
+            outputStream.write(rawBytes);
+        } finally {
+            outputStream.close();
+        }
+        EncryptionUtils.recordMetrics(start, EncryptionOperation.FILE_WRITE, null, null,
+                rawBytes.length);
     }
 
     /**
@@ -42,11 +364,119 @@ public class EncryptedFileStorage {
      * @throws IOException
      */
     public static byte[] read(Cipher decryptCipher, File file) throws IOException {
-        FileInputStream inputStream = new FileInputStream(file);
-        DataInputStream dis = new DataInputStream(inputStream);
-        byte[] encrypted = new byte[(int) file.length()];
-        dis.readFully(encrypted);
-        return EncryptionUtils.decrypt(decryptCipher, encrypted);
+        // decrypted data is never longer than encrypted one unless it has been compressed
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+        read(decryptCipher, file, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Read and decrypt a range of a file. Files encrypted with
+     * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_CTR AES_CTR} and not
+     * compressed are decrypted starting from the cipher block containing <code>position</code>,
+     * so the cost of the call doesn't depend on the position. Other files are decrypted from
+     * the beginning up to the end of the range.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param file source file
+     * @param position a position in decrypted data
+     * @param length the number of decrypted bytes to read
+     * @return decrypted data. It is shorter than <code>length</code> if the file ends before
+     * the end of the range.
+     * @throws IOException
+     */
+    public static byte[] read(Cipher decryptCipher, File file, long position, int length)
+            throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("position: " + position + ", length: " + length);
+        }
+
+        long start = EncryptionUtils.startMetrics();
+        byte[] data = readCounterRange(decryptCipher, file, position, length);
+
+        if (data == null) {
+            InputStream inputStream = openDecryptingInputStream(decryptCipher, file);
+            try {
+                skipFully(inputStream, position);
+                byte[] buffer = new byte[length];
+                data = trim(buffer, readFully(inputStream, buffer));
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        EncryptionUtils.recordMetrics(start, EncryptionOperation.FILE_READ, null, null,
+                data.length);
+        return data;
+    }
+
+    /**
+     * Decrypt a range of a file encrypted in counter mode. The counter of the first block of
+     * the range is the initial counter plus the number of preceding blocks.
+     *
+     * @return decrypted data or <code>null</code> if the file hasn't been encrypted in counter
+     * mode or has been compressed
+     */
+    private static byte[] readCounterRange(Cipher decryptCipher, File file, long position,
+                                           int length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = randomAccessFile.length();
+            byte[] headerBytes = new byte[(int) Math.min(HEADER_SIZE, fileLength)];
+            randomAccessFile.readFully(headerBytes);
+            Header header = parseHeader(headerBytes, fileLength);
+
+            if (header == null || header.suite != CipherSuite.AES_CTR || header.flags != 0) {
+                return null;
+            }
+
+            byte[] counter = new byte[CipherSuite.AES_CTR.getIvLength()];
+            long dataOffset = HEADER_SIZE + counter.length;
+            if (fileLength < dataOffset) {
+                throw new IOException("Encrypted file header is truncated");
+            }
+
+            long dataLength = fileLength - dataOffset;
+            if (position >= dataLength) {
+                return new byte[0];
+            }
+
+            randomAccessFile.readFully(counter);
+            long block = position / CIPHER_BLOCK_SIZE;
+            int blockOffset = (int) (position % CIPHER_BLOCK_SIZE);
+            addToCounter(counter, block);
+
+            byte[] data = new byte[blockOffset + (int) Math.min(length, dataLength - position)];
+            randomAccessFile.seek(dataOffset + block * CIPHER_BLOCK_SIZE);
+            randomAccessFile.readFully(data);
+
+            Cipher cipher = CipherSuites.prepare(decryptCipher, CipherSuite.AES_CTR,
+                    Cipher.DECRYPT_MODE, counter, true);
+            try {
+                cipher.doFinal(data, 0, data.length, data, 0);
+            } catch (GeneralSecurityException e) {
+                throw EncryptionUtils.cryptoError("Error while decrypting data", e);
+            }
+
+            byte[] range = new byte[data.length - blockOffset];
+            System.arraycopy(data, blockOffset, range, 0, range.length);
+            Arrays.fill(data, (byte) 0);
+            return range;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Add a number of blocks to a big-endian 128-bit counter
+     */
+    private static void addToCounter(byte[] counter, long blocks) {
+        long carry = blocks;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
     }
 
     /**
@@ -105,6 +535,191 @@ public class EncryptedFileStorage {
         return new String(read(decryptCipher, baseDir, fileName));
     }
 
+    /**
+     * Copy all the data from input stream to output stream using a buffer of a fixed size
+     *
+     * @return the number of bytes copied
+     */
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long length = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buf)) >= 0) {
+            out.write(buf, 0, bytesRead);
+            length += bytesRead;
+        }
+        return length;
+    }
+
+    /**
+     * Write a header if data needs one and open a stream encrypting data into a file stream.
+     * Data of {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_ECB AES_ECB} without
+     * flags is stored without a header, so that older versions of the library can read it.
+     * Data of suites with an authentication tag is split into segments.
+     */
+    private static OutputStream openCipherOutputStream(Cipher encryptCipher,
+                                                       OutputStream fileStream, int flags)
+            throws IOException {
+        CipherSuite suite = CipherSuite.of(encryptCipher);
+        Cipher cipher = encryptCipher;
+
+        if (suite.getTagLength() > 0) {
+            flags |= FLAG_SEGMENTED;
+        }
+
+        if (flags != 0 || suite != CipherSuite.AES_ECB) {
+            writeHeader(fileStream, flags, suite);
+        }
+
+        if (suite.getIvLength() > 0) {
+            byte[] iv = CipherSuites.newIv(suite);
+            fileStream.write(iv);
+
+            if ((flags & FLAG_SEGMENTED) != 0) {
+                return new SegmentEncryptingOutputStream(fileStream, encryptCipher, suite, iv);
+            }
+
+            cipher = CipherSuites.prepare(encryptCipher, suite, Cipher.ENCRYPT_MODE, iv, false);
+        }
+
+        return new CipherOutputStream(fileStream, cipher);
+    }
+
+    /**
+     * Returns an initialization vector of a segment. The index of the segment and the flag of
+     * the last segment are mixed into the initialization vector of the file, so segments can't
+     * be reordered, dropped or appended without failing authentication.
+     */
+    private static byte[] segmentIv(byte[] fileIv, int segment, boolean last) {
+        byte[] iv = fileIv.clone();
+        int end = iv.length - 1;
+        iv[end - 4] ^= (byte) (segment >>> 24);
+        iv[end - 3] ^= (byte) (segment >>> 16);
+        iv[end - 2] ^= (byte) (segment >>> 8);
+        iv[end - 1] ^= (byte) segment;
+        iv[end] ^= (byte) (last ? 1 : 0);
+        return iv;
+    }
+
+    private static void writeHeader(OutputStream output, int flags, CipherSuite suite)
+            throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte) (FORMAT_MAGIC >>> 24);
+        header[1] = (byte) (FORMAT_MAGIC >>> 16);
+        header[2] = (byte) (FORMAT_MAGIC >>> 8);
+        header[3] = (byte) FORMAT_MAGIC;
+        header[4] = FORMAT_VERSION;
+        header[5] = (byte) flags;
+        header[6] = (byte) suite.getId();
+        output.write(header);
+    }
+
+    /**
+     * Read a file header if the file has one. Stream is left at the beginning of the file if it
+     * doesn't.
+     *
+     * @param input a stream supporting {@link java.io.InputStream#mark(int)}
+     * @return a header or <code>null</code> if the file has no header
+     */
+    private static Header readHeader(InputStream input, long fileLength) throws IOException {
+        input.mark(HEADER_SIZE);
+        byte[] header = new byte[(int) Math.min(HEADER_SIZE, fileLength)];
+        readFully(input, header);
+        Header result = parseHeader(header, fileLength);
+
+        if (result == null) {
+            input.reset();
+        }
+
+        return result;
+    }
+
+    /**
+     * Files without a header consist of whole cipher blocks of
+     * {@link com.furdei.furdroid.security.encryption.CipherSuite#AES_ECB AES_ECB}. Headers of
+     * version 1 make the length of a file not divisible by the block size. Files of counter based
+     * suites may have any length, so a file of whole blocks is considered to have a header only if
+     * it starts with the magic number followed by version 2. The chance that legacy encrypted data
+     * starts with these 5 bytes is negligible.
+     *
+     * @return a header or <code>null</code> if the file has no header
+     */
+    private static Header parseHeader(byte[] header, long fileLength) throws IOException {
+        boolean required = fileLength % CIPHER_BLOCK_SIZE != 0;
+
+        if (header.length < HEADER_SIZE) {
+            if (required) {
+                throw new IOException("Encrypted file header is truncated");
+            }
+            return null;
+        }
+
+        int magic = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) |
+                ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        int version = header[4];
+
+        if (!required && (magic != FORMAT_MAGIC || version != FORMAT_VERSION)) {
+            return null;
+        }
+
+        if (magic != FORMAT_MAGIC) {
+            throw new IOException("Unknown encrypted file format");
+        }
+
+        CipherSuite suite;
+        if (version == FORMAT_VERSION_DEFLATE) {
+            suite = CipherSuite.AES_ECB;
+        } else if (version == FORMAT_VERSION) {
+            suite = CipherSuite.forId(header[6] & 0xff);
+            if (suite == null) {
+                throw new IOException("Unknown cipher suite: " + (header[6] & 0xff));
+            }
+        } else {
+            throw new IOException("Unsupported encrypted file version: " + version);
+        }
+
+        return new Header(header[5] & 0xff, suite);
+    }
+
+    /**
+     * Skip decrypted data. Cipher streams skip only buffered data, so data is read instead.
+     */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+        while (count > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (bytesRead < 0) {
+                return;
+            }
+            count -= bytesRead;
+        }
+    }
+
+    private static byte[] trim(byte[] buffer, int length) {
+        if (length == buffer.length) {
+            return buffer;
+        }
+
+        byte[] trimmed = new byte[length];
+        System.arraycopy(buffer, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /**
+     * Read stream into a buffer until the buffer is full or the stream ends
+     *
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int bytesRead;
+        while (length < buffer.length
+                && (bytesRead = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += bytesRead;
+        }
+        return length;
+    }
+
     /**
      * Construct a File object from baseDir and fileName
      */
@@ -117,4 +732,203 @@ public class EncryptedFileStorage {
 
         return new File(baseDirPath + fileName);
     }
+
+    /**
+     * Encrypts data in segments of {@link #SEGMENT_SIZE} bytes. A segment is written once it is
+     * full and more data follows, the last segment is written when the stream is closed.
+     */
+    private static final class SegmentEncryptingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Cipher handle;
+        private final CipherSuite suite;
+        private final byte[] iv;
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private final byte[] encrypted;
+        private Cipher cipher;
+        private int length;
+        private int index;
+        private boolean closed;
+
+        private SegmentEncryptingOutputStream(OutputStream out, Cipher handle, CipherSuite suite,
+                                              byte[] iv) {
+            this.out = out;
+            this.handle = handle;
+            this.suite = suite;
+            this.iv = iv;
+            this.encrypted = new byte[SEGMENT_SIZE + suite.getTagLength()];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == segment.length) {
+                    writeSegment(false);
+                }
+
+                int count = Math.min(len, segment.length - length);
+                System.arraycopy(b, off, segment, length, count);
+                length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                writeSegment(true);
+            } finally {
+                Arrays.fill(segment, (byte) 0);
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            byte[] segmentIv = segmentIv(iv, index++, last);
+
+            if (cipher == null) {
+                cipher = CipherSuites.prepare(handle, suite, Cipher.ENCRYPT_MODE, segmentIv,
+                        false);
+            } else {
+                CipherSuites.reinit(cipher, handle, suite, Cipher.ENCRYPT_MODE, segmentIv);
+            }
+
+            int encryptedLength;
+            try {
+                encryptedLength = cipher.doFinal(segment, 0, length, encrypted, 0);
+            } catch (GeneralSecurityException e) {
+                throw EncryptionUtils.cryptoError("Error while encrypting data", e);
+            }
+
+            out.write(encrypted, 0, encryptedLength);
+            length = 0;
+        }
+    }
+
+    /**
+     * Decrypts data written by {@link SegmentEncryptingOutputStream}. Only authenticated
+     * segments are returned to caller.
+     */
+    private static final class SegmentDecryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Cipher handle;
+        private final CipherSuite suite;
+        private final byte[] iv;
+        private final byte[] encrypted;
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private Cipher cipher;
+        private int position;
+        private int length;
+        private int index;
+        private boolean last;
+
+        /**
+         * @param in a stream supporting {@link java.io.InputStream#mark(int)}
+         */
+        private SegmentDecryptingInputStream(InputStream in, Cipher handle, CipherSuite suite,
+                                             byte[] iv) {
+            this.in = in;
+            this.handle = handle;
+            this.suite = suite;
+            this.iv = iv;
+            this.encrypted = new byte[SEGMENT_SIZE + suite.getTagLength()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (position == length) {
+                if (last) {
+                    return -1;
+                }
+                readSegment();
+            }
+
+            int count = Math.min(len, length - position);
+            System.arraycopy(segment, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(segment, (byte) 0);
+            in.close();
+        }
+
+        private void readSegment() throws IOException {
+            int encryptedLength = readFully(in, encrypted);
+            if (encryptedLength < suite.getTagLength()) {
+                throw new IOException("Encrypted file is truncated");
+            }
+
+            if (encryptedLength < encrypted.length) {
+                last = true;
+            } else {
+                in.mark(1);
+                last = in.read() < 0;
+                in.reset();
+            }
+
+            byte[] segmentIv = segmentIv(iv, index++, last);
+            if (cipher == null) {
+                cipher = CipherSuites.prepare(handle, suite, Cipher.DECRYPT_MODE, segmentIv,
+                        false);
+            } else {
+                CipherSuites.reinit(cipher, handle, suite, Cipher.DECRYPT_MODE, segmentIv);
+            }
+
+            try {
+                length = cipher.doFinal(encrypted, 0, encryptedLength, segment, 0);
+            } catch (GeneralSecurityException e) {
+                throw EncryptionUtils.cryptoError("Error while decrypting data", e);
+            }
+            position = 0;
+        }
+    }
+
+    /**
+     * Unencrypted header of a file
+     */
+    private static final class Header {
+
+        private final int flags;
+        private final CipherSuite suite;
+
+        private Header(int flags, CipherSuite suite) {
+            this.flags = flags;
+            this.suite = suite;
+        }
+    }
 }
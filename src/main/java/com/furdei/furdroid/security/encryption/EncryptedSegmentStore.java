@@ -0,0 +1,1010 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>
+ * Encrypted key/value store for large numbers of small records. Storing each record in its own
+ * file through {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage
+ * EncryptedFileStorage} costs a file open and file system metadata updates per record. This store
+ * appends records to a few large segment files instead, so a write is a single append and a read
+ * is a single positioned read:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  EncryptedSegmentStore store = EncryptedSegmentStore.open(new File(context.getFilesDir(), "notes"));
+ *  try {
+ *      store.putString("note-42", text);
+ *      String note = store.getString("note-42");
+ *  } finally {
+ *      store.close();
+ *  }
+ * }
+ * </pre>
+ * <p>
+ * Every record, its key included, is encrypted individually with the current key of
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils} and tagged with its
+ * {@link com.furdei.furdroid.security.encryption.CipherSuite}. Locations of all records are
+ * kept in memory. When a segment is full it is sealed and an encrypted hint file listing its keys
+ * is written next to it, so opening a store reads hint files instead of decrypting every record.
+ * Segments without a valid hint are scanned. A torn record at the end of the last segment left
+ * by a crash is cut off, a damaged record of a sealed segment is skipped. Overwritten and removed records are reclaimed by compaction which copies
+ * live records of sealed segments into a new segment without decrypting them. Compaction runs in
+ * background when a segment is sealed and at least half of the store is garbage, or when
+ * {@link #compact()} is called.
+ * </p>
+ * <p>
+ * Writes are not flushed to disk until {@link #flush()} or {@link #close()} is called. The store
+ * is thread-safe, reads of different segments don't block each other. Interrupting a thread that
+ * reads or writes doesn't affect the store. Only one instance may be open for a directory.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.encryption.EncryptedFileStorage EncryptedFileStorage
+ */
+public class EncryptedSegmentStore implements Closeable {
+
+    /**
+     * Default size a segment is sealed at
+     */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String COMPACTION_SUFFIX = ".compacting";
+    private static final int MAGIC = 0x46445353; // "FDSS"
+    // records carry a cipher suite since version 2
+    private static final int VERSION = 2;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_KEY_LENGTH = 0xffff;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final Executor compactionExecutor;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // guarded by lock
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private List<HintEntry> activeHints = new ArrayList<HintEntry>();
+    private boolean closed;
+
+    private EncryptedSegmentStore(File dir, long maxSegmentSize, Executor compactionExecutor) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionExecutor = compactionExecutor;
+    }
+
+    /**
+     * Open a store with {@link #DEFAULT_MAX_SEGMENT_SIZE} segments and background compaction.
+     * The directory is created if it doesn't exist.
+     *
+     * @param dir a directory to keep segment files in. Don't keep other files there.
+     * @throws IOException
+     */
+    public static EncryptedSegmentStore open(File dir) throws IOException {
+        return open(dir, DEFAULT_MAX_SEGMENT_SIZE, CompactionExecutor.INSTANCE);
+    }
+
+    /**
+     * Open a store. The directory is created if it doesn't exist.
+     *
+     * @param dir a directory to keep segment files in. Don't keep other files there.
+     * @param maxSegmentSize a size a segment is sealed at
+     * @param compactionExecutor an executor to run compaction on or <code>null</code> to compact
+     *                           only when {@link #compact()} is called
+     * @throws IOException
+     */
+    public static EncryptedSegmentStore open(File dir, long maxSegmentSize,
+                                             Executor compactionExecutor) throws IOException {
+        if (maxSegmentSize <= SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("maxSegmentSize <= " + SEGMENT_HEADER_SIZE +
+                    ". maxSegmentSize: " + maxSegmentSize);
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+
+        EncryptedSegmentStore store = new EncryptedSegmentStore(dir, maxSegmentSize,
+                compactionExecutor);
+        try {
+            store.load();
+        } catch (IOException e) {
+            store.closeSegments();
+            throw e;
+        }
+
+        return store;
+    }
+
+    /**
+     * Read and decrypt a value
+     *
+     * @param key a key
+     * @return decrypted value or <code>null</code> if there is no value for the key
+     * @throws IOException
+     */
+    public byte[] get(String key) throws IOException {
+        byte[] record;
+
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            record = location.segment.read(location.offset, location.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        byte[] plain = decryptRecord(record);
+        try {
+            int keyLength = ((plain[1] & 0xff) << 8) | (plain[2] & 0xff);
+            int valueOffset = 3 + keyLength;
+            byte[] value = new byte[plain.length - valueOffset];
+            System.arraycopy(plain, valueOffset, value, 0, value.length);
+            return value;
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /**
+     * Read and decrypt a string value
+     *
+     * @param key a key
+     * @return decrypted value or <code>null</code> if there is no value for the key
+     * @throws IOException
+     */
+    public String getString(String key) throws IOException {
+        byte[] value = get(key);
+        return value != null ? new String(value, "UTF-8") : null;
+    }
+
+    /**
+     * Encrypt a value and append it to the store
+     *
+     * @param key a key. Its UTF-8 form must not be longer than 65535 bytes.
+     * @param value unencrypted value
+     * @throws IOException
+     */
+    public void put(String key, byte[] value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null, use remove() instead");
+        }
+
+        append(PUT, key, value);
+    }
+
+    /**
+     * Encrypt a string value and append it to the store
+     *
+     * @param key a key. Its UTF-8 form must not be longer than 65535 bytes.
+     * @param value unencrypted value
+     * @throws IOException
+     */
+    public void putString(String key, String value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("value is null, use remove() instead");
+        }
+
+        append(PUT, key, value.getBytes("UTF-8"));
+    }
+
+    /**
+     * Remove a value
+     *
+     * @param key a key
+     * @return <code>true</code> if there was a value for the key
+     * @throws IOException
+     */
+    public boolean remove(String key) throws IOException {
+        return contains(key) && append(REMOVE, key, new byte[0]);
+    }
+
+    /**
+     * Check whether there is a value for a key. No data is read.
+     */
+    public boolean contains(String key) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of values in the store
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the set of keys
+     */
+    public Set<String> keySet() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<String>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flush all written values to disk
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            active.sync();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy live records of all sealed segments into a single segment and delete the sealed
+     * segments. Records are copied in encrypted form. Reads and writes are not blocked while
+     * records are copied.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Segment> sealed;
+            List<CompactionEntry> entries = new ArrayList<CompactionEntry>();
+
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                sealed = new ArrayList<Segment>(segments.headMap(active.id).values());
+                if (sealed.isEmpty()) {
+                    return;
+                }
+
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    if (entry.getValue().segment.id < active.id) {
+                        entries.add(new CompactionEntry(entry.getKey(), entry.getValue()));
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // read sealed segments sequentially
+            Collections.sort(entries, new Comparator<CompactionEntry>() {
+                @Override
+                public int compare(CompactionEntry lhs, CompactionEntry rhs) {
+                    if (lhs.oldLocation.segment.id != rhs.oldLocation.segment.id) {
+                        return lhs.oldLocation.segment.id < rhs.oldLocation.segment.id ? -1 : 1;
+                    }
+
+                    return lhs.oldLocation.offset < rhs.oldLocation.offset ? -1 :
+                            (lhs.oldLocation.offset == rhs.oldLocation.offset ? 0 : 1);
+                }
+            });
+
+            // the new segment takes the id of the newest sealed segment and covers ids of
+            // the others, so segments left by a crash after the rename are deleted on open
+            int id = sealed.get(sealed.size() - 1).id;
+            int baseId = sealed.get(0).baseId;
+            File temp = new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX + COMPACTION_SUFFIX);
+            List<HintEntry> hints = new ArrayList<HintEntry>(entries.size());
+            long length;
+
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                        new AtomicFiles.SyncingOutputStream(temp)));
+                try {
+                    Segment.writeHeader(output, baseId);
+                    long offset = SEGMENT_HEADER_SIZE;
+
+                    for (CompactionEntry entry : entries) {
+                        byte[] record;
+                        lock.readLock().lock();
+                        try {
+                            checkOpen();
+                            record = entry.oldLocation.segment.read(entry.oldLocation.offset,
+                                    entry.oldLocation.length);
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+
+                        output.write(record);
+                        hints.add(new HintEntry(PUT, entry.key, offset, record.length));
+                        offset += record.length;
+                    }
+
+                    length = offset;
+                } finally {
+                    output.close();
+                }
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (closed) {
+                    temp.delete();
+                    return;
+                }
+
+                AtomicFiles.replace(temp, dataFile(id));
+                AtomicFiles.syncDirectory(dir);
+                Segment compacted = Segment.open(dataFile(id), id);
+
+                for (Segment segment : sealed) {
+                    segment.close();
+                    segments.remove(segment.id);
+                    hintFile(segment.id).delete();
+                    if (segment.id != id) {
+                        dataFile(segment.id).delete();
+                    }
+                }
+
+                segments.put(id, compacted);
+
+                for (int i = 0; i < entries.size(); i++) {
+                    CompactionEntry entry = entries.get(i);
+                    // the value may have been overwritten or removed while it was copied
+                    if (index.get(entry.key) == entry.oldLocation) {
+                        HintEntry hint = hints.get(i);
+                        index.put(entry.key, new Location(compacted, hint.offset, hint.length));
+                    }
+                }
+
+                writeHint(compacted, hints);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Flush written values to disk and close segment files
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                active.sync();
+                writeHint(active, activeHints);
+            } finally {
+                closeSegments();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean append(byte type, String key, byte[] value) throws IOException {
+        byte[] record = encryptRecord(type, key, value);
+        Segment sealed = null;
+        List<HintEntry> sealedHints = null;
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+
+            if (type == REMOVE && !index.containsKey(key)) {
+                return false;
+            }
+
+            long offset = active.append(record);
+            Location location = new Location(active, offset, record.length);
+
+            if (type == PUT) {
+                index.put(key, location);
+            } else {
+                index.remove(key);
+            }
+
+            activeHints.add(new HintEntry(type, key, offset, record.length));
+
+            if (active.length >= maxSegmentSize) {
+                sealed = active;
+                sealedHints = activeHints;
+                sealed.sync();
+                active = Segment.create(dataFile(sealed.id + 1), sealed.id + 1);
+                segments.put(active.id, active);
+                activeHints = new ArrayList<HintEntry>();
+                AtomicFiles.syncDirectory(dir);
+                writeHint(sealed, sealedHints);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (sealed != null && compactionExecutor != null && needsCompaction()) {
+            scheduleCompaction();
+        }
+
+        return true;
+    }
+
+    private boolean needsCompaction() {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+
+            long totalBytes = 0;
+            for (Segment segment : segments.values()) {
+                totalBytes += segment.length - SEGMENT_HEADER_SIZE;
+            }
+
+            long liveBytes = 0;
+            for (Location location : index.values()) {
+                liveBytes += location.length;
+            }
+
+            return totalBytes - liveBytes >= Math.max(liveBytes, maxSegmentSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        // garbage stays in place until the next segment is sealed
+                    } finally {
+                        compactionScheduled.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compactionScheduled.set(false);
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list directory " + dir);
+        }
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (File file : files) {
+            String name = file.getName();
+
+            if (name.endsWith(COMPACTION_SUFFIX)) {
+                // left by an interrupted compaction
+                file.delete();
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+
+        Collections.sort(ids);
+
+        // newest segments first, so that segments replaced by compaction are found
+        int coveredFrom = Integer.MAX_VALUE;
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            int id = ids.get(i);
+
+            if (id >= coveredFrom || dataFile(id).length() < SEGMENT_HEADER_SIZE) {
+                dataFile(id).delete();
+                hintFile(id).delete();
+                continue;
+            }
+
+            Segment segment = Segment.open(dataFile(id), id);
+            segments.put(id, segment);
+            coveredFrom = Math.min(coveredFrom, segment.baseId);
+        }
+
+        List<HintEntry> lastHints = null;
+        for (Segment segment : segments.values()) {
+            List<HintEntry> hints = readHint(segment);
+            if (hints == null) {
+                hints = scan(segment, segment.id == segments.lastKey());
+            }
+
+            for (HintEntry hint : hints) {
+                if (hint.type == PUT) {
+                    index.put(hint.key, new Location(segment, hint.offset, hint.length));
+                } else {
+                    index.remove(hint.key);
+                }
+            }
+
+            lastHints = hints;
+        }
+
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.lastKey());
+            if (last.baseId == last.id && last.length < maxSegmentSize) {
+                active = last;
+                activeHints = new ArrayList<HintEntry>(lastHints);
+                return;
+            }
+        }
+
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        active = Segment.create(dataFile(id), id);
+        segments.put(id, active);
+        AtomicFiles.syncDirectory(dir);
+    }
+
+    /**
+     * Read the keys of a segment by decrypting its records. Only the last segment may end with
+     * a record torn by a crash, it is cut off. A record of a sealed segment that fails its
+     * checksum is skipped.
+     *
+     * @param last <code>true</code> if the segment is the last one
+     * @throws IOException if a sealed segment is damaged so that its records can't be told apart
+     */
+    private List<HintEntry> scan(Segment segment, boolean last) throws IOException {
+        List<HintEntry> hints = new ArrayList<HintEntry>();
+        long offset = SEGMENT_HEADER_SIZE;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(dataFile(segment.id))));
+        try {
+            input.skipBytes(SEGMENT_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+
+            while (offset < segment.length) {
+                int encryptedLength = input.readInt();
+                int checksum = input.readInt();
+
+                if (encryptedLength <= 0 ||
+                        encryptedLength > segment.length - offset - RECORD_HEADER_SIZE) {
+                    break;
+                }
+
+                byte[] record = new byte[RECORD_HEADER_SIZE + encryptedLength];
+                input.readFully(record, RECORD_HEADER_SIZE, encryptedLength);
+
+                crc.reset();
+                crc.update(record, RECORD_HEADER_SIZE, encryptedLength);
+                if ((int) crc.getValue() != checksum) {
+                    if (last) {
+                        break;
+                    }
+
+                    // records of a sealed segment have been synced, it's not a torn tail
+                    offset += record.length;
+                    continue;
+                }
+
+                ByteBuffer.wrap(record).putInt(encryptedLength).putInt(checksum);
+                byte[] plain = decryptRecord(record);
+                try {
+                    int keyLength = ((plain[1] & 0xff) << 8) | (plain[2] & 0xff);
+                    hints.add(new HintEntry(plain[0], new String(plain, 3, keyLength, "UTF-8"),
+                            offset, record.length));
+                } finally {
+                    Arrays.fill(plain, (byte) 0);
+                }
+
+                offset += record.length;
+            }
+        } catch (EOFException e) {
+            // torn record
+        } finally {
+            input.close();
+        }
+
+        if (offset < segment.length) {
+            if (!last) {
+                throw new IOException("Encrypted segment is damaged: " + dataFile(segment.id));
+            }
+
+            segment.truncate(offset);
+        }
+
+        return hints;
+    }
+
+    /**
+     * Read the keys of a segment from its hint file
+     *
+     * @return keys or <code>null</code> if there is no valid hint file
+     */
+    private List<HintEntry> readHint(Segment segment) {
+        File file = hintFile(segment.id);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Cipher cipher = null;
+        try {
+            cipher = borrowCipher(Cipher.DECRYPT_MODE);
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+                    EncryptedFileStorage.read(cipher, file)));
+            EncryptionUtils.releaseCipher(cipher);
+            cipher = null;
+
+            // a hint written before the segment was changed is stale
+            if (input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    input.readInt() != segment.baseId || input.readLong() != segment.length) {
+                return null;
+            }
+
+            int count = input.readInt();
+            List<HintEntry> hints = new ArrayList<HintEntry>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = input.readByte();
+                String key = readKey(input);
+                hints.add(new HintEntry(type, key, input.readLong(), input.readInt()));
+            }
+
+            return hints;
+        } catch (IOException e) {
+            // the segment is scanned instead. Cipher may be left in the middle of decryption.
+            return null;
+        }
+    }
+
+    private void writeHint(Segment segment, List<HintEntry> hints) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(segment.baseId);
+        output.writeLong(segment.length);
+        output.writeInt(hints.size());
+
+        for (HintEntry hint : hints) {
+            output.writeByte(hint.type);
+            byte[] key = hint.key.getBytes("UTF-8");
+            output.writeShort(key.length);
+            output.write(key);
+            output.writeLong(hint.offset);
+            output.writeInt(hint.length);
+        }
+
+        Cipher cipher = borrowCipher(Cipher.ENCRYPT_MODE);
+        EncryptedFileStorage.writeAtomically(cipher, hintFile(segment.id), bytes.toByteArray());
+        EncryptionUtils.releaseCipher(cipher);
+    }
+
+    private static byte[] encryptRecord(byte type, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("key is longer than " + MAX_KEY_LENGTH +
+                    " bytes. key length: " + keyBytes.length);
+        }
+
+        byte[] plain = new byte[3 + keyBytes.length + value.length];
+        plain[0] = type;
+        plain[1] = (byte) (keyBytes.length >> 8);
+        plain[2] = (byte) keyBytes.length;
+        System.arraycopy(keyBytes, 0, plain, 3, keyBytes.length);
+        System.arraycopy(value, 0, plain, 3 + keyBytes.length, value.length);
+
+        Cipher cipher = borrowCipher(Cipher.ENCRYPT_MODE);
+        try {
+            byte[] record = new byte[RECORD_HEADER_SIZE + 1
+                    + EncryptionUtils.getMaxEncryptedSize(cipher, plain.length)];
+            record[RECORD_HEADER_SIZE] = (byte) CipherSuite.of(cipher).getId();
+            int encryptedLength = 1 + EncryptionUtils.encrypt(cipher, plain, 0, plain.length,
+                    record, RECORD_HEADER_SIZE + 1);
+            EncryptionUtils.releaseCipher(cipher);
+
+            if (RECORD_HEADER_SIZE + encryptedLength < record.length) {
+                byte[] trimmed = new byte[RECORD_HEADER_SIZE + encryptedLength];
+                System.arraycopy(record, 0, trimmed, 0, trimmed.length);
+                record = trimmed;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(record, RECORD_HEADER_SIZE, encryptedLength);
+            ByteBuffer.wrap(record).putInt(encryptedLength).putInt((int) crc.getValue());
+            return record;
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static byte[] decryptRecord(byte[] record) throws IOException {
+        int encryptedLength = record.length - RECORD_HEADER_SIZE - 1;
+        CipherSuite suite = encryptedLength >= 0 ?
+                CipherSuite.forId(record[RECORD_HEADER_SIZE] & 0xff) : null;
+        if (suite == null) {
+            throw new IOException("Encrypted segment record is damaged");
+        }
+
+        byte[] buffer = new byte[encryptedLength];
+        Cipher cipher = borrowCipher(Cipher.DECRYPT_MODE);
+        int length = EncryptionUtils.decrypt(cipher, suite, record, RECORD_HEADER_SIZE + 1,
+                encryptedLength, buffer, 0);
+        EncryptionUtils.releaseCipher(cipher);
+
+        if (length < 3) {
+            throw new IOException("Encrypted segment record is damaged");
+        }
+
+        byte[] plain = new byte[length];
+        System.arraycopy(buffer, 0, plain, 0, length);
+        Arrays.fill(buffer, (byte) 0);
+        return plain;
+    }
+
+    private static String readKey(DataInput input) throws IOException {
+        byte[] key = new byte[input.readUnsignedShort()];
+        input.readFully(key);
+        return new String(key, "UTF-8");
+    }
+
+    private static Cipher borrowCipher(int mode) throws IOException {
+        try {
+            return EncryptionUtils.borrowCipher(mode);
+        } catch (GeneralSecurityException e) {
+            throw EncryptionUtils.cryptoError("Error while initializing cipher", e);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Encrypted segment store is closed");
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        IOException error = null;
+
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        segments.clear();
+        index.clear();
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private File dataFile(int id) {
+        return new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private File hintFile(int id) {
+        return new File(dir, SEGMENT_PREFIX + id + HINT_SUFFIX);
+    }
+
+    /**
+     * Segment file. Its header holds the lowest id of the segments it replaces. The file is
+     * accessed with seek and read or write under its own monitor rather than through a file
+     * channel, because an interrupt during channel I/O closes the channel for all threads.
+     */
+    private static class Segment {
+
+        private final int id;
+        private final int baseId;
+        private final RandomAccessFile file;
+        private long length;
+
+        private Segment(int id, int baseId, RandomAccessFile file) throws IOException {
+            this.id = id;
+            this.baseId = baseId;
+            this.file = file;
+            this.length = file.length();
+        }
+
+        private static Segment create(File path, int id) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(0);
+                writeHeader(file, id);
+                return new Segment(id, id, file);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        private static Segment open(File path, int id) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                if (file.readInt() != MAGIC) {
+                    throw new IOException("Not an encrypted segment: " + path);
+                }
+
+                int version = file.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported encrypted segment version: " + version);
+                }
+
+                return new Segment(id, file.readInt(), file);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        private static void writeHeader(DataOutput output, int baseId) throws IOException {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(baseId);
+            output.writeInt(0);
+        }
+
+        private long append(byte[] record) throws IOException {
+            long offset = length;
+
+            synchronized (file) {
+                file.seek(offset);
+                file.write(record);
+            }
+
+            length += record.length;
+            return offset;
+        }
+
+        private byte[] read(long offset, int recordLength) throws IOException {
+            byte[] record = new byte[recordLength];
+
+            synchronized (file) {
+                file.seek(offset);
+                try {
+                    file.readFully(record);
+                } catch (EOFException e) {
+                    throw new EOFException("Encrypted segment is truncated");
+                }
+            }
+
+            return record;
+        }
+
+        private void truncate(long newLength) throws IOException {
+            synchronized (file) {
+                file.setLength(newLength);
+            }
+            length = newLength;
+        }
+
+        private void sync() throws IOException {
+            file.getFD().sync();
+        }
+
+        private void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class HintEntry {
+
+        private final byte type;
+        private final String key;
+        private final long offset;
+        private final int length;
+
+        private HintEntry(byte type, String key, long offset, int length) {
+            this.type = type;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class CompactionEntry {
+
+        private final String key;
+        private final Location oldLocation;
+
+        private CompactionEntry(String key, Location oldLocation) {
+            this.key = key;
+            this.oldLocation = oldLocation;
+        }
+    }
+
+    /**
+     * Lazily created executor for background compaction
+     */
+    private static class CompactionExecutor {
+
+        private static final Executor INSTANCE = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "furdroid-compaction");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -0,0 +1,211 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable encryption plan of a single database table compiled out of
+ * {@link com.furdei.furdroid.security.encryption.EncryptedTableSettings}. Plan resolves which
+ * columns are encrypted without any allocation once it is warmed up. Use
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#getTablePlan(String)} to get
+ * a plan for a table.
+ */
+public final class EncryptedTablePlan {
+
+    private static final int MAX_CACHED_PROJECTIONS = 32;
+
+    private final String tableName;
+    private final String[] encColumns;
+    private final boolean[] binaryColumns;
+    private final String[] blindIndexColumns;
+    private final boolean hasBlindIndexes;
+    private final boolean[] compressedColumns;
+    private final boolean hasCompressedColumns;
+    private final Set<String> encColumnSet;
+    private final Set<String> binaryColumnSet;
+    private volatile Projection[] projections = new Projection[0];
+
+    EncryptedTablePlan(String tableName, Collection<String> encColumns,
+                       Collection<String> binaryColumns, Map<String, String> blindIndexColumns,
+                       Collection<String> compressedColumns) {
+        this.tableName = tableName;
+        this.encColumns = new String[encColumns.size()];
+        this.binaryColumns = new boolean[encColumns.size()];
+        this.blindIndexColumns = new String[encColumns.size()];
+        this.hasBlindIndexes = !blindIndexColumns.isEmpty();
+        this.compressedColumns = new boolean[encColumns.size()];
+        this.hasCompressedColumns = !compressedColumns.isEmpty();
+        this.encColumnSet = new HashSet<String>();
+        this.binaryColumnSet = new HashSet<String>(binaryColumns);
+
+        int i = 0;
+        for (String column : encColumns) {
+            this.binaryColumns[i] = binaryColumnSet.contains(column);
+            this.blindIndexColumns[i] = blindIndexColumns.get(column);
+            this.compressedColumns[i] = compressedColumns.contains(column);
+            this.encColumns[i++] = column.intern();
+            this.encColumnSet.add(column);
+        }
+    }
+
+    /**
+     * Get a name of encrypted table
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Check whether the column of the table is encrypted
+     *
+     * @param columnName a name of the column
+     */
+    public boolean isColumnEncrypted(String columnName) {
+        return encColumnSet.contains(columnName);
+    }
+
+    /**
+     * Check whether the column of the table stores encrypted data in binary form
+     *
+     * @param columnName a name of the column
+     */
+    public boolean isColumnBinary(String columnName) {
+        return binaryColumnSet.contains(columnName);
+    }
+
+    /**
+     * Get a companion column that stores blind indexes of the encrypted column
+     *
+     * @param columnName a name of the encrypted column
+     * @return a name of the blind index column or <code>null</code> if the column has no
+     * blind index
+     */
+    public String getBlindIndexColumn(String columnName) {
+        for (int i = 0; i < encColumns.length; i++) {
+            if (encColumns[i].equals(columnName)) {
+                return blindIndexColumns[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get encrypted columns of a query result. Result is cached by a set of column names, so
+     * cursors of the same query share the same instance.
+     *
+     * @param columnNames names of the columns returned by a query, e.g. the result of
+     *                    {@link android.database.Cursor#getColumnNames()}
+     * @return a set of indices of encrypted columns in <code>columnNames</code>. Returned
+     * instance is shared and must not be modified.
+     */
+    public BitSet getEncryptedColumns(String[] columnNames) {
+        return getProjection(columnNames).encryptedColumns;
+    }
+
+    /**
+     * Get encrypted columns of a query result that store encrypted data in binary form. Result
+     * is cached the same way as the result of {@link #getEncryptedColumns(String[])}.
+     *
+     * @param columnNames names of the columns returned by a query
+     * @return a set of indices of binary encrypted columns in <code>columnNames</code>. Returned
+     * instance is shared and must not be modified.
+     */
+    public BitSet getBinaryColumns(String[] columnNames) {
+        return getProjection(columnNames).binaryColumns;
+    }
+
+    /**
+     * Returns encrypted columns. Returned array is shared and must not be modified.
+     */
+    String[] getEncColumns() {
+        return encColumns;
+    }
+
+    /**
+     * Returns binary storage flags of the columns returned by {@link #getEncColumns()}.
+     * Returned array is shared and must not be modified.
+     */
+    boolean[] getBinaryFlags() {
+        return binaryColumns;
+    }
+
+    /**
+     * Returns blind index columns of the columns returned by {@link #getEncColumns()} or
+     * <code>null</code> if the table has no blind indexes. Elements are <code>null</code> for
+     * columns without a blind index. Returned array is shared and must not be modified.
+     */
+    String[] getBlindIndexColumns() {
+        return hasBlindIndexes ? blindIndexColumns : null;
+    }
+
+    /**
+     * Returns compression flags of the columns returned by {@link #getEncColumns()} or
+     * <code>null</code> if no column is compressed. Returned array is shared and must not be
+     * modified.
+     */
+    boolean[] getCompressedFlags() {
+        return hasCompressedColumns ? compressedColumns : null;
+    }
+
+    private Projection getProjection(String[] columnNames) {
+        Projection[] cached = projections;
+        int hash = Arrays.hashCode(columnNames);
+
+        for (Projection projection : cached) {
+            if (projection.matches(columnNames, hash)) {
+                return projection;
+            }
+        }
+
+        BitSet encryptedColumns = new BitSet(columnNames.length);
+        BitSet binaryColumns = new BitSet(columnNames.length);
+        for (int i = 0; i < columnNames.length; i++) {
+            if (encColumnSet.contains(columnNames[i])) {
+                encryptedColumns.set(i);
+            }
+            if (binaryColumnSet.contains(columnNames[i])) {
+                binaryColumns.set(i);
+            }
+        }
+
+        Projection projection = new Projection(columnNames.clone(), hash, encryptedColumns,
+                binaryColumns);
+        cacheProjection(projection);
+        return projection;
+    }
+
+    private synchronized void cacheProjection(Projection projection) {
+        Projection[] cached = projections;
+        int keep = Math.min(cached.length, MAX_CACHED_PROJECTIONS - 1);
+        Projection[] updated = new Projection[keep + 1];
+        // the newest projection goes first, the oldest one is dropped when cache is full
+        System.arraycopy(cached, 0, updated, 1, keep);
+        updated[0] = projection;
+        projections = updated;
+    }
+
+    private static final class Projection {
+
+        private final String[] columnNames;
+        private final int hash;
+        private final BitSet encryptedColumns;
+        private final BitSet binaryColumns;
+
+        private Projection(String[] columnNames, int hash, BitSet encryptedColumns,
+                           BitSet binaryColumns) {
+            this.columnNames = columnNames;
+            this.hash = hash;
+            this.encryptedColumns = encryptedColumns;
+            this.binaryColumns = binaryColumns;
+        }
+
+        private boolean matches(String[] columnNames, int hash) {
+            return this.hash == hash && Arrays.equals(this.columnNames, columnNames);
+        }
+    }
+}
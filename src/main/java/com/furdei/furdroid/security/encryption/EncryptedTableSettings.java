@@ -1,11 +1,16 @@
 package com.furdei.furdroid.security.encryption;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Class describes encryption setting for a single database table. It contains a table name and a
- * list of table columns that are encrypted.
+ * list of table columns that are encrypted. Settings returned by
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#getEncSettings()} are immutable,
+ * their modification methods throw {@link java.lang.UnsupportedOperationException}.
  *
  * @author Stepan Furdey
  */
@@ -13,10 +18,36 @@ public class EncryptedTableSettings {
 
     private String tableName;
     private Set<String> encColumns;
+    private Set<String> binaryColumns;
+    private Map<String, String> blindIndexColumns;
+    private Set<String> compressedColumns;
+    private final boolean immutable;
 
     public EncryptedTableSettings(String tableName) {
         this.tableName = tableName;
         encColumns = new HashSet<String>();
+        binaryColumns = new HashSet<String>();
+        blindIndexColumns = new HashMap<String, String>();
+        compressedColumns = new HashSet<String>();
+        immutable = false;
+    }
+
+    private EncryptedTableSettings(EncryptedTableSettings source) {
+        tableName = source.tableName;
+        encColumns = Collections.unmodifiableSet(new HashSet<String>(source.encColumns));
+        binaryColumns = Collections.unmodifiableSet(new HashSet<String>(source.binaryColumns));
+        blindIndexColumns = Collections.unmodifiableMap(
+                new HashMap<String, String>(source.blindIndexColumns));
+        compressedColumns = Collections.unmodifiableSet(
+                new HashSet<String>(source.compressedColumns));
+        immutable = true;
+    }
+
+    /**
+     * Returns an immutable copy of the settings. Immutable settings are returned as is.
+     */
+    EncryptedTableSettings immutableCopy() {
+        return immutable ? this : new EncryptedTableSettings(this);
     }
 
     /**
@@ -31,6 +62,7 @@ public class EncryptedTableSettings {
      * @param tableName name of a table that contains encrypted columns
      */
     public void setTableName(String tableName) {
+        checkMutable();
         this.tableName = tableName;
     }
 
@@ -41,13 +73,49 @@ public class EncryptedTableSettings {
         return encColumns;
     }
 
+    /**
+     * Get the list of encrypted columns that store encrypted data in binary form
+     */
+    public Set<String> getBinaryColumns() {
+        return binaryColumns;
+    }
+
+    /**
+     * Get blind index columns of the table. Keys are encrypted columns, values are columns that
+     * store blind indexes of their values.
+     */
+    public Map<String, String> getBlindIndexColumns() {
+        return blindIndexColumns;
+    }
+
+    /**
+     * Get the list of encrypted columns that compress values before encryption
+     */
+    public Set<String> getCompressedColumns() {
+        return compressedColumns;
+    }
+
     /**
      * Add a column to the list of encrypted columns of the table
      *
      * @param column a column that needs to be encrypted
      */
     public void markColumnEncrypted(String column) {
+        checkMutable();
+        encColumns.add(column);
+    }
+
+    /**
+     * Add a column to the list of encrypted columns of the table and make it store encrypted
+     * data in binary form. Binary columns keep raw encrypted data in a <code>BLOB</code> instead
+     * of a Base64 encoded string, which is about 35% larger and has to be decoded on every read.
+     *
+     * @param column a column that needs to be encrypted and stored as a <code>BLOB</code>
+     */
+    public void markColumnEncryptedBinary(String column) {
+        checkMutable();
         encColumns.add(column);
+        binaryColumns.add(column);
     }
 
     /**
@@ -58,6 +126,57 @@ public class EncryptedTableSettings {
      * @param column a column that doesn't need to be encrypted.
      */
     public void markColumnUnencrypted(String column) {
+        checkMutable();
         encColumns.remove(column);
+        binaryColumns.remove(column);
+        blindIndexColumns.remove(column);
+        compressedColumns.remove(column);
+    }
+
+    /**
+     * Make an encrypted column maintain a blind index in a companion column. A blind index is
+     * a keyed hash of the unencrypted value, so equal values have equal indexes and the companion
+     * column can be searched with an ordinary SQLite index. See
+     * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#blindIndex(String)}. Byte
+     * array values of a column with binary storage are indexed without trimming, see
+     * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#blindIndex(byte[])}.
+     *
+     * @param column an encrypted column
+     * @param indexColumn a <code>TEXT</code> column to store blind indexes of
+     *                    <code>column</code> values
+     */
+    public void setBlindIndexColumn(String column, String indexColumn) {
+        checkMutable();
+
+        if (!encColumns.contains(column)) {
+            throw new IllegalArgumentException("Column " + column + " is not encrypted");
+        }
+
+        blindIndexColumns.put(column, indexColumn);
+    }
+
+    /**
+     * Make an encrypted column compress large values before encryption. Values that don't shrink
+     * are stored uncompressed, so compression pays off only for columns holding large text
+     * documents, e.g. JSON or XML.
+     *
+     * @param column an encrypted column
+     */
+    public void markColumnCompressed(String column) {
+        checkMutable();
+
+        if (!encColumns.contains(column)) {
+            throw new IllegalArgumentException("Column " + column + " is not encrypted");
+        }
+
+        compressedColumns.add(column);
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Settings of table " + tableName +
+                    " are in use and can't be changed. Pass modified copy to " +
+                    "EncryptionUtils.setEncSettings(EncryptionSettings) instead.");
+        }
     }
 }
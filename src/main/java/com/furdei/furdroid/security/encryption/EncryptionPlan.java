@@ -0,0 +1,43 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of encryption settings compiled into per-table plans. Every snapshot has
+ * a version, later snapshots have greater versions.
+ */
+final class EncryptionPlan {
+
+    private final long version;
+    private final EncryptionSettings settings;
+    private final Map<String, EncryptedTablePlan> tablePlans;
+
+    EncryptionPlan(EncryptionSettings settings, long version) {
+        this.version = version;
+        this.settings = settings.immutableCopy();
+        this.tablePlans = new HashMap<String, EncryptedTablePlan>();
+
+        for (Map.Entry<String, EncryptedTableSettings> table
+                : this.settings.getEncryptedTables().entrySet()) {
+            if (!table.getValue().getEncColumns().isEmpty()) {
+                tablePlans.put(table.getKey(), new EncryptedTablePlan(table.getKey(),
+                        table.getValue().getEncColumns(), table.getValue().getBinaryColumns(),
+                        table.getValue().getBlindIndexColumns(),
+                        table.getValue().getCompressedColumns()));
+            }
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    EncryptionSettings getSettings() {
+        return settings;
+    }
+
+    EncryptedTablePlan getTablePlan(String tableName) {
+        return tablePlans.get(tableName);
+    }
+}
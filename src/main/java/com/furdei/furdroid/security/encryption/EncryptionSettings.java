@@ -1,20 +1,45 @@
 package com.furdei.furdroid.security.encryption;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * This class describes how your app's storage is encrypted: which tables and which columns
- * have to be encrypted and decrypted.
+ * have to be encrypted and decrypted. Settings returned by
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#getEncSettings()} are immutable
+ * snapshots, build new settings and pass them to
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#setEncSettings(EncryptionSettings)}
+ * to change settings at runtime.
  *
  * @author Stepan Furdey
  */
 public class EncryptionSettings {
 
     private Map<String, EncryptedTableSettings> encryptedTables;
+    private final boolean immutable;
 
     public EncryptionSettings() {
         this.encryptedTables = new HashMap<String, EncryptedTableSettings>();
+        this.immutable = false;
+    }
+
+    private EncryptionSettings(EncryptionSettings source) {
+        Map<String, EncryptedTableSettings> tables = new HashMap<String, EncryptedTableSettings>();
+        for (Map.Entry<String, EncryptedTableSettings> table
+                : source.encryptedTables.entrySet()) {
+            tables.put(table.getKey(), table.getValue().immutableCopy());
+        }
+
+        this.encryptedTables = Collections.unmodifiableMap(tables);
+        this.immutable = true;
+    }
+
+    /**
+     * Returns an immutable deep copy of the settings. Immutable settings are returned as is.
+     */
+    EncryptionSettings immutableCopy() {
+        return immutable ? this : new EncryptionSettings(this);
     }
 
     /**
@@ -31,6 +56,12 @@ public class EncryptionSettings {
      * @param encryptedTables a new list of encrypted tables
      */
     public void setEncryptedTables(Map<String, EncryptedTableSettings> encryptedTables) {
+        if (immutable) {
+            throw new UnsupportedOperationException("Settings are in use and can't be changed. " +
+                    "Pass modified copy to EncryptionUtils.setEncSettings(EncryptionSettings) " +
+                    "instead.");
+        }
+
         this.encryptedTables = encryptedTables;
     }
 }
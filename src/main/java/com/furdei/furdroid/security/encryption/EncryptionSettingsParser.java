@@ -9,7 +9,24 @@ import java.util.Map;
 
 
 /**
- * Parses encryption settings from XML
+ * Parses encryption settings from XML. Each <code>&lt;column&gt;</code> tag may have an optional
+ * <code>storage</code> attribute: <code>text</code> (default) stores encrypted data as a Base64
+ * encoded string, <code>blob</code> stores raw encrypted data as a <code>BLOB</code>. Optional
+ * <code>blindIndex</code> attribute names a companion column that receives a blind index of
+ * the column value for equality lookups. Optional <code>compress="true"</code> attribute makes
+ * the column compress large values before encryption:
+ * <pre>
+ * {@code
+ *
+ * <encryption>
+ *      <table name="customers">
+ *          <column name="phone" />
+ *          <column name="photo" storage="blob" />
+ *          <column name="profile" compress="true" />
+ *      </table>
+ * </encryption>
+ * }
+ * </pre>
  *
  * @author Stepan Furdey
  */
@@ -29,6 +46,11 @@ public class EncryptionSettingsParser implements EncryptionSettingsProvider {
     private static final String TABLE_TAG      = "table";
     private static final String COLUMN_TAG     = "column";
     private static final String NAME_ATTRIBUTE = "name";
+    private static final String STORAGE_ATTRIBUTE = "storage";
+    private static final String STORAGE_TEXT   = "text";
+    private static final String STORAGE_BLOB   = "blob";
+    private static final String BLIND_INDEX_ATTRIBUTE = "blindIndex";
+    private static final String COMPRESS_ATTRIBUTE = "compress";
 
     private static final String ENCRYPTION_TAG_EXPECTED = "<encryption> tag is expected";
     private static final String TABLE_TAG_EXPECTED      = "<table> tag is expected";
@@ -36,6 +58,12 @@ public class EncryptionSettingsParser implements EncryptionSettingsProvider {
     private static final String TABLE_MUST_HAVE_NAME    = "<table> tag must have 'name' attribute";
     private static final String COLUMN_MUST_HAVE_NAME   = "<column> tag must have 'name' attribute";
     private static final String NAME_IS_EMPTY           = "'name' attribute is empty";
+    private static final String UNKNOWN_ATTRIBUTE       = "<column> tag has unknown attribute ";
+    private static final String UNKNOWN_STORAGE         = "'storage' attribute must be either " +
+            "'text' or 'blob'";
+    private static final String BLIND_INDEX_IS_EMPTY    = "'blindIndex' attribute is empty";
+    private static final String UNKNOWN_COMPRESS        = "'compress' attribute must be either " +
+            "'true' or 'false'";
 
     /**
      * {@inheritDoc}
@@ -86,22 +114,59 @@ public class EncryptionSettingsParser implements EncryptionSettingsProvider {
                         throw new IllegalStateException(COLUMN_TAG_EXPECTED);
                     }
 
+                    String name = null;
+                    String storage = STORAGE_TEXT;
+                    String blindIndex = null;
+                    String compress = null;
                     attrsCount = parser.getAttributeCount();
-                    if (attrsCount != 1) {
-                        throw new IllegalStateException(COLUMN_MUST_HAVE_NAME);
+
+                    for (int i = 0; i < attrsCount; i++) {
+                        attrName = parser.getAttributeName(i);
+
+                        if (NAME_ATTRIBUTE.equals(attrName)) {
+                            name = parser.getAttributeValue(i);
+                        } else if (STORAGE_ATTRIBUTE.equals(attrName)) {
+                            storage = parser.getAttributeValue(i);
+                        } else if (BLIND_INDEX_ATTRIBUTE.equals(attrName)) {
+                            blindIndex = parser.getAttributeValue(i);
+                        } else if (COMPRESS_ATTRIBUTE.equals(attrName)) {
+                            compress = parser.getAttributeValue(i);
+                        } else {
+                            throw new IllegalStateException(UNKNOWN_ATTRIBUTE + attrName);
+                        }
                     }
 
-                    attrName = parser.getAttributeName(0);
-                    if (!NAME_ATTRIBUTE.equals(attrName)) {
+                    if (name == null) {
                         throw new IllegalStateException(COLUMN_MUST_HAVE_NAME);
                     }
 
-                    String name = parser.getAttributeValue(0);
-                    if (name == null || name.trim().length() == 0) {
+                    if (name.trim().length() == 0) {
                         throw new IllegalStateException(NAME_IS_EMPTY);
                     }
 
-                    encTable.markColumnEncrypted(name);
+                    if (STORAGE_BLOB.equals(storage)) {
+                        encTable.markColumnEncryptedBinary(name);
+                    } else if (STORAGE_TEXT.equals(storage)) {
+                        encTable.markColumnEncrypted(name);
+                    } else {
+                        throw new IllegalStateException(UNKNOWN_STORAGE);
+                    }
+
+                    if (blindIndex != null) {
+                        if (blindIndex.trim().length() == 0) {
+                            throw new IllegalStateException(BLIND_INDEX_IS_EMPTY);
+                        }
+
+                        encTable.setBlindIndexColumn(name, blindIndex);
+                    }
+
+                    if (compress != null) {
+                        if ("true".equals(compress)) {
+                            encTable.markColumnCompressed(name);
+                        } else if (!"false".equals(compress)) {
+                            throw new IllegalStateException(UNKNOWN_COMPRESS);
+                        }
+                    }
                     parser.nextTag(); // </column>
                 }
 
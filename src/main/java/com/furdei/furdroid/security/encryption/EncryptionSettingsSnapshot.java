@@ -0,0 +1,234 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Compact binary form of {@link com.furdei.furdroid.security.encryption.EncryptionSettings}.
+ * Loading a snapshot takes a single read and no XML parsing, see
+ * {@link com.furdei.furdroid.security.encryption.PrecompiledEncryptionSettingsProvider}.
+ * Snapshots are generated at build time by the snapshot tool in the <i>tools</i> directory from
+ * the same XML file that is passed to
+ * {@link com.furdei.furdroid.security.encryption.EncryptionSettingsParser}. A snapshot keeps
+ * a SHA-256 digest of the XML it has been generated from, so the tool can tell whether
+ * the snapshot is stale.
+ * </p>
+ * <p>
+ * A snapshot also keeps a settings version. It is ignored at runtime if its version differs from
+ * the version expected by the app, so bump the version whenever the XML changes, or pass the app
+ * version code to regenerate the snapshot on every release.
+ * </p>
+ */
+public final class EncryptionSettingsSnapshot {
+
+    private static final int MAGIC = 0x46444553; // "FDES"
+    private static final int FORMAT_VERSION = 2;
+    private static final int DIGEST_SIZE = 32;
+    private static final int HEADER_SIZE = 24 + DIGEST_SIZE;
+    private static final int MAX_SNAPSHOT_SIZE = 1024 * 1024;
+    private static final int FLAG_BINARY = 1;
+    private static final int FLAG_COMPRESSED = 2;
+
+    private EncryptionSettingsSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of encryption settings without a digest of their source. Tables and
+     * columns are written in alphabetical order, so the same settings always produce the same
+     * snapshot.
+     *
+     * @param settings encryption settings
+     * @param settingsVersion a version of the settings
+     * @param output a stream to write the snapshot to. It is not closed.
+     * @throws IOException
+     */
+    public static void write(EncryptionSettings settings, long settingsVersion,
+                             OutputStream output) throws IOException {
+        write(settings, settingsVersion, new byte[DIGEST_SIZE], output);
+    }
+
+    /**
+     * Write a snapshot of encryption settings. Tables and columns are written in alphabetical
+     * order, so the same settings always produce the same snapshot.
+     *
+     * @param settings encryption settings
+     * @param settingsVersion a version of the settings
+     * @param sourceDigest a SHA-256 digest of the XML file the settings have been parsed from
+     * @param output a stream to write the snapshot to. It is not closed.
+     * @throws IOException
+     */
+    public static void write(EncryptionSettings settings, long settingsVersion,
+                             byte[] sourceDigest, OutputStream output) throws IOException {
+        if (sourceDigest == null || sourceDigest.length != DIGEST_SIZE) {
+            throw new IllegalArgumentException("sourceDigest must be a SHA-256 digest");
+        }
+
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        Map<String, EncryptedTableSettings> tables = settings.getEncryptedTables();
+        List<String> tableNames = new ArrayList<String>(tables.keySet());
+        Collections.sort(tableNames);
+
+        payload.writeInt(tableNames.size());
+        for (String tableName : tableNames) {
+            EncryptedTableSettings table = tables.get(tableName);
+            List<String> columns = new ArrayList<String>(table.getEncColumns());
+            Collections.sort(columns);
+
+            payload.writeUTF(tableName);
+            payload.writeInt(columns.size());
+            for (String column : columns) {
+                int flags = (table.getBinaryColumns().contains(column) ? FLAG_BINARY : 0)
+                        | (table.getCompressedColumns().contains(column) ? FLAG_COMPRESSED : 0);
+                String blindIndexColumn = table.getBlindIndexColumns().get(column);
+
+                payload.writeUTF(column);
+                payload.writeByte(flags);
+                payload.writeUTF(blindIndexColumn != null ? blindIndexColumn : "");
+            }
+        }
+        payload.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.toByteArray());
+
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeLong(settingsVersion);
+        header.writeInt(payloadBytes.size());
+        header.writeInt((int) crc.getValue());
+        header.write(sourceDigest);
+        payloadBytes.writeTo(header);
+        header.flush();
+    }
+
+    /**
+     * Read a snapshot of encryption settings. The stream is read up to the end but is not closed.
+     *
+     * @param input a stream containing a snapshot
+     * @param settingsVersion a version of the settings expected by the app
+     * @return encryption settings or <code>null</code> if the snapshot is stale, i.e. it has been
+     * written for another version of the settings or by an unsupported version of the library
+     * @throws IOException if the snapshot is damaged
+     */
+    public static EncryptionSettings read(InputStream input, long settingsVersion)
+            throws IOException {
+        byte[] snapshot = readAll(input);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(snapshot));
+
+        if (snapshot.length < HEADER_SIZE || data.readInt() != MAGIC) {
+            throw new IOException("Not an encryption settings snapshot");
+        }
+
+        if (data.readInt() != FORMAT_VERSION || data.readLong() != settingsVersion) {
+            return null;
+        }
+
+        int payloadLength = data.readInt();
+        int checksum = data.readInt();
+        data.skipBytes(DIGEST_SIZE);
+        if (payloadLength != snapshot.length - HEADER_SIZE) {
+            throw new IOException("Encryption settings snapshot is truncated");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, HEADER_SIZE, payloadLength);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Encryption settings snapshot is damaged");
+        }
+
+        int tableCount = data.readInt();
+        Map<String, EncryptedTableSettings> tables =
+                new HashMap<String, EncryptedTableSettings>(tableCount * 2);
+
+        for (int i = 0; i < tableCount; i++) {
+            String tableName = data.readUTF();
+            EncryptedTableSettings table = new EncryptedTableSettings(tableName);
+            int columnCount = data.readInt();
+
+            for (int j = 0; j < columnCount; j++) {
+                String column = data.readUTF();
+                int flags = data.readUnsignedByte();
+                String blindIndexColumn = data.readUTF();
+
+                if ((flags & FLAG_BINARY) != 0) {
+                    table.markColumnEncryptedBinary(column);
+                } else {
+                    table.markColumnEncrypted(column);
+                }
+
+                if ((flags & FLAG_COMPRESSED) != 0) {
+                    table.markColumnCompressed(column);
+                }
+
+                if (blindIndexColumn.length() > 0) {
+                    table.setBlindIndexColumn(column, blindIndexColumn);
+                }
+            }
+
+            tables.put(tableName, table);
+        }
+
+        EncryptionSettings settings = new EncryptionSettings();
+        settings.setEncryptedTables(tables);
+        return settings;
+    }
+
+    /**
+     * Read a digest of the XML file a snapshot has been generated from. The stream is read up to
+     * the end but is not closed.
+     *
+     * @param input a stream containing a snapshot
+     * @return a SHA-256 digest or <code>null</code> if the snapshot has been written by
+     * an unsupported version of the library
+     * @throws IOException if the stream doesn't contain a snapshot
+     */
+    public static byte[] readSourceDigest(InputStream input) throws IOException {
+        byte[] snapshot = readAll(input);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(snapshot));
+
+        if (snapshot.length < HEADER_SIZE || data.readInt() != MAGIC) {
+            throw new IOException("Not an encryption settings snapshot");
+        }
+
+        if (data.readInt() != FORMAT_VERSION) {
+            return null;
+        }
+
+        byte[] digest = new byte[DIGEST_SIZE];
+        System.arraycopy(snapshot, HEADER_SIZE - DIGEST_SIZE, digest, 0, DIGEST_SIZE);
+        return digest;
+    }
+
+    /**
+     * Read a stream up to the end. Streams longer than a snapshot can be are rejected.
+     */
+    static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(input.available(),
+                HEADER_SIZE));
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+
+        while ((bytesRead = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, bytesRead);
+            if (output.size() > MAX_SNAPSHOT_SIZE) {
+                throw new IOException("Encryption settings snapshot is too large");
+            }
+        }
+
+        return output.toByteArray();
+    }
+}
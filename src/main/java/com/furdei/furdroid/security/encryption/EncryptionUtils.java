@@ -1,20 +1,36 @@
 package com.furdei.furdroid.security.encryption;
 
 import android.content.ContentValues;
-import android.util.Base64;
+import android.content.SharedPreferences;
+
+import com.furdei.furdroid.security.metrics.EncryptionMetrics;
+import com.furdei.furdroid.security.metrics.EncryptionMetricsListener;
+import com.furdei.furdroid.security.metrics.EncryptionOperation;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -45,6 +61,14 @@ import javax.crypto.spec.SecretKeySpec;
  * database in your application. If you want only to access a secure file storage than setting
  * a password is everything you need to initialize encryption.
  * </p>
+ * <h3>Cipher suites</h3>
+ * <p>
+ * Data is encrypted with AES in ECB mode by default. Call
+ * {@link #setCipherSuite(CipherSuite)} to encrypt new data with AES in counter or Galois/Counter
+ * mode instead. Every value and file encrypted this way carries a short header naming its suite
+ * and a random initialization vector, so data encrypted with different suites can be mixed and
+ * decrypted by any cipher created by this class. See {@link CipherSuite} for details.
+ * </p>
  * <h3>Accessing secure file storage</h3>
  * <p>
  * This library provides a number of convenient APIs to access secure storage through
@@ -120,7 +144,9 @@ import javax.crypto.spec.SecretKeySpec;
  * The important thing to point out is that <b>data types can change during encryption</b>. All
  * encrypted data are represented by Base64-encoded strings even if the original data was integer
  * or float or any other data type. Make sure that you have <code>TEXT</code> type of encrypted
- * columns in your database.
+ * columns in your database. Columns marked with <code>storage="blob"</code> in encryption settings
+ * keep raw encrypted data instead, they must have <code>BLOB</code> type. Binary storage takes
+ * less space and doesn't need Base64 decoding on reads.
  * </p>
  * <h3>Decrypting data read from SQLite database</h3>
  * <p>
@@ -154,15 +180,44 @@ import javax.crypto.spec.SecretKeySpec;
 public class EncryptionUtils {
 
     private static final String KEY_ALGORITHM = "AES";
-    private static final String ENC_ALGORITHM = "AES/ECB/PKCS5Padding";
     private static final String DER_ALGORITHM = "PBKDF2WithHmacSHA1";
     private static final int KEY_LENGTH = 128;
-    private static final int ITERATION_COUNT = 1000;
+    private static final int MAX_ITERATION_COUNT = 10000000;
+    private static final int CALIBRATION_ITERATION_COUNT = 1000;
+    private static final int CALIBRATION_RUNS = 3;
     private static final String ENCODING = "UTF-8";
+    private static final int BINARY_FORMAT_DEFLATE = 1;
+    private static final char TEXT_FORMAT_DELIMITER = '$';
+    private static final char TEXT_FORMAT_DEFLATE = 'z';
+    private static final int MAX_SCRATCH_BUFFER_SIZE = 16 * 1024;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String BLIND_INDEX_KEY_INFO = "furdroid-blind-index";
+    private static final int BLIND_INDEX_LENGTH = 16;
+    private static final String KEY_FINGERPRINT_INFO = "furdroid-key-fingerprint";
+    private static final int KEY_FINGERPRINT_LENGTH = 16;
 
     private static volatile SecretKey secretKey = null;
-    private static volatile EncryptionSettings encSettings;
+    private static volatile CipherSuite cipherSuite = CipherSuite.AES_ECB;
+    private static final CipherPool[] cipherPools = new CipherPool[CipherSuite.values().length];
+    private static final AtomicReference<EncryptionPlan> encPlan =
+            new AtomicReference<EncryptionPlan>();
+    private static long encPlanVersion;
     private static volatile EncryptionSettingsProvider encryptionSettingsProvider;
+    private static final ThreadLocal<ScratchBuffers> scratchBuffers =
+            new ThreadLocal<ScratchBuffers>() {
+                @Override
+                protected ScratchBuffers initialValue() {
+                    return new ScratchBuffers();
+                }
+            };
+    private static final ThreadLocal<BlindIndexMac> blindIndexMacs =
+            new ThreadLocal<BlindIndexMac>();
+
+    static {
+        for (CipherSuite suite : CipherSuite.values()) {
+            cipherPools[suite.ordinal()] = new CipherPool(suite);
+        }
+    }
 
     /**
      * Specify a password for key derivation.
@@ -174,7 +229,192 @@ public class EncryptionUtils {
      */
     public static void setPassword(String password)
             throws InvalidKeySpecException, NoSuchAlgorithmException {
-        secretKey = deriveKeyFromPassword(password);
+        setPassword(password, KeyDerivationParams.DEFAULT);
+    }
+
+    /**
+     * Specify a password for key derivation using custom key derivation parameters.
+     *
+     * @param password a text password. The same key is guaranteed to be derived for
+     *                 the same password and the same parameters.
+     * @param params key derivation parameters
+     * @throws InvalidKeySpecException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void setPassword(String password, KeyDerivationParams params)
+            throws InvalidKeySpecException, NoSuchAlgorithmException {
+        SecretKey key = deriveKey(password, params);
+        secretKey = key;
+        for (CipherPool cipherPool : cipherPools) {
+            cipherPool.setKey(key);
+        }
+    }
+
+    /**
+     * Derive a key from a password without making it the current key. Use it to get the old key
+     * when data is re-encrypted with a new password, see
+     * {@link com.furdei.furdroid.security.database.DatabaseKeyRotation} and
+     * {@link com.furdei.furdroid.security.encryption.FileKeyRotation}.
+     *
+     * @param password a text password
+     * @param params key derivation parameters
+     * @return a symmetric key that can be passed to {@link #initForDecrypt(javax.crypto.SecretKey)}
+     * @throws InvalidKeySpecException
+     * @throws NoSuchAlgorithmException
+     */
+    public static SecretKey deriveKey(String password, KeyDerivationParams params)
+            throws InvalidKeySpecException, NoSuchAlgorithmException {
+        return deriveKeyFromPassword(password, params.getIterationCount());
+    }
+
+    /**
+     * Derive a key from a password on a background thread. Key derivation is slow by design so
+     * don't call {@link #setPassword(String, KeyDerivationParams)} on the UI thread.
+     *
+     * @param password a text password
+     * @param params key derivation parameters
+     * @param callback a callback notified on a background thread when the key is ready.
+     *                 Can be <code>null</code>.
+     * @return a future that completes when the key is ready
+     */
+    public static Future<KeyDerivationParams> setPasswordAsync(
+            String password, KeyDerivationParams params, KeyDerivationCallback callback) {
+        return setPasswordAsync(password, params, callback, BackgroundExecutor.INSTANCE);
+    }
+
+    /**
+     * Derive a key from a password using an executor provided
+     *
+     * @param password a text password
+     * @param params key derivation parameters
+     * @param callback a callback notified when the key is ready. Can be <code>null</code>.
+     * @param executor an executor to derive the key on
+     * @return a future that completes when the key is ready
+     */
+    public static Future<KeyDerivationParams> setPasswordAsync(
+            final String password, final KeyDerivationParams params,
+            KeyDerivationCallback callback, Executor executor) {
+        return submit(new Callable<KeyDerivationParams>() {
+            @Override
+            public KeyDerivationParams call() throws Exception {
+                setPassword(password, params);
+                return params;
+            }
+        }, callback, executor);
+    }
+
+    /**
+     * Derive a key from a password on a background thread using key derivation parameters
+     * calibrated for the device. Parameters are loaded from the shared preferences. If there are
+     * no saved parameters, key derivation is calibrated to take <code>targetMillis</code> and
+     * calibrated parameters are saved, so later launches derive the key with the same parameters
+     * without calibrating again. See {@link KeyDerivationParams} for details.
+     *
+     * @param password a text password
+     * @param preferences preferences to keep key derivation parameters in
+     * @param preferencesKey a key of the parameters in the preferences
+     * @param targetMillis target time of key derivation in milliseconds, e.g. 250
+     * @param callback a callback notified on a background thread when the key is ready.
+     *                 Can be <code>null</code>.
+     * @return a future that completes when the key is ready
+     */
+    public static Future<KeyDerivationParams> setPasswordAsync(
+            final String password, final SharedPreferences preferences,
+            final String preferencesKey, final long targetMillis,
+            KeyDerivationCallback callback) {
+        return submit(new Callable<KeyDerivationParams>() {
+            @Override
+            public KeyDerivationParams call() throws Exception {
+                KeyDerivationParams params =
+                        KeyDerivationParams.load(preferences, preferencesKey);
+
+                if (params == null) {
+                    params = calibrateKeyDerivation(targetMillis);
+
+                    if (!params.save(preferences, preferencesKey)) {
+                        throw new IOException("Unable to save key derivation parameters");
+                    }
+                }
+
+                setPassword(password, params);
+                return params;
+            }
+        }, callback, BackgroundExecutor.INSTANCE);
+    }
+
+    /**
+     * Measure key derivation speed on this device and pick the number of iterations that makes
+     * key derivation take about <code>targetMillis</code>. This method blocks for a few times
+     * <code>targetMillis</code>, don't call it on the UI thread. The number of iterations is
+     * never less than the one of {@link KeyDerivationParams#DEFAULT}.
+     *
+     * @param targetMillis target time of key derivation in milliseconds
+     * @return calibrated key derivation parameters
+     * @throws InvalidKeySpecException
+     * @throws NoSuchAlgorithmException
+     */
+    public static KeyDerivationParams calibrateKeyDerivation(long targetMillis)
+            throws InvalidKeySpecException, NoSuchAlgorithmException {
+        long targetNanos = targetMillis * 1000000L;
+        int probeIterations = CALIBRATION_ITERATION_COUNT;
+        long bestNanos = Long.MAX_VALUE;
+
+        // short probes are dominated by warm up and timer resolution, so the probe grows until
+        // it takes a noticeable part of the target time
+        while (true) {
+            bestNanos = Long.MAX_VALUE;
+
+            for (int i = 0; i < CALIBRATION_RUNS; i++) {
+                long start = System.nanoTime();
+                deriveKeyFromPassword("calibration", probeIterations);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+
+            if (bestNanos * CALIBRATION_RUNS >= targetNanos / 2
+                    || probeIterations >= MAX_ITERATION_COUNT / 2) {
+                break;
+            }
+
+            probeIterations *= 2;
+        }
+
+        double iterations = (double) probeIterations * targetNanos / Math.max(bestNanos, 1);
+        // round to thousands to keep stored parameters readable
+        long iterationCount = Math.round(iterations / 1000) * 1000;
+        iterationCount = Math.max(iterationCount, KeyDerivationParams.DEFAULT.getIterationCount());
+        iterationCount = Math.min(iterationCount, MAX_ITERATION_COUNT);
+
+        return new KeyDerivationParams((int) iterationCount);
+    }
+
+    private static Future<KeyDerivationParams> submit(
+            final Callable<KeyDerivationParams> derivation, final KeyDerivationCallback callback,
+            Executor executor) {
+        FutureTask<KeyDerivationParams> task = new FutureTask<KeyDerivationParams>(
+                new Callable<KeyDerivationParams>() {
+            @Override
+            public KeyDerivationParams call() throws Exception {
+                KeyDerivationParams params;
+
+                try {
+                    params = derivation.call();
+                } catch (Exception e) {
+                    if (callback != null) {
+                        callback.onKeyDerivationFailed(e);
+                    }
+                    throw e;
+                }
+
+                if (callback != null) {
+                    callback.onKeyDerived(params);
+                }
+
+                return params;
+            }
+        });
+
+        executor.execute(task);
+        return task;
     }
 
     /**
@@ -194,7 +434,30 @@ public class EncryptionUtils {
     public static synchronized void setEncryptionSettingsProvider(
             EncryptionSettingsProvider encryptionSettingsProvider) {
         EncryptionUtils.encryptionSettingsProvider = encryptionSettingsProvider;
-        encSettings = null;
+        encPlan.set(null);
+    }
+
+    /**
+     * Get a cipher suite used to encrypt data
+     */
+    public static CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Specify a cipher suite used to encrypt data. Ciphers created after this call encrypt data
+     * with the new suite. Data encrypted with any suite can be decrypted by ciphers of any suite
+     * created by this class, so there is no need to re-encrypt existing data. The default suite
+     * is {@link CipherSuite#AES_ECB}.
+     *
+     * @param suite a cipher suite
+     */
+    public static void setCipherSuite(CipherSuite suite) {
+        if (suite == null) {
+            throw new IllegalArgumentException("suite is null");
+        }
+
+        cipherSuite = suite;
     }
 
     /**
@@ -207,8 +470,9 @@ public class EncryptionUtils {
      */
     public static Cipher initForEncrypt(SecretKey aesKey)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        Cipher encryptCipher = Cipher.getInstance(ENC_ALGORITHM);
-        encryptCipher.init(Cipher.ENCRYPT_MODE, aesKey);
+        long start = startMetrics();
+        Cipher encryptCipher = CipherSuites.create(cipherSuite, Cipher.ENCRYPT_MODE, aesKey);
+        recordMetrics(start, EncryptionOperation.CIPHER_INIT, null, null, 0);
         return encryptCipher;
     }
 
@@ -233,12 +497,126 @@ public class EncryptionUtils {
      * @throws IOException
      */
     public static byte[] encrypt(Cipher encryptCipher, byte[] rawBytes) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, encryptCipher);
-        cipherOutputStream.write(rawBytes);
-        cipherOutputStream.flush();
-        cipherOutputStream.close();
-        return outputStream.toByteArray();
+        if (CipherSuite.of(encryptCipher) != CipherSuite.AES_ECB) {
+            byte[] encrypted = new byte[getMaxEncryptedSize(encryptCipher, rawBytes.length)];
+            int length = encrypt(encryptCipher, rawBytes, 0, rawBytes.length, encrypted, 0);
+            return trim(encrypted, length);
+        }
+
+        long start = startMetrics();
+        try {
+            byte[] encrypted = encryptCipher.doFinal(rawBytes);
+            recordMetrics(start, EncryptionOperation.ENCRYPT, null, null, rawBytes.length);
+            return encrypted;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while encrypting data", e);
+        }
+    }
+
+    /**
+     * Returns the maximum length of data encrypted by a cipher, including the initialization
+     * vector of its {@link CipherSuite}
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param length a length of unencrypted data
+     */
+    public static int getMaxEncryptedSize(Cipher encryptCipher, int length) {
+        CipherSuite suite = CipherSuite.of(encryptCipher);
+
+        if (suite == CipherSuite.AES_ECB) {
+            return encryptCipher.getOutputSize(length);
+        }
+
+        return suite.getIvLength() + length + suite.getTagLength();
+    }
+
+    /**
+     * Encrypt a range of an array into a buffer supplied by caller. With
+     * {@link CipherSuite#AES_ECB} this method doesn't allocate any memory, other suites allocate
+     * an initialization vector and cipher parameters for every call. Use
+     * {@link #getMaxEncryptedSize(javax.crypto.Cipher, int)} to find out how large the output
+     * buffer should be.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param in a buffer containing data to encrypt
+     * @param inOffset an offset of the data in the <code>in</code> buffer
+     * @param length a length of the data to encrypt
+     * @param out a buffer for encrypted data
+     * @param outOffset an offset in the <code>out</code> buffer where encrypted data is stored
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IOException
+     */
+    public static int encrypt(Cipher encryptCipher, byte[] in, int inOffset, int length,
+                              byte[] out, int outOffset) throws IOException {
+        return encrypt(encryptCipher, null, in, inOffset, length, out, outOffset);
+    }
+
+    /**
+     * Encrypt a range of an array and authenticate additional data along with it. Additional
+     * data is used only by suites with an authentication tag, it is not stored in the output.
+     *
+     * @param aad additional authenticated data or <code>null</code>
+     */
+    static int encrypt(Cipher encryptCipher, byte[] aad, byte[] in, int inOffset, int length,
+                       byte[] out, int outOffset) throws IOException {
+        long start = startMetrics();
+        try {
+            CipherSuite suite = CipherSuite.of(encryptCipher);
+            int ivLength = suite.getIvLength();
+            Cipher cipher = encryptCipher;
+
+            if (ivLength > 0) {
+                byte[] iv = CipherSuites.newIv(suite);
+                cipher = CipherSuites.prepare(encryptCipher, suite, Cipher.ENCRYPT_MODE, iv, true);
+                System.arraycopy(iv, 0, out, outOffset, ivLength);
+            }
+
+            if (aad != null && suite.getTagLength() > 0) {
+                CipherSuites.updateAad(cipher, aad);
+            }
+
+            int encryptedLength =
+                    ivLength + cipher.doFinal(in, inOffset, length, out, outOffset + ivLength);
+            recordMetrics(start, EncryptionOperation.ENCRYPT, null, null, length);
+            return encryptedLength;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while encrypting data", e);
+        }
+    }
+
+    /**
+     * Encrypt all remaining bytes of the <code>in</code> buffer into the <code>out</code> buffer.
+     * With {@link CipherSuite#AES_ECB} this method doesn't allocate any memory, other suites
+     * allocate an initialization vector and cipher parameters for every call. Positions of both
+     * buffers are advanced.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param in a buffer containing data to encrypt
+     * @param out a buffer for encrypted data
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IOException
+     */
+    public static int encrypt(Cipher encryptCipher, ByteBuffer in, ByteBuffer out)
+            throws IOException {
+        long start = startMetrics();
+        int length = in.remaining();
+        try {
+            CipherSuite suite = CipherSuite.of(encryptCipher);
+            int ivLength = suite.getIvLength();
+            Cipher cipher = encryptCipher;
+
+            if (ivLength > 0) {
+                byte[] iv = CipherSuites.newIv(suite);
+                cipher = CipherSuites.prepare(encryptCipher, suite, Cipher.ENCRYPT_MODE, iv, true);
+                out.put(iv);
+            }
+
+            int encryptedLength = ivLength + cipher.doFinal(in, out);
+            recordMetrics(start, EncryptionOperation.ENCRYPT, null, null, length);
+            return encryptedLength;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while encrypting data", e);
+        }
     }
 
     /**
@@ -251,8 +629,9 @@ public class EncryptionUtils {
      */
     public static Cipher initForDecrypt(SecretKey aesKey)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        Cipher decryptCipher = Cipher.getInstance(ENC_ALGORITHM);
-        decryptCipher.init(Cipher.DECRYPT_MODE, aesKey, new SecureRandom());
+        long start = startMetrics();
+        Cipher decryptCipher = CipherSuites.create(cipherSuite, Cipher.DECRYPT_MODE, aesKey);
+        recordMetrics(start, EncryptionOperation.CIPHER_INIT, null, null, 0);
         return decryptCipher;
     }
 
@@ -268,6 +647,43 @@ public class EncryptionUtils {
         return initForDecrypt(secretKey);
     }
 
+    /**
+     * Take a {@link javax.crypto.Cipher} instance initialized with key derived from password out
+     * of the pool. Unlike {@link #initForEncrypt()} and {@link #initForDecrypt()} this method
+     * doesn't look up a cipher provider and initialize a cipher every time. Return cipher to
+     * the pool by calling {@link #releaseCipher(javax.crypto.Cipher)} when you are done with it.
+     * Ciphers taken before a password changes are not reused after
+     * {@link #setPassword(String)} is called. This method is thread-safe, but borrowed cipher
+     * must be used by a single thread at a time.
+     *
+     * @param mode either {@link javax.crypto.Cipher#ENCRYPT_MODE} or
+     *             {@link javax.crypto.Cipher#DECRYPT_MODE}
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    public static Cipher borrowCipher(int mode)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        if (mode != Cipher.ENCRYPT_MODE && mode != Cipher.DECRYPT_MODE) {
+            throw new IllegalArgumentException("Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE " +
+                    "expected. mode: " + mode);
+        }
+
+        return cipherPools[cipherSuite.ordinal()].borrow(mode);
+    }
+
+    /**
+     * Return a cipher taken by {@link #borrowCipher(int)} to the pool. The cipher must not be
+     * used after this call.
+     *
+     * @param cipher a cipher to release
+     */
+    public static void releaseCipher(Cipher cipher) {
+        if (cipher != null) {
+            cipherPools[CipherSuite.of(cipher).ordinal()].release(cipher);
+        }
+    }
+
     /**
      * Decrypt piece of data
      *
@@ -277,15 +693,127 @@ public class EncryptionUtils {
      * @throws IOException
      */
     public static byte[] decrypt(Cipher decryptCipher, byte[] encryptedBytes) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        ByteArrayInputStream inStream = new ByteArrayInputStream(encryptedBytes);
-        CipherInputStream cipherInputStream = new CipherInputStream(inStream, decryptCipher);
-        byte[] buf = new byte[1024];
-        int bytesRead;
-        while ((bytesRead = cipherInputStream.read(buf)) >= 0) {
-            outputStream.write(buf, 0, bytesRead);
+        if (CipherSuite.of(decryptCipher) != CipherSuite.AES_ECB) {
+            byte[] decrypted = new byte[encryptedBytes.length];
+            int length = decrypt(decryptCipher, encryptedBytes, 0, encryptedBytes.length,
+                    decrypted, 0);
+            return trim(decrypted, length);
+        }
+
+        long start = startMetrics();
+        try {
+            byte[] decrypted = decryptCipher.doFinal(encryptedBytes);
+            recordMetrics(start, EncryptionOperation.DECRYPT, null, null, decrypted.length);
+            return decrypted;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while decrypting data", e);
+        }
+    }
+
+    /**
+     * Decrypt a range of an array into a buffer supplied by caller. With
+     * {@link CipherSuite#AES_ECB} this method doesn't allocate any memory, other suites allocate
+     * an initialization vector and cipher parameters for every call. Decrypted data is never
+     * longer than encrypted one so an output buffer of <code>length</code> bytes is always large
+     * enough.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param in a buffer containing encrypted data
+     * @param inOffset an offset of encrypted data in the <code>in</code> buffer
+     * @param length a length of encrypted data
+     * @param out a buffer for decrypted data
+     * @param outOffset an offset in the <code>out</code> buffer where decrypted data is stored
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IOException
+     */
+    public static int decrypt(Cipher decryptCipher, byte[] in, int inOffset, int length,
+                              byte[] out, int outOffset) throws IOException {
+        return decrypt(decryptCipher, CipherSuite.of(decryptCipher), in, inOffset, length, out,
+                outOffset);
+    }
+
+    /**
+     * Decrypt a range of an array encrypted with a cipher suite that may differ from the suite of
+     * <code>decryptCipher</code>. The key of <code>decryptCipher</code> is used in any case.
+     */
+    static int decrypt(Cipher decryptCipher, CipherSuite suite, byte[] in, int inOffset,
+                       int length, byte[] out, int outOffset) throws IOException {
+        return decrypt(decryptCipher, suite, null, in, inOffset, length, out, outOffset);
+    }
+
+    /**
+     * Decrypt a range of an array and verify additional data authenticated along with it by
+     * {@link #encrypt(javax.crypto.Cipher, byte[], byte[], int, int, byte[], int)}
+     *
+     * @param aad additional authenticated data or <code>null</code>
+     */
+    static int decrypt(Cipher decryptCipher, CipherSuite suite, byte[] aad, byte[] in,
+                       int inOffset, int length, byte[] out, int outOffset) throws IOException {
+        long start = startMetrics();
+        try {
+            int ivLength = suite.getIvLength();
+            byte[] iv = null;
+
+            if (ivLength > 0) {
+                if (length < ivLength) {
+                    throw new IOException("Encrypted data is truncated");
+                }
+
+                iv = new byte[ivLength];
+                System.arraycopy(in, inOffset, iv, 0, ivLength);
+            }
+
+            Cipher cipher =
+                    CipherSuites.prepare(decryptCipher, suite, Cipher.DECRYPT_MODE, iv, true);
+            if (aad != null && suite.getTagLength() > 0) {
+                CipherSuites.updateAad(cipher, aad);
+            }
+
+            int decryptedLength = cipher.doFinal(in, inOffset + ivLength, length - ivLength,
+                    out, outOffset);
+            recordMetrics(start, EncryptionOperation.DECRYPT, null, null, decryptedLength);
+            return decryptedLength;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while decrypting data", e);
+        }
+    }
+
+    /**
+     * Decrypt all remaining bytes of the <code>in</code> buffer into the <code>out</code> buffer.
+     * With {@link CipherSuite#AES_ECB} this method doesn't allocate any memory, other suites
+     * allocate an initialization vector and cipher parameters for every call. Positions of both
+     * buffers are advanced.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param in a buffer containing encrypted data
+     * @param out a buffer for decrypted data
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IOException
+     */
+    public static int decrypt(Cipher decryptCipher, ByteBuffer in, ByteBuffer out)
+            throws IOException {
+        long start = startMetrics();
+        try {
+            CipherSuite suite = CipherSuite.of(decryptCipher);
+            Cipher cipher = decryptCipher;
+
+            if (suite.getIvLength() > 0) {
+                if (in.remaining() < suite.getIvLength()) {
+                    throw new IOException("Encrypted data is truncated");
+                }
+
+                byte[] iv = new byte[suite.getIvLength()];
+                in.get(iv);
+                cipher = CipherSuites.prepare(decryptCipher, suite, Cipher.DECRYPT_MODE, iv,
+                        true);
+            }
+
+            int decryptedLength = cipher.doFinal(in, out);
+            recordMetrics(start, EncryptionOperation.DECRYPT, null, null, decryptedLength);
+            return decryptedLength;
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while decrypting data", e);
         }
-        return outputStream.toByteArray();
     }
 
     /**
@@ -304,15 +832,12 @@ public class EncryptionUtils {
      */
     public static void encryptContentValues(Cipher encryptCipher, ContentValues contentValues,
                                             String tableName) throws IOException {
-        String[] columnsToEncrypt = null;
-
-        EncryptedTableSettings table = getEncSettings().getEncryptedTables().get(tableName);
+        EncryptedTablePlan table = getTablePlan(tableName);
         if (table != null) {
-            columnsToEncrypt = table.getEncColumns().toArray(
-                    new String[table.getEncColumns().size()]);
+            encryptColumns(encryptCipher, contentValues, table.getEncColumns(),
+                    table.getBinaryFlags(), table.getBlindIndexColumns(),
+                    table.getCompressedFlags(), tableName);
         }
-
-        encryptContentValues(encryptCipher, contentValues, columnsToEncrypt);
     }
 
     /**
@@ -333,21 +858,210 @@ public class EncryptionUtils {
      */
     public static void encryptContentValues(Cipher encryptCipher, ContentValues contentValues,
                                             String[] columnsToEncrypt) throws IOException {
+        encryptColumns(encryptCipher, contentValues, columnsToEncrypt, null, null, null, null);
+    }
+
+    /**
+     * Encrypt data in a batch of {@link android.content.ContentValues} instances in parallel.
+     * Rows are split between workers evenly, each worker uses its own
+     * {@link javax.crypto.Cipher} instance taken by {@link #borrowCipher(int)}. Data is encrypted
+     * in place, so the order of rows is kept. The method returns when all the rows are encrypted.
+     * Rows are changed in place even if the batch fails, so after an exception some of them are
+     * encrypted and the others are not. Don't save any row of a failed batch. If the executor
+     * rejects a worker, the workers already submitted are waited for before the
+     * {@link java.util.concurrent.RejectedExecutionException} is rethrown.
+     *
+     * @param contentValuesList rows that need to be encrypted
+     * @param tableName a name of a table into which you are going to save the rows. Used to
+     *                  select an encryption schema in
+     *                  {@link com.furdei.furdroid.security.encryption.EncryptionSettings}
+     * @param executor an executor to run workers on. The number of workers is equal to the number
+     *                 of available processors.
+     * @return statistics of the batch encryption
+     * @throws IOException
+     */
+    public static BatchEncryptionResult encryptContentValues(
+            final List<ContentValues> contentValuesList, String tableName, Executor executor)
+            throws IOException {
+        long startTime = System.nanoTime();
+        int rowCount = contentValuesList.size();
+
+        EncryptedTablePlan table = getTablePlan(tableName);
+        if (table == null || rowCount == 0) {
+            return new BatchEncryptionResult(rowCount, 0, System.nanoTime() - startTime, 0);
+        }
+
+        final String[] columnsToEncrypt = table.getEncColumns();
+        final boolean[] binaryColumns = table.getBinaryFlags();
+        final String[] blindIndexColumns = table.getBlindIndexColumns();
+        final boolean[] compressedColumns = table.getCompressedFlags();
+        final String encryptedTableName = tableName;
+        int workerCount = Math.min(Runtime.getRuntime().availableProcessors(), rowCount);
+        final CountDownLatch done = new CountDownLatch(workerCount);
+        final AtomicLong byteCount = new AtomicLong();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int i = 0; i < workerCount; i++) {
+            final int from = (int) ((long) rowCount * i / workerCount);
+            final int to = (int) ((long) rowCount * (i + 1) / workerCount);
+
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    Cipher cipher = null;
+                    try {
+                        cipher = borrowCipher(Cipher.ENCRYPT_MODE);
+                        long bytes = 0;
+
+                        for (int row = from; row < to && error.get() == null; row++) {
+                            bytes += encryptColumns(cipher, contentValuesList.get(row),
+                                    columnsToEncrypt, binaryColumns, blindIndexColumns,
+                                    compressedColumns, encryptedTableName);
+                        }
+
+                        byteCount.addAndGet(bytes);
+                    } catch (Throwable e) {
+                        // errors are rethrown on the calling thread
+                        error.compareAndSet(null, e);
+                    } finally {
+                        releaseCipher(cipher);
+                        done.countDown();
+                    }
+                }
+            };
+
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // workers that have been submitted stop and are waited for before rethrowing
+                error.compareAndSet(null, e);
+                for (int j = i; j < workerCount; j++) {
+                    done.countDown();
+                }
+                break;
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encrypting content values");
+        }
+
+        Throwable e = error.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            IOException ioException = new IOException("Error while encrypting content values");
+            ioException.initCause(e);
+            throw ioException;
+        }
+
+        return new BatchEncryptionResult(rowCount, byteCount.get(), System.nanoTime() - startTime,
+                workerCount);
+    }
+
+    /**
+     * Encrypt columns of content values in place
+     *
+     * @param binaryColumns flags of columns that store encrypted data in binary form or
+     *                      <code>null</code> if all the columns store Base64 encoded strings
+     * @param blindIndexColumns companion columns to store blind indexes of the columns in or
+     *                          <code>null</code> if there are no blind indexes
+     * @param compressedColumns flags of columns that compress values before encryption or
+     *                          <code>null</code> if no column is compressed
+     * @return the number of unencrypted bytes that have been encrypted
+     */
+    private static long encryptColumns(Cipher encryptCipher, ContentValues contentValues,
+                                       String[] columnsToEncrypt, boolean[] binaryColumns,
+                                       String[] blindIndexColumns, boolean[] compressedColumns,
+                                       String tableName)
+            throws IOException {
         if (encryptCipher == null || contentValues == null || columnsToEncrypt == null
                 || columnsToEncrypt.length == 0 || contentValues.size() == 0)
-            return;
+            return 0;
+
+        long byteCount = 0;
+
+        for (int i = 0; i < columnsToEncrypt.length; i++) {
+            String column = columnsToEncrypt[i];
 
-        for (String column : columnsToEncrypt) {
             if (contentValues.containsKey(column)) {
-                String value = contentValues.getAsString(column);
+                long start = startMetrics();
+                byte[] dataToEncrypt;
+                boolean binary = binaryColumns != null && binaryColumns[i];
+                Object value = contentValues.get(column);
+
+                String blindIndexColumn = blindIndexColumns != null ? blindIndexColumns[i] : null;
+
+                if (binary && value instanceof byte[]) {
+                    dataToEncrypt = (byte[]) value;
+
+                    if (blindIndexColumn != null) {
+                        contentValues.put(blindIndexColumn, blindIndex(dataToEncrypt));
+                    }
+                } else {
+                    String stringValue = contentValues.getAsString(column);
+                    dataToEncrypt = stringValue != null ? stringValue.getBytes(ENCODING) : null;
+
+                    if (blindIndexColumn != null) {
+                        contentValues.put(blindIndexColumn, blindIndex(stringValue));
+                    }
+                }
+
+                if (dataToEncrypt != null && dataToEncrypt.length > 0) {
+                    boolean compress = compressedColumns != null && compressedColumns[i];
+
+                    if (binary) {
+                        contentValues.put(column,
+                                encryptBinary(encryptCipher, dataToEncrypt, compress));
+                    } else {
+                        contentValues.put(column,
+                                encryptText(encryptCipher, dataToEncrypt, compress));
+                    }
 
-                if (value != null && value.length() > 0) {
-                    byte[] dataToEncrypt = value.getBytes(ENCODING);
-                    byte[] encryptedData = encrypt(encryptCipher, dataToEncrypt);
-                    contentValues.put(column, Base64.encodeToString(encryptedData, Base64.DEFAULT));
+                    byteCount += dataToEncrypt.length;
+                    recordMetrics(start, EncryptionOperation.ENCRYPT_COLUMN, tableName, column,
+                            dataToEncrypt.length);
                 }
             }
         }
+
+        return byteCount;
+    }
+
+    /**
+     * Encrypt piece of data to store it in a text encrypted column. Encrypted data is represented
+     * with a Base64 encoded string here, prefixed with its format unless it is encrypted with
+     * {@link CipherSuite#AES_ECB} without compression. Read it with
+     * {@link #decrypt(javax.crypto.Cipher, String)} or
+     * {@link #decryptToBytes(javax.crypto.Cipher, String)}.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param rawBytes a data to encrypt
+     * @param compress <code>true</code> to compress data before encryption. Data that doesn't
+     *                 shrink is stored uncompressed.
+     * @return encrypted data represented with a Base64 encoded string
+     * @throws IOException
+     */
+    public static String encryptText(Cipher encryptCipher, byte[] rawBytes, boolean compress)
+            throws IOException {
+        byte[] compressedData = compress ? Compression.compress(rawBytes) : null;
+        boolean compressed = compressedData != null;
+
+        try {
+            byte[] encryptedData = encrypt(encryptCipher, compressed ? compressedData : rawBytes);
+            return textFormatPrefix(encryptCipher, compressed) + Base64Codec.encode(encryptedData);
+        } finally {
+            if (compressed) {
+                Arrays.fill(compressedData, (byte) 0);
+            }
+        }
     }
 
     /**
@@ -364,39 +1078,550 @@ public class EncryptionUtils {
             return null;
         }
 
-        byte[] encryptedData = Base64.decode(encryptedStringBase64, Base64.DEFAULT);
-        return new String(decrypt(decryptCipher, encryptedData), ENCODING);
+        if (encryptedStringBase64.charAt(0) == TEXT_FORMAT_DELIMITER) {
+            byte[] decryptedData = decryptFormattedText(decryptCipher, encryptedStringBase64);
+            try {
+                return new String(decryptedData, ENCODING);
+            } finally {
+                Arrays.fill(decryptedData, (byte) 0);
+            }
+        }
+
+        ScratchBuffers scratch = scratchBuffers.get();
+        byte[] decryptedData =
+                scratch.decrypted(Base64Codec.maxDecodedLength(encryptedStringBase64));
+        int length = decryptBase64(decryptCipher, CipherSuite.AES_ECB, encryptedStringBase64,
+                scratch, decryptedData);
+
+        try {
+            return new String(decryptedData, 0, length, ENCODING);
+        } finally {
+            Arrays.fill(decryptedData, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt piece of data represented with a Base64 encoded string. Use this method if you need
+     * decrypted data in its binary form, e.g. to be able to erase it from memory when it is not
+     * needed anymore.
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param encryptedStringBase64 encrypted data represented with a Base64 encoded string
+     * @return decrypted data or <code>null</code> if <code>encryptedStringBase64</code> is empty
+     * @throws IOException
+     */
+    public static byte[] decryptToBytes(Cipher decryptCipher, String encryptedStringBase64)
+            throws IOException {
+        if (encryptedStringBase64 == null || encryptedStringBase64.length() == 0) {
+            return null;
+        }
+
+        if (encryptedStringBase64.charAt(0) == TEXT_FORMAT_DELIMITER) {
+            return decryptFormattedText(decryptCipher, encryptedStringBase64);
+        }
+
+        ScratchBuffers scratch = scratchBuffers.get();
+        byte[] buffer = scratch.decrypted(Base64Codec.maxDecodedLength(encryptedStringBase64));
+        int length = decryptBase64(decryptCipher, CipherSuite.AES_ECB, encryptedStringBase64,
+                scratch, buffer);
+
+        byte[] decryptedData = new byte[length];
+        System.arraycopy(buffer, 0, decryptedData, 0, length);
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        return decryptedData;
+    }
+
+    /**
+     * Decode a Base64 string into a scratch buffer and decrypt it into <code>out</code>
+     *
+     * @return the number of bytes stored in <code>out</code>
+     * @throws IOException if the string is not valid Base64 or fails to decrypt
+     */
+    private static int decryptBase64(Cipher decryptCipher, CipherSuite suite,
+                                     CharSequence encryptedStringBase64, ScratchBuffers scratch,
+                                     byte[] out) throws IOException {
+        byte[] encryptedData =
+                scratch.encrypted(Base64Codec.maxDecodedLength(encryptedStringBase64));
+        int encryptedLength;
+        try {
+            encryptedLength = Base64Codec.decode(encryptedStringBase64, encryptedData, 0);
+        } catch (IllegalArgumentException e) {
+            IOException ioException = new IOException("Encrypted value is not Base64 encoded");
+            ioException.initCause(e);
+            throw ioException;
+        }
+
+        return decrypt(decryptCipher, suite, encryptedData, 0, encryptedLength, out, 0);
+    }
+
+    /**
+     * Returns a prefix of text values encrypted by a cipher. Values encrypted with
+     * {@link CipherSuite#AES_ECB} without compression have no prefix, so that they are readable
+     * by older versions of the library. Otherwise the prefix lists the suite identifier and
+     * the compression flag between two <code>'$'</code> characters that never appear in Base64
+     * encoded data, e.g. <code>"$1z$"</code>.
+     */
+    private static String textFormatPrefix(Cipher encryptCipher, boolean compressed) {
+        CipherSuite suite = CipherSuite.of(encryptCipher);
+
+        if (suite == CipherSuite.AES_ECB && !compressed) {
+            return "";
+        }
+
+        StringBuilder prefix = new StringBuilder(4).append(TEXT_FORMAT_DELIMITER);
+        if (suite != CipherSuite.AES_ECB) {
+            prefix.append(suite.getId());
+        }
+        if (compressed) {
+            prefix.append(TEXT_FORMAT_DEFLATE);
+        }
+        return prefix.append(TEXT_FORMAT_DELIMITER).toString();
+    }
+
+    /**
+     * Decrypt a text value that starts with a prefix made by
+     * {@link #textFormatPrefix(javax.crypto.Cipher, boolean)}
+     */
+    private static byte[] decryptFormattedText(Cipher decryptCipher, String encryptedText)
+            throws IOException {
+        int end = encryptedText.indexOf(TEXT_FORMAT_DELIMITER, 1);
+        if (end < 0) {
+            throw new IOException("Unknown text encryption format");
+        }
+
+        int suiteId = 0;
+        boolean compressed = false;
+
+        for (int i = 1; i < end; i++) {
+            char c = encryptedText.charAt(i);
+
+            if (c == TEXT_FORMAT_DEFLATE) {
+                compressed = true;
+            } else if (c >= '0' && c <= '9' && suiteId < 100) {
+                suiteId = suiteId * 10 + c - '0';
+            } else {
+                throw new IOException("Unknown text encryption format: "
+                        + encryptedText.substring(0, end + 1));
+            }
+        }
+
+        CipherSuite suite = CipherSuite.forId(suiteId);
+        if (suite == null) {
+            throw new IOException("Unknown cipher suite: " + suiteId);
+        }
+
+        CharSequence encryptedStringBase64 =
+                CharBuffer.wrap(encryptedText, end + 1, encryptedText.length());
+        ScratchBuffers scratch = scratchBuffers.get();
+        byte[] buffer = scratch.decrypted(Base64Codec.maxDecodedLength(encryptedStringBase64));
+        int length = decryptBase64(decryptCipher, suite, encryptedStringBase64, scratch, buffer);
+
+        try {
+            if (compressed) {
+                return Compression.decompress(buffer, 0, length);
+            }
+
+            byte[] decryptedData = new byte[length];
+            System.arraycopy(buffer, 0, decryptedData, 0, length);
+            return decryptedData;
+        } finally {
+            Arrays.fill(buffer, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypt piece of data to store it in a binary encrypted column. Binary form of encrypted
+     * data starts with a byte identifying encryption format followed by encrypted data. The format
+     * byte is twice the identifier of the {@link CipherSuite} plus one if data is compressed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param rawBytes a data to encrypt
+     * @return encrypted data in binary form
+     * @throws IOException
+     */
+    public static byte[] encryptBinary(Cipher encryptCipher, byte[] rawBytes) throws IOException {
+        return encryptBinaryFormat(encryptCipher, rawBytes, false);
+    }
+
+    /**
+     * Encrypt piece of data to store it in a binary encrypted column, optionally compressing it
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param rawBytes a data to encrypt
+     * @param compress <code>true</code> to compress data before encryption. Data that doesn't
+     *                 shrink is stored uncompressed.
+     * @return encrypted data in binary form
+     * @throws IOException
+     * @see #encryptBinary(javax.crypto.Cipher, byte[])
+     */
+    public static byte[] encryptBinary(Cipher encryptCipher, byte[] rawBytes, boolean compress)
+            throws IOException {
+        byte[] compressedData = compress ? Compression.compress(rawBytes) : null;
+        boolean compressed = compressedData != null;
+
+        try {
+            return encryptBinaryFormat(encryptCipher, compressed ? compressedData : rawBytes,
+                    compressed);
+        } finally {
+            if (compressed) {
+                Arrays.fill(compressedData, (byte) 0);
+            }
+        }
+    }
+
+    private static byte[] encryptBinaryFormat(Cipher encryptCipher, byte[] rawBytes,
+                                              boolean compressed) throws IOException {
+        int format = CipherSuite.of(encryptCipher).getId() * 2
+                + (compressed ? BINARY_FORMAT_DEFLATE : 0);
+        byte[] encryptedData =
+                new byte[1 + getMaxEncryptedSize(encryptCipher, rawBytes.length)];
+        encryptedData[0] = (byte) format;
+        int length = encrypt(encryptCipher, rawBytes, 0, rawBytes.length, encryptedData, 1);
+        return trim(encryptedData, length + 1);
+    }
+
+    /**
+     * Decrypt piece of data read from a binary encrypted column
+     *
+     * @param decryptCipher an instance of {@link javax.crypto.Cipher} initialized for decryption
+     * @param encryptedData encrypted data in binary form
+     * @return decrypted data or <code>null</code> if <code>encryptedData</code> is empty
+     * @throws IOException
+     */
+    public static byte[] decryptBinary(Cipher decryptCipher, byte[] encryptedData)
+            throws IOException {
+        if (encryptedData == null || encryptedData.length == 0) {
+            return null;
+        }
+
+        int format = encryptedData[0] & 0xff;
+        CipherSuite suite = CipherSuite.forId(format / 2);
+        if (suite == null) {
+            throw new IOException("Unknown binary encryption format: " + format);
+        }
+
+        byte[] buffer = new byte[encryptedData.length - 1];
+        int length = decrypt(decryptCipher, suite, encryptedData, 1, buffer.length, buffer, 0);
+
+        if ((format & BINARY_FORMAT_DEFLATE) != 0) {
+            try {
+                return Compression.decompress(buffer, 0, length);
+            } finally {
+                Arrays.fill(buffer, (byte) 0);
+            }
+        }
+
+        return trim(buffer, length);
+    }
+
+    /**
+     * Compute a blind index of a text value. A blind index is a truncated HMAC-SHA256 of
+     * the value keyed with a subkey of the encryption key. Equal values have equal indexes, so
+     * blind index columns can be searched with equality predicates and ordinary SQLite indexes,
+     * while the values can't be recovered from them. Leading and trailing whitespace is not
+     * taken into account.
+     *
+     * @param value unencrypted value
+     * @return a blind index represented with a Base64 encoded string or <code>null</code> if
+     * <code>value</code> is <code>null</code>
+     * @throws IOException
+     */
+    public static String blindIndex(String value) throws IOException {
+        return value != null ? blindIndex(value.trim().getBytes(ENCODING)) : null;
+    }
+
+    /**
+     * Compute a blind index of a binary value
+     *
+     * @param value unencrypted value
+     * @return a blind index represented with a Base64 encoded string or <code>null</code> if
+     * <code>value</code> is <code>null</code>
+     * @throws IOException
+     * @see #blindIndex(String)
+     */
+    public static String blindIndex(byte[] value) throws IOException {
+        if (value == null) {
+            return null;
+        }
+
+        byte[] hash = getBlindIndexMac().doFinal(value);
+        return Base64Codec.encode(hash, 0, BLIND_INDEX_LENGTH);
     }
 
     /**
-     * Returns cached encryption settings
+     * Compute a fingerprint of the current key
+     *
+     * @return a fingerprint represented with a Base64 encoded string
+     * @throws IOException
+     * @see #keyFingerprint(javax.crypto.SecretKey)
+     */
+    public static String keyFingerprint() throws IOException {
+        SecretKey key = secretKey;
+
+        if (key == null) {
+            throw new IllegalStateException("Password has not been specified. Call " +
+                    "EncryptionUtils.setPassword(String) first.");
+        }
+
+        return keyFingerprint(key);
+    }
+
+    /**
+     * Compute a fingerprint of a key. A fingerprint is a truncated HMAC-SHA256 of a fixed label
+     * keyed with the key. It tells keys apart, e.g. to record which key data has been encrypted
+     * with, but doesn't reveal the key.
+     *
+     * @param key a symmetric key
+     * @return a fingerprint represented with a Base64 encoded string
+     * @throws IOException
+     */
+    public static String keyFingerprint(SecretKey key) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+            byte[] hash = mac.doFinal(KEY_FINGERPRINT_INFO.getBytes(ENCODING));
+            return Base64Codec.encode(hash, 0, KEY_FINGERPRINT_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw cryptoError("Error while computing key fingerprint", e);
+        }
+    }
+
+    /**
+     * Returns a per-thread blind index {@link javax.crypto.Mac} initialized with a subkey of
+     * the current key
+     */
+    private static Mac getBlindIndexMac() throws IOException {
+        SecretKey key = secretKey;
+
+        if (key == null) {
+            throw new IllegalStateException("Password has not been specified. Call " +
+                    "EncryptionUtils.setPassword(String) first.");
+        }
+
+        BlindIndexMac blindIndexMac = blindIndexMacs.get();
+
+        if (blindIndexMac == null || blindIndexMac.key != key) {
+            try {
+                blindIndexMac = new BlindIndexMac(key);
+            } catch (GeneralSecurityException e) {
+                throw cryptoError("Error while initializing blind index", e);
+            }
+
+            blindIndexMacs.set(blindIndexMac);
+        }
+
+        return blindIndexMac.mac;
+    }
+
+    /**
+     * Convert decrypted data back into a text string
+     *
+     * @param decryptedData decrypted data returned by
+     *                      {@link #decryptToBytes(javax.crypto.Cipher, String)}
+     * @return a text string or <code>null</code> if <code>decryptedData</code> is
+     * <code>null</code>
+     * @throws IOException
+     */
+    public static String bytesToString(byte[] decryptedData) throws IOException {
+        return decryptedData != null ? new String(decryptedData, ENCODING) : null;
+    }
+
+    /**
+     * Returns current encryption settings. Returned settings are an immutable snapshot, use
+     * {@link #setEncSettings(EncryptionSettings)} to change them.
      */
     public static EncryptionSettings getEncSettings() {
-        if (encSettings == null) {
-            synchronized (EncryptionUtils.class) {
-                if (encSettings == null) {
-                    if (encryptionSettingsProvider == null) {
-                        throw new IllegalStateException(
-                                "Encryption settings provider has not been specified. Call " +
-                                "EncryptionUtils.setEncryptionSettingsProvider(" +
-                                "EncryptionSettingsProvider) to specify encryption settings.");
-                    }
+        return getEncPlan().getSettings();
+    }
 
-                    encSettings = encryptionSettingsProvider.getEncryptionSettings();
-                }
+    /**
+     * Returns the version of current encryption settings. The version grows every time settings
+     * are loaded from the provider or replaced with {@link #setEncSettings(EncryptionSettings)}.
+     */
+    public static long getEncSettingsVersion() {
+        return getEncPlan().getVersion();
+    }
+
+    /**
+     * Replace encryption settings at runtime, e.g. after a schema update. Settings are copied,
+     * so later changes of <code>settings</code> are not taken into account. New settings apply to
+     * data encrypted and cursors opened after this call, open cursors keep using the settings
+     * they have been opened with. Readers never see partially applied settings.
+     *
+     * @param settings new encryption settings
+     * @return the version of new settings
+     */
+    public static synchronized long setEncSettings(EncryptionSettings settings) {
+        if (settings == null) {
+            throw new IllegalArgumentException("settings is null");
+        }
+
+        EncryptionPlan plan = new EncryptionPlan(settings, ++encPlanVersion);
+        encPlan.set(plan);
+        return plan.getVersion();
+    }
+
+    /**
+     * Returns compiled encryption plan of the table
+     *
+     * @param tableName a name of the table
+     * @return a plan of the table or <code>null</code> if the table has no encrypted columns
+     */
+    public static EncryptedTablePlan getTablePlan(String tableName) {
+        return getEncPlan().getTablePlan(tableName);
+    }
+
+    /**
+     * Returns current settings snapshot. Once settings are loaded this method doesn't lock.
+     */
+    private static EncryptionPlan getEncPlan() {
+        EncryptionPlan plan = encPlan.get();
+        return plan != null ? plan : loadEncPlan();
+    }
+
+    private static synchronized EncryptionPlan loadEncPlan() {
+        EncryptionPlan plan = encPlan.get();
+
+        if (plan == null) {
+            if (encryptionSettingsProvider == null) {
+                throw new IllegalStateException(
+                        "Encryption settings provider has not been specified. Call " +
+                        "EncryptionUtils.setEncryptionSettingsProvider(" +
+                        "EncryptionSettingsProvider) to specify encryption settings.");
             }
+
+            plan = new EncryptionPlan(encryptionSettingsProvider.getEncryptionSettings(),
+                    ++encPlanVersion);
+            encPlan.set(plan);
         }
 
-        return encSettings;
+        return plan;
+    }
+
+    /**
+     * Register a listener of encryption metrics. Listener gets notified about encryption,
+     * decryption, cipher initialization, key derivation, reading of encrypted cursor values and
+     * encrypted files. Metrics are disabled by default and cost nearly nothing until a listener
+     * is registered.
+     *
+     * @param listener a listener or <code>null</code> to disable metrics
+     * @see com.furdei.furdroid.security.metrics.InMemoryEncryptionMetrics
+     */
+    public static void setMetricsListener(EncryptionMetricsListener listener) {
+        EncryptionMetrics.setListener(listener);
     }
 
-    private static SecretKey deriveKeyFromPassword(String password)
+    static long startMetrics() {
+        return EncryptionMetrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    static void recordMetrics(long start, EncryptionOperation operation, String tableName,
+                              String columnName, long bytes) {
+        if (start != 0) {
+            EncryptionMetrics.record(operation, tableName, columnName, bytes, start);
+        }
+    }
+
+    /**
+     * Returns the first <code>length</code> bytes of a buffer, the rest of the buffer is erased
+     */
+    private static byte[] trim(byte[] buffer, int length) {
+        if (length == buffer.length) {
+            return buffer;
+        }
+
+        byte[] trimmed = new byte[length];
+        System.arraycopy(buffer, 0, trimmed, 0, length);
+        Arrays.fill(buffer, (byte) 0);
+        return trimmed;
+    }
+
+    static IOException cryptoError(String message, GeneralSecurityException cause) {
+        IOException e = new IOException(message);
+        e.initCause(cause);
+        return e;
+    }
+
+    private static SecretKey deriveKeyFromPassword(String password, int iterationCount)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
+        long start = startMetrics();
         SecretKeyFactory f = SecretKeyFactory.getInstance(DER_ALGORITHM);
         KeySpec ks = new PBEKeySpec(password.toCharArray(), "salt0123456789yo".getBytes(),
-                ITERATION_COUNT, KEY_LENGTH);
+                iterationCount, KEY_LENGTH);
         byte[] keyBytes = f.generateSecret(ks).getEncoded();
+        recordMetrics(start, EncryptionOperation.KEY_DERIVATION, null, null, 0);
         return new SecretKeySpec(keyBytes, KEY_ALGORITHM);
     }
 
+    /**
+     * Per-thread buffers for decoding and decryption of text values. Buffers larger than
+     * {@link #MAX_SCRATCH_BUFFER_SIZE} are not retained so a single huge value doesn't hold
+     * memory for the lifetime of a thread.
+     */
+    private static class ScratchBuffers {
+
+        private byte[] encrypted = new byte[0];
+        private byte[] decrypted = new byte[0];
+
+        private byte[] encrypted(int size) {
+            if (encrypted.length >= size) {
+                return encrypted;
+            }
+
+            byte[] buffer = new byte[size];
+            if (size <= MAX_SCRATCH_BUFFER_SIZE) {
+                encrypted = buffer;
+            }
+            return buffer;
+        }
+
+        private byte[] decrypted(int size) {
+            if (decrypted.length >= size) {
+                return decrypted;
+            }
+
+            byte[] buffer = new byte[size];
+            if (size <= MAX_SCRATCH_BUFFER_SIZE) {
+                decrypted = buffer;
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * {@link javax.crypto.Mac} keyed with a blind index subkey derived from the encryption key.
+     * Blind indexes use a separate key so that they never reuse the encryption key directly.
+     */
+    private static class BlindIndexMac {
+
+        private final SecretKey key;
+        private final Mac mac;
+
+        private BlindIndexMac(SecretKey key) throws GeneralSecurityException {
+            this.key = key;
+            this.mac = Mac.getInstance(MAC_ALGORITHM);
+
+            mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+            byte[] subkey = mac.doFinal(BLIND_INDEX_KEY_INFO.getBytes());
+            mac.init(new SecretKeySpec(subkey, MAC_ALGORITHM));
+            Arrays.fill(subkey, (byte) 0);
+        }
+    }
+
+    /**
+     * Lazily created executor for background key derivation
+     */
+    private static class BackgroundExecutor {
+
+        private static final Executor INSTANCE = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "furdroid-key-derivation");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
 }
@@ -0,0 +1,442 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * <p>
+ * Re-encrypts a tree of encrypted files with a new key. Both files written by
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage EncryptedFileStorage} and
+ * {@link com.furdei.furdroid.security.encryption.ChunkedEncryptedFile ChunkedEncryptedFile}
+ * are supported. Keep encrypted files in a directory of their own or pass a filter that
+ * accepts only them, a file in any other format stops the rotation with an error. Set a new
+ * password first and pass the old key:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+ *  EncryptionUtils.setPassword(newPassword);
+ *  new FileKeyRotation(new File(getFilesDir(), "encrypted"), oldKey).run(executor);
+ * }
+ * </pre>
+ * <p>
+ * Each file is re-encrypted into a temporary file next to it which then replaces the original
+ * one, so a file is never left half-written. Progress is recorded in a journal file in the base
+ * directory. A rotation interrupted by a process kill resumes when {@link #run(Executor)} is
+ * called again with the same keys, files that have already been re-encrypted are skipped.
+ * </p>
+ * <p>
+ * Once the rotation is finished, the journal is replaced with a record of the new key
+ * fingerprint, see
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#keyFingerprint(javax.crypto.SecretKey)}.
+ * A rotation is refused if the files are known to be encrypted with a key other than the old
+ * one, so running a finished rotation again can't damage the files.
+ * </p>
+ *
+ * @see com.furdei.furdroid.security.database.DatabaseKeyRotation DatabaseKeyRotation
+ */
+public class FileKeyRotation {
+
+    private static final String JOURNAL_FILE_NAME = ".furdroid-key-rotation";
+    private static final String TEMP_FILE_SUFFIX = ".rotating";
+    private static final String IN_PROGRESS = "R ";
+    private static final String DONE = "D ";
+    private static final String STARTED = "T ";
+    private static final String PREPARED = "P ";
+    private static final String COMPLETED = "C ";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File baseDir;
+    private final SecretKey oldKey;
+    private final FileFilter filter;
+    private final File journal;
+
+    /**
+     * @param baseDir a directory containing encrypted files only. All files in the directory and
+     *                its subdirectories are re-encrypted.
+     * @param oldKey a key the files are currently encrypted with. Files are re-encrypted with
+     *               the current key of {@link com.furdei.furdroid.security.encryption.EncryptionUtils}.
+     */
+    public FileKeyRotation(File baseDir, SecretKey oldKey) {
+        this(baseDir, oldKey, null);
+    }
+
+    /**
+     * @param baseDir a directory containing encrypted files
+     * @param oldKey a key the files are currently encrypted with. Files are re-encrypted with
+     *               the current key of {@link com.furdei.furdroid.security.encryption.EncryptionUtils}.
+     * @param filter a filter of files and subdirectories of <code>baseDir</code>. Only accepted
+     *               files are re-encrypted, rejected subdirectories are skipped with all their
+     *               content. <code>null</code> accepts everything.
+     */
+    public FileKeyRotation(File baseDir, SecretKey oldKey, FileFilter filter) {
+        this.baseDir = baseDir;
+        this.oldKey = oldKey;
+        this.filter = filter;
+        this.journal = new File(baseDir, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Check whether a rotation was started and hasn't been finished yet
+     *
+     * @throws IOException
+     */
+    public boolean isInProgress() throws IOException {
+        List<String> lines = readJournal();
+        return !lines.isEmpty() && !lines.get(0).startsWith(DONE);
+    }
+
+    /**
+     * Re-encrypt all files or resume an interrupted rotation. Files are split between workers
+     * evenly, the number of workers is equal to the number of available processors. The method
+     * returns when all the files are re-encrypted.
+     *
+     * @param executor an executor to run workers on
+     * @return the number of files re-encrypted by this call
+     * @throws IllegalStateException if the files are known to be encrypted with another key,
+     * e.g. the rotation has already been finished, or another rotation is in progress
+     * @throws InterruptedIOException if the thread was interrupted
+     * @throws IOException
+     */
+    public int run(Executor executor) throws IOException {
+        String oldKeyFingerprint = EncryptionUtils.keyFingerprint(oldKey);
+        String newKeyFingerprint = EncryptionUtils.keyFingerprint();
+
+        if (oldKeyFingerprint.equals(newKeyFingerprint)) {
+            throw new IllegalArgumentException("The old key is the current key");
+        }
+
+        Set<String> completed = begin(oldKeyFingerprint, newKeyFingerprint);
+        final List<File> files = new ArrayList<File>();
+        listFiles(baseDir, completed, files);
+
+        final FileOutputStream journalStream = new FileOutputStream(journal, true);
+        try {
+            int fileCount = files.size();
+            int workerCount = Math.min(Runtime.getRuntime().availableProcessors(), fileCount);
+            final CountDownLatch done = new CountDownLatch(workerCount);
+            final AtomicInteger rotatedCount = new AtomicInteger();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+            for (int i = 0; i < workerCount; i++) {
+                final int from = (int) ((long) fileCount * i / workerCount);
+                final int to = (int) ((long) fileCount * (i + 1) / workerCount);
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Cipher encryptCipher = null;
+                        try {
+                            Cipher decryptCipher = EncryptionUtils.initForDecrypt(oldKey);
+                            encryptCipher = EncryptionUtils.borrowCipher(Cipher.ENCRYPT_MODE);
+
+                            for (int file = from; file < to && error.get() == null; file++) {
+                                rotate(files.get(file), decryptCipher, encryptCipher,
+                                        journalStream);
+                                rotatedCount.incrementAndGet();
+                            }
+                        } catch (Throwable e) {
+                            // errors are rethrown on the calling thread
+                            error.compareAndSet(null, e);
+                            // cipher may be left in the middle of encryption
+                            encryptCipher = null;
+                        } finally {
+                            EncryptionUtils.releaseCipher(encryptCipher);
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+
+            // workers write into the journal, so wait for them even if interrupted. Workers stop
+            // after the current file once an error is recorded.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    error.compareAndSet(null, e);
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable e = error.get();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof InterruptedException) {
+                throw new InterruptedIOException("Key rotation has been interrupted");
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            } else if (e != null) {
+                IOException ioException = new IOException("Error while rotating keys of files");
+                ioException.initCause(e);
+                throw ioException;
+            }
+
+            journalStream.close();
+            writeJournal(DONE + newKeyFingerprint);
+            return rotatedCount.get();
+        } finally {
+            journalStream.close();
+        }
+    }
+
+    /**
+     * Re-encrypt a file into a temporary file and replace the original one. The temporary file
+     * is journaled before it is created and once again before the replacement, so an interrupted
+     * replacement is finished and an unfinished temporary file is removed by
+     * {@link #recover(java.util.List)}.
+     */
+    private void rotate(File file, Cipher decryptCipher, Cipher encryptCipher,
+                        FileOutputStream journalStream) throws IOException {
+        File temp = tempFile(file);
+        String path = relativePath(file);
+
+        // temporary files of this rotation have been removed by recover()
+        if (temp.exists()) {
+            throw new IOException("Temporary file already exists " + temp);
+        }
+
+        appendToJournal(journalStream, STARTED + path);
+
+        if (ChunkedEncryptedFile.isChunkedFile(file)) {
+            rotateChunked(file, temp, decryptCipher, encryptCipher);
+        } else {
+            rotateWhole(file, temp, decryptCipher, encryptCipher);
+        }
+
+        appendToJournal(journalStream, PREPARED + path);
+        AtomicFiles.replace(temp, file);
+        AtomicFiles.syncDirectory(AtomicFiles.getDirectory(file));
+        appendToJournal(journalStream, COMPLETED + path);
+    }
+
+    private static void rotateWhole(File file, File temp, Cipher decryptCipher,
+                                    Cipher encryptCipher) throws IOException {
+        boolean compressed = EncryptedFileStorage.isCompressed(file);
+        InputStream input = EncryptedFileStorage.openDecryptingInputStream(decryptCipher, file);
+        try {
+            EncryptedFileStorage.write(encryptCipher, new AtomicFiles.SyncingOutputStream(temp),
+                    input, compressed);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void rotateChunked(File file, File temp, final Cipher decryptCipher,
+                                      Cipher encryptCipher) throws IOException {
+        final ChunkedEncryptedFile input = ChunkedEncryptedFile.open(file);
+        try {
+            RandomAccessFile output = new RandomAccessFile(temp, "rw");
+            try {
+                ChunkedEncryptedFile.write(encryptCipher, output, new InputStream() {
+                    private long position;
+
+                    @Override
+                    public int read() throws IOException {
+                        byte[] b = new byte[1];
+                        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int bytesRead = input.read(decryptCipher, position, b, off, len);
+                        if (bytesRead > 0) {
+                            position += bytesRead;
+                        }
+                        return bytesRead;
+                    }
+                }, input.getChunkSize());
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Check the keys against the journal and start a new rotation or resume an interrupted one.
+     * The first line of the journal holds fingerprints of the old and the new key of a rotation
+     * in progress or a fingerprint of the new key of a finished rotation.
+     *
+     * @return relative paths of files that have already been re-encrypted
+     */
+    private Set<String> begin(String oldKeyFingerprint, String newKeyFingerprint)
+            throws IOException {
+        List<String> lines = readJournal();
+        String inProgress = IN_PROGRESS + oldKeyFingerprint + " " + newKeyFingerprint;
+
+        if (lines.isEmpty() || lines.get(0).startsWith(DONE)) {
+            if (!lines.isEmpty() && !lines.get(0).equals(DONE + oldKeyFingerprint)) {
+                throw new IllegalStateException("Files are not encrypted with the old key. " +
+                        "The key rotation may have been finished already.");
+            }
+
+            writeJournal(inProgress);
+            return new HashSet<String>();
+        }
+
+        if (!lines.get(0).startsWith(IN_PROGRESS)) {
+            throw new IOException("Key rotation journal is damaged " + journal);
+        }
+
+        if (!lines.get(0).equals(inProgress)) {
+            throw new IllegalStateException("Another key rotation is in progress. Finish it " +
+                    "with the keys it was started with first.");
+        }
+
+        return recover(lines);
+    }
+
+    /**
+     * Finish replacements interrupted by a process kill and remove unfinished temporary files.
+     * Only temporary files recorded in the journal are touched.
+     *
+     * @return relative paths of files that have already been re-encrypted
+     */
+    private Set<String> recover(List<String> lines) throws IOException {
+        Set<String> completed = new HashSet<String>();
+        Set<String> prepared = new HashSet<String>();
+        Set<String> started = new HashSet<String>();
+
+        // a torn last line is ignored
+        for (String line : lines) {
+            if (line.startsWith(STARTED)) {
+                started.add(line.substring(STARTED.length()));
+            } else if (line.startsWith(PREPARED)) {
+                prepared.add(line.substring(PREPARED.length()));
+            } else if (line.startsWith(COMPLETED)) {
+                completed.add(line.substring(COMPLETED.length()));
+            }
+        }
+
+        for (String path : prepared) {
+            if (!completed.contains(path)) {
+                File file = new File(baseDir, path);
+                File temp = tempFile(file);
+
+                if (temp.exists()) {
+                    AtomicFiles.replace(temp, file);
+                    AtomicFiles.syncDirectory(AtomicFiles.getDirectory(file));
+                }
+
+                completed.add(path);
+            }
+        }
+
+        for (String path : started) {
+            if (!prepared.contains(path)) {
+                File temp = tempFile(new File(baseDir, path));
+
+                if (temp.exists() && !temp.delete()) {
+                    throw new IOException("Unable to delete temporary file " + temp);
+                }
+            }
+        }
+
+        return completed;
+    }
+
+    private List<String> readJournal() throws IOException {
+        List<String> lines = new ArrayList<String>();
+
+        if (journal.exists()) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Atomically replace the journal with a single line
+     */
+    private void writeJournal(String line) throws IOException {
+        File temp = AtomicFiles.createTempFile(journal);
+        FileOutputStream output = new AtomicFiles.SyncingOutputStream(temp);
+        try {
+            output.write((line + "\n").getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+
+        AtomicFiles.replace(temp, journal);
+        AtomicFiles.syncDirectory(baseDir);
+    }
+
+    private void listFiles(File dir, Set<String> completed, List<File> files)
+            throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.getName().startsWith("." + JOURNAL_FILE_NAME)) {
+                // a temporary journal left by a process kill
+                if (!child.delete()) {
+                    throw new IOException("Unable to delete temporary file " + child);
+                }
+            } else if (filter != null && !filter.accept(child)) {
+                continue;
+            } else if (child.isDirectory()) {
+                listFiles(child, completed, files);
+            } else if (!child.equals(journal) && !AtomicFiles.isTempFile(child)
+                    && !completed.contains(relativePath(child))) {
+                // temporary files of atomic writes are not data files
+                files.add(child);
+            }
+        }
+    }
+
+    private String relativePath(File file) {
+        return baseDir.toURI().relativize(file.toURI()).getPath();
+    }
+
+    private static File tempFile(File file) {
+        return new File(file.getPath() + TEMP_FILE_SUFFIX);
+    }
+
+    private static void appendToJournal(FileOutputStream journalStream, String line)
+            throws IOException {
+        synchronized (journalStream) {
+            journalStream.write((line + "\n").getBytes("UTF-8"));
+            journalStream.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.furdei.furdroid.security.encryption;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>
+ * Writes many encrypted files atomically with fewer disk flushes than
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage#writeAtomically(javax.crypto.Cipher,
+ * java.io.File, byte[])}. Written files are kept in temporary files until {@link #commit()} is
+ * called. Commit flushes data of all pending files, renames them over the target files and
+ * flushes each affected directory once:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  GroupCommit commit = new GroupCommit();
+ *  try {
+ *      for (Map.Entry<File, byte[]> file : files.entrySet()) {
+ *          commit.write(cipher, file.getKey(), file.getValue());
+ *      }
+ *      commit.commit();
+ *  } finally {
+ *      commit.close();
+ *  }
+ * }
+ * </pre>
+ * <p>
+ * Each file keeps either its old or its new content after a crash, but files committed together
+ * are not replaced as a single unit. Temporary files left by a crash are removed by
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileStorage#deleteTempFiles(java.io.File)}.
+ * Instances are thread-safe, so workers of
+ * {@link com.furdei.furdroid.security.encryption.EncryptedFileBatch EncryptedFileBatch} can
+ * share one.
+ * </p>
+ */
+public class GroupCommit implements Closeable {
+
+    private final List<File> pendingTemps = new ArrayList<File>();
+    private final List<File> pendingTargets = new ArrayList<File>();
+
+    /**
+     * Encrypt data and write it into a temporary file that replaces <code>file</code> on commit
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param rawBytes unencrypted data
+     * @throws IOException
+     */
+    public void write(Cipher encryptCipher, File file, byte[] rawBytes) throws IOException {
+        write(encryptCipher, file, new ByteArrayInputStream(rawBytes));
+    }
+
+    /**
+     * Encrypt data read from a stream and write it into a temporary file that replaces
+     * <code>file</code> on commit. Source stream is read up to the end but is not closed.
+     *
+     * @param encryptCipher an instance of {@link javax.crypto.Cipher} initialized for encryption
+     * @param file output file
+     * @param source unencrypted data
+     * @throws IOException
+     */
+    public void write(Cipher encryptCipher, File file, InputStream source) throws IOException {
+        File temp = AtomicFiles.createTempFile(file);
+        boolean written = false;
+        try {
+            EncryptedFileStorage.write(encryptCipher, new FileOutputStream(temp), source);
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        synchronized (this) {
+            pendingTemps.add(temp);
+            pendingTargets.add(file);
+        }
+    }
+
+    /**
+     * Returns the number of files written since the last commit
+     */
+    public synchronized int getPendingCount() {
+        return pendingTemps.size();
+    }
+
+    /**
+     * Flush all pending files to disk, replace target files with them and flush their
+     * directories. If a file can't be flushed, no files are replaced and pending files are
+     * discarded.
+     *
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        try {
+            for (File temp : pendingTemps) {
+                AtomicFiles.sync(temp);
+            }
+
+            Set<File> dirs = new LinkedHashSet<File>();
+            for (int i = 0; i < pendingTemps.size(); i++) {
+                AtomicFiles.replace(pendingTemps.get(i), pendingTargets.get(i));
+                dirs.add(AtomicFiles.getDirectory(pendingTargets.get(i)));
+            }
+
+            for (File dir : dirs) {
+                AtomicFiles.syncDirectory(dir);
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Discard files that haven't been committed
+     */
+    @Override
+    public synchronized void close() {
+        discard();
+    }
+
+    private void discard() {
+        for (File temp : pendingTemps) {
+            // renamed files don't exist under temporary names anymore
+            temp.delete();
+        }
+
+        pendingTemps.clear();
+        pendingTargets.clear();
+    }
+}
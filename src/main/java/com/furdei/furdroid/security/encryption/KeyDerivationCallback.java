@@ -0,0 +1,23 @@
+package com.furdei.furdroid.security.encryption;
+
+/**
+ * Receives the result of an asynchronous key derivation started by
+ * {@link EncryptionUtils#setPasswordAsync(String, KeyDerivationParams, KeyDerivationCallback)}.
+ * Methods are called on a background thread.
+ */
+public interface KeyDerivationCallback {
+
+    /**
+     * Called when a key has been derived and set up. Encryption is ready to use.
+     *
+     * @param params parameters the key has been derived with
+     */
+    public void onKeyDerived(KeyDerivationParams params);
+
+    /**
+     * Called when key derivation fails. Previously set key stays in use.
+     *
+     * @param e an error occurred
+     */
+    public void onKeyDerivationFailed(Exception e);
+}
@@ -0,0 +1,87 @@
+package com.furdei.furdroid.security.encryption;
+
+import android.content.SharedPreferences;
+
+/**
+ * Parameters of the key derivation algorithm. The same key is derived from the same password only
+ * if the same parameters are used, so once your app has encrypted any data with a key derived
+ * with some parameters it has to use these parameters forever. Parameters aren't secret, so it is
+ * safe to keep them in {@link android.content.SharedPreferences}.
+ * <p>
+ * Parameters can be calibrated for the device with
+ * {@link EncryptionUtils#calibrateKeyDerivation(long)}. Calibration picks the number of
+ * iterations that makes key derivation take about the target time. Don't calibrate parameters on
+ * every launch: calibration results vary from run to run and any difference produces a different
+ * key. Calibrate them once, store them with {@link #save(android.content.SharedPreferences, String)}
+ * and load them on later launches with {@link #load(android.content.SharedPreferences, String)}.
+ * </p>
+ *
+ * @see EncryptionUtils#setPassword(String, KeyDerivationParams)
+ * @see EncryptionUtils#setPasswordAsync(String, android.content.SharedPreferences, String, long,
+ * KeyDerivationCallback)
+ */
+public final class KeyDerivationParams {
+
+    /**
+     * Parameters used by {@link EncryptionUtils#setPassword(String)}
+     */
+    public static final KeyDerivationParams DEFAULT = new KeyDerivationParams(1000);
+
+    private final int iterationCount;
+
+    public KeyDerivationParams(int iterationCount) {
+        if (iterationCount <= 0) {
+            throw new IllegalArgumentException("iterationCount <= 0. iterationCount: "
+                    + iterationCount);
+        }
+
+        this.iterationCount = iterationCount;
+    }
+
+    /**
+     * Returns the number of iterations of the key derivation algorithm
+     */
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    /**
+     * Save parameters into shared preferences
+     *
+     * @param preferences preferences to save parameters to
+     * @param key a key of the parameters in the preferences
+     * @return <code>true</code> if parameters have been saved successfully
+     */
+    public boolean save(SharedPreferences preferences, String key) {
+        return preferences.edit().putInt(key + ".iterationCount", iterationCount).commit();
+    }
+
+    /**
+     * Load parameters saved by {@link #save(android.content.SharedPreferences, String)}
+     *
+     * @param preferences preferences to load parameters from
+     * @param key a key of the parameters in the preferences
+     * @return saved parameters or <code>null</code> if there are no parameters saved with
+     * the key
+     */
+    public static KeyDerivationParams load(SharedPreferences preferences, String key) {
+        int iterationCount = preferences.getInt(key + ".iterationCount", 0);
+        return iterationCount > 0 ? new KeyDerivationParams(iterationCount) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KeyDerivationParams
+                && ((KeyDerivationParams) o).iterationCount == iterationCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return iterationCount;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyDerivationParams{iterationCount=" + iterationCount + "}";
+    }
+}
@@ -0,0 +1,133 @@
+package com.furdei.furdroid.security.encryption;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Loads encryption settings from a snapshot generated at build time by
+ * {@link com.furdei.furdroid.security.encryption.EncryptionSettingsSnapshot}. Unlike
+ * {@link com.furdei.furdroid.security.encryption.EncryptionSettingsParser} it doesn't parse XML,
+ * so it keeps the first access to encrypted tables off the cold start critical path. Settings are
+ * parsed from XML when the snapshot is missing, stale or damaged:
+ * </p>
+ * <pre>
+ * {@code
+ *
+ *  EncryptionUtils.setEncryptionSettingsProvider(new PrecompiledEncryptionSettingsProvider(
+ *      getApplicationContext(), R.raw.encryption_settings, R.xml.encryption_settings,
+ *      SETTINGS_VERSION));
+ * }
+ * </pre>
+ */
+public class PrecompiledEncryptionSettingsProvider implements EncryptionSettingsProvider {
+
+    private final Context context;
+    private final int snapshotResourceId;
+    private final int settingsXmlResourceId;
+    private final EncryptionSettingsProvider fallback;
+    private InputStream snapshot;
+    private byte[] snapshotBytes;
+    private final long settingsVersion;
+
+    /**
+     * @param context a context to load resources with
+     * @param snapshotResourceId a raw resource containing the snapshot
+     * @param settingsXmlResourceId an XML resource the snapshot has been generated from
+     * @param settingsVersion a version of the settings the snapshot has been generated with
+     */
+    public PrecompiledEncryptionSettingsProvider(Context context, int snapshotResourceId,
+                                                 int settingsXmlResourceId,
+                                                 long settingsVersion) {
+        this.context = context;
+        this.snapshotResourceId = snapshotResourceId;
+        this.settingsXmlResourceId = settingsXmlResourceId;
+        this.snapshot = null;
+        this.fallback = null;
+        this.settingsVersion = settingsVersion;
+    }
+
+    /**
+     * @param snapshot a stream containing the snapshot or <code>null</code> if there is none.
+     *                 The stream is read and closed by the first call of
+     *                 {@link #getEncryptionSettings()}, its content is kept for later calls.
+     * @param settingsVersion a version of the settings the snapshot has been generated with
+     * @param fallback a provider used when the snapshot is missing, stale or damaged
+     */
+    public PrecompiledEncryptionSettingsProvider(InputStream snapshot, long settingsVersion,
+                                                 EncryptionSettingsProvider fallback) {
+        if (fallback == null) {
+            throw new IllegalArgumentException("fallback is null");
+        }
+
+        this.context = null;
+        this.snapshotResourceId = 0;
+        this.settingsXmlResourceId = 0;
+        this.snapshot = snapshot;
+        this.fallback = fallback;
+        this.settingsVersion = settingsVersion;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EncryptionSettings getEncryptionSettings() {
+        EncryptionSettings settings = null;
+        InputStream input = openSnapshot();
+
+        if (input != null) {
+            try {
+                settings = EncryptionSettingsSnapshot.read(input, settingsVersion);
+            } catch (IOException e) {
+                // damaged snapshot, settings are parsed from XML
+                e.printStackTrace();
+            } finally {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        return settings != null ? settings : getFallback().getEncryptionSettings();
+    }
+
+    private synchronized InputStream openSnapshot() {
+        if (context == null) {
+            if (snapshot != null) {
+                try {
+                    snapshotBytes = EncryptionSettingsSnapshot.readAll(snapshot);
+                } catch (IOException e) {
+                    // unreadable snapshot, settings are parsed from XML
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        snapshot.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                    snapshot = null;
+                }
+            }
+
+            return snapshotBytes != null ? new ByteArrayInputStream(snapshotBytes) : null;
+        }
+
+        try {
+            return context.getResources().openRawResource(snapshotResourceId);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+    }
+
+    private EncryptionSettingsProvider getFallback() {
+        return fallback != null ? fallback :
+                new EncryptionSettingsParser(context, settingsXmlResourceId);
+    }
+}
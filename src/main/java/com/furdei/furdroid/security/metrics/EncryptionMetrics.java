@@ -0,0 +1,65 @@
+package com.furdei.furdroid.security.metrics;
+
+/**
+ * Dispatches encryption metrics to the registered
+ * {@link com.furdei.furdroid.security.metrics.EncryptionMetricsListener}. When there is no
+ * listener the only overhead of instrumented code is a check of {@link #isEnabled()}, time is not
+ * even measured:
+ * <pre>
+ * {@code
+ *
+ *  long start = EncryptionMetrics.isEnabled() ? System.nanoTime() : 0;
+ *  // ... operation ...
+ *  if (start != 0) {
+ *      EncryptionMetrics.record(EncryptionOperation.DECRYPT, null, null, bytes, start);
+ *  }
+ * }
+ * </pre>
+ */
+public final class EncryptionMetrics {
+
+    private static volatile EncryptionMetricsListener listener;
+
+    private EncryptionMetrics() {
+    }
+
+    /**
+     * Register a listener. Pass <code>null</code> to disable metrics.
+     */
+    public static void setListener(EncryptionMetricsListener listener) {
+        EncryptionMetrics.listener = listener;
+    }
+
+    /**
+     * Returns the registered listener or <code>null</code> if metrics are disabled
+     */
+    public static EncryptionMetricsListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Returns <code>true</code> if there is a registered listener
+     */
+    public static boolean isEnabled() {
+        return listener != null;
+    }
+
+    /**
+     * Report a completed operation to the listener
+     *
+     * @param operation a kind of operation
+     * @param tableName a table the operation relates to or <code>null</code>
+     * @param columnName a column the operation relates to or <code>null</code>
+     * @param bytes the number of unencrypted bytes processed
+     * @param startNanos a value of {@link System#nanoTime()} taken when the operation started
+     */
+    public static void record(EncryptionOperation operation, String tableName, String columnName,
+                              long bytes, long startNanos) {
+        EncryptionMetricsListener current = listener;
+
+        if (current != null) {
+            current.onOperation(operation, tableName, columnName, bytes,
+                    System.nanoTime() - startNanos);
+        }
+    }
+}
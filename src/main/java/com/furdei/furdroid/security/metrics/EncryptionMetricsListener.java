@@ -0,0 +1,24 @@
+package com.furdei.furdroid.security.metrics;
+
+/**
+ * Receives metrics of encryption operations. Register a listener with
+ * {@link com.furdei.furdroid.security.encryption.EncryptionUtils#setMetricsListener(EncryptionMetricsListener)}.
+ * Listener is called synchronously on the thread that performs an operation, possibly from
+ * several threads at once, so implementation must be thread-safe and fast.
+ *
+ * @see com.furdei.furdroid.security.metrics.InMemoryEncryptionMetrics
+ */
+public interface EncryptionMetricsListener {
+
+    /**
+     * Called when an operation completes
+     *
+     * @param operation a kind of operation
+     * @param tableName a table the operation relates to or <code>null</code>
+     * @param columnName a column the operation relates to or <code>null</code>
+     * @param bytes the number of unencrypted bytes processed
+     * @param nanos time the operation took in nanoseconds
+     */
+    public void onOperation(EncryptionOperation operation, String tableName, String columnName,
+                            long bytes, long nanos);
+}
@@ -0,0 +1,49 @@
+package com.furdei.furdroid.security.metrics;
+
+/**
+ * Kinds of operations reported to
+ * {@link com.furdei.furdroid.security.metrics.EncryptionMetricsListener}
+ */
+public enum EncryptionOperation {
+
+    /**
+     * Encryption of a piece of data
+     */
+    ENCRYPT,
+
+    /**
+     * Decryption of a piece of data
+     */
+    DECRYPT,
+
+    /**
+     * Lookup and initialization of a {@link javax.crypto.Cipher}
+     */
+    CIPHER_INIT,
+
+    /**
+     * Derivation of a key from a password
+     */
+    KEY_DERIVATION,
+
+    /**
+     * Encryption of a column value in {@link android.content.ContentValues}
+     */
+    ENCRYPT_COLUMN,
+
+    /**
+     * Reading of an encrypted column value through
+     * {@link com.furdei.furdroid.security.database.DecryptingSQLiteCursor} getters
+     */
+    CURSOR_GET,
+
+    /**
+     * Reading and decryption of an encrypted file
+     */
+    FILE_READ,
+
+    /**
+     * Encryption and writing of an encrypted file
+     */
+    FILE_WRITE
+}
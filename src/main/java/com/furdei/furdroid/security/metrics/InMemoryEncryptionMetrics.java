@@ -0,0 +1,238 @@
+package com.furdei.furdroid.security.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe in-memory aggregator of encryption metrics. It keeps counts, bytes and latency
+ * histograms per operation, table and column. Histogram buckets are powers of two nanoseconds.
+ * Intended for debug builds:
+ * <pre>
+ * {@code
+ *
+ *  InMemoryEncryptionMetrics metrics = new InMemoryEncryptionMetrics();
+ *  EncryptionUtils.setMetricsListener(metrics);
+ *  // ...
+ *  Log.d(TAG, metrics.dump());
+ * }
+ * </pre>
+ */
+public class InMemoryEncryptionMetrics implements EncryptionMetricsListener {
+
+    private static final int BUCKET_COUNT = 64;
+
+    private final ConcurrentMap<Key, Stats> stats = new ConcurrentHashMap<Key, Stats>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onOperation(EncryptionOperation operation, String tableName, String columnName,
+                            long bytes, long nanos) {
+        Key key = new Key(operation, tableName, columnName);
+        Stats operationStats = stats.get(key);
+
+        if (operationStats == null) {
+            Stats newStats = new Stats(key);
+            operationStats = stats.putIfAbsent(key, newStats);
+            if (operationStats == null) {
+                operationStats = newStats;
+            }
+        }
+
+        operationStats.add(bytes, nanos);
+    }
+
+    /**
+     * Get statistics of an operation
+     *
+     * @param operation a kind of operation
+     * @param tableName a table name or <code>null</code>
+     * @param columnName a column name or <code>null</code>
+     * @return statistics or <code>null</code> if no such operation has been reported
+     */
+    public Stats getStats(EncryptionOperation operation, String tableName, String columnName) {
+        return stats.get(new Key(operation, tableName, columnName));
+    }
+
+    /**
+     * Returns statistics of all the operations reported, sorted by operation, table and column
+     */
+    public List<Stats> getAllStats() {
+        List<Stats> result = new ArrayList<Stats>(stats.values());
+        Collections.sort(result, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats lhs, Stats rhs) {
+                return lhs.key.toString().compareTo(rhs.key.toString());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Forget all the collected statistics
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Returns a human-readable report of all the collected statistics, one line per operation,
+     * table and column
+     */
+    public String dump() {
+        StringBuilder report = new StringBuilder();
+
+        for (Stats operationStats : getAllStats()) {
+            report.append(operationStats).append('\n');
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Statistics of a single operation, table and column
+     */
+    public static class Stats {
+
+        private final Key key;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+
+        private Stats(Key key) {
+            this.key = key;
+        }
+
+        private void add(long bytes, long nanos) {
+            count.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        public EncryptionOperation getOperation() {
+            return key.operation;
+        }
+
+        public String getTableName() {
+            return key.tableName;
+        }
+
+        public String getColumnName() {
+            return key.columnName;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        /**
+         * Returns the number of operations that took from <code>2^(bucket-1)</code> to
+         * <code>2^bucket</code> nanoseconds
+         */
+        public long getHistogramBucket(int bucket) {
+            return histogram.get(bucket);
+        }
+
+        /**
+         * Returns an estimate of a latency percentile in nanoseconds. Estimate is an upper bound
+         * of the histogram bucket the percentile falls into.
+         *
+         * @param percentile a percentile from 0 to 100
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += histogram.get(i);
+            }
+
+            long threshold = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += histogram.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return i < BUCKET_COUNT - 1 ? 1L << i : Long.MAX_VALUE;
+                }
+            }
+
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long operations = getCount();
+            return key + ": count=" + operations + ", bytes=" + getBytes()
+                    + ", avgNanos=" + (operations > 0 ? getTotalNanos() / operations : 0)
+                    + ", p50Nanos<=" + getPercentileNanos(50)
+                    + ", p99Nanos<=" + getPercentileNanos(99);
+        }
+
+        private static int bucket(long nanos) {
+            return nanos <= 0 ? 0 : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        }
+    }
+
+    private static final class Key {
+
+        private final EncryptionOperation operation;
+        private final String tableName;
+        private final String columnName;
+
+        private Key(EncryptionOperation operation, String tableName, String columnName) {
+            this.operation = operation;
+            this.tableName = tableName;
+            this.columnName = columnName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return operation == other.operation
+                    && (tableName == null ? other.tableName == null : tableName.equals(other.tableName))
+                    && (columnName == null ? other.columnName == null : columnName.equals(other.columnName));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = operation.hashCode();
+            hash = 31 * hash + (tableName != null ? tableName.hashCode() : 0);
+            hash = 31 * hash + (columnName != null ? columnName.hashCode() : 0);
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder name = new StringBuilder(operation.name());
+            if (tableName != null) {
+                name.append(' ').append(tableName);
+                if (columnName != null) {
+                    name.append('.').append(columnName);
+                }
+            } else if (columnName != null) {
+                name.append(' ').append(columnName);
+            }
+            return name.toString();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.Base64Codec;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * Tests Base64 encoding and decoding of encrypted data
+ */
+public class Base64CodecTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+    }
+
+    @Test
+    public void testEncodeAndDecode() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.Base64CodecTest.testEncodeAndDecode");
+        String[] plain = { "", "f", "fo", "foo", "foob", "fooba", "foobar" };
+        String[] encoded = { "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy" };
+
+        for (int i = 0; i < plain.length; i++) {
+            byte[] bytes = plain[i].getBytes("UTF-8");
+            Assert.assertEquals(encoded[i], Base64Codec.encode(bytes));
+            Assert.assertArrayEquals(bytes, Base64Codec.decode(encoded[i]));
+        }
+    }
+
+    @Test
+    public void testDecodeWrapped() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.Base64CodecTest.testDecodeWrapped");
+        byte[] src = new byte[200];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 31);
+        }
+
+        String noWrap = Base64Codec.encode(src);
+        Assert.assertEquals(-1, noWrap.indexOf('\n'));
+
+        StringBuilder wrapped = new StringBuilder();
+        for (int i = 0; i < noWrap.length(); i += 76) {
+            wrapped.append(noWrap, i, Math.min(noWrap.length(), i + 76)).append('\n');
+        }
+
+        Assert.assertArrayEquals(src, Base64Codec.decode(wrapped));
+
+        ByteBuffer buffer = ByteBuffer.allocate(Base64Codec.maxDecodedLength(wrapped));
+        Assert.assertEquals(src.length, Base64Codec.decode(wrapped, buffer));
+        Assert.assertArrayEquals(src, Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeInvalid() {
+        System.out.println("com.furdei.furdroid.security.encryption.test.Base64CodecTest.testDecodeInvalid");
+        Base64Codec.decode("Zm9v*mFy");
+    }
+
+    @Test
+    public void testDecryptLegacyValue() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.Base64CodecTest.testDecryptLegacyValue");
+        String src = "My test значение 123 that is long enough to be wrapped by a legacy encoder";
+        byte[] encrypted = EncryptionUtils.encrypt(EncryptionUtils.initForEncrypt(), src.getBytes("UTF-8"));
+        String noWrap = Base64Codec.encode(encrypted);
+        String wrapped = noWrap.substring(0, 76) + "\n" + noWrap.substring(76) + "\n";
+
+        Cipher decryptCipher = EncryptionUtils.initForDecrypt();
+        Assert.assertEquals(src, EncryptionUtils.decrypt(decryptCipher, noWrap));
+        Assert.assertEquals(src, EncryptionUtils.decrypt(decryptCipher, wrapped));
+    }
+
+    @Test
+    public void testDecryptInvalid() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.Base64CodecTest.testDecryptInvalid");
+        Cipher decryptCipher = EncryptionUtils.initForDecrypt();
+        String[] invalid = { "hello!", "$1$hello!" };
+
+        for (String value : invalid) {
+            try {
+                EncryptionUtils.decrypt(decryptCipher, value);
+                fail("Malformed value has been decrypted: " + value);
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+
+            try {
+                EncryptionUtils.decryptToBytes(decryptCipher, value);
+                fail("Malformed value has been decrypted: " + value);
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.database.BlindIndexQuery;
+import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettings;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests lookups of encrypted columns through blind indexes
+ */
+public class BlindIndexQueryTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+
+        EncryptionSettings settings = new EncryptionSettings();
+        EncryptedTableSettings customers = new EncryptedTableSettings("customers");
+        customers.markColumnEncrypted("phone");
+        customers.setBlindIndexColumn("phone", "phone_index");
+        customers.markColumnEncryptedBinary("photo");
+        customers.setBlindIndexColumn("photo", "photo_index");
+        settings.getEncryptedTables().put("customers", customers);
+        EncryptionUtils.setEncSettings(settings);
+    }
+
+    @Test
+    public void testTextColumn() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.BlindIndexQueryTest.testTextColumn");
+        // text values are indexed with surrounding whitespace trimmed
+        String writtenIndex = EncryptionUtils.blindIndex(" +1 555 0100 ");
+        BlindIndexQuery query = BlindIndexQuery.whereEquals("customers", "phone", "+1 555 0100")
+                .andEquals("status", "active");
+
+        assertEquals("phone_index = ? AND status = ?", query.getSelection());
+        assertArrayEquals(new String[] {writtenIndex, "active"}, query.getSelectionArgs());
+    }
+
+    @Test
+    public void testBinaryColumn() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.BlindIndexQueryTest.testBinaryColumn");
+        // binary values are indexed as they are
+        byte[] photo = {' ', 1, 2, 3, ' '};
+        String writtenIndex = EncryptionUtils.blindIndex(photo);
+        BlindIndexQuery query = BlindIndexQuery.whereEquals("customers", "photo", photo);
+
+        assertEquals("photo_index = ?", query.getSelection());
+        assertArrayEquals(new String[] {writtenIndex}, query.getSelectionArgs());
+        assertFalse(writtenIndex.equals(EncryptionUtils.blindIndex(new byte[] {1, 2, 3})));
+
+        assertEquals("photo_index IS NULL",
+                BlindIndexQuery.whereEquals("customers", "photo", (byte[]) null).getSelection());
+
+        try {
+            BlindIndexQuery.whereEquals("customers", "status", photo);
+            fail("Binary value has been compared with an unencrypted column");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
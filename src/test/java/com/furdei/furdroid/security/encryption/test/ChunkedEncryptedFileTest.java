@@ -0,0 +1,188 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.ChunkedEncryptedFile;
+import com.furdei.furdroid.security.encryption.CipherSuite;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests random-access reads of chunked encrypted files
+ */
+public class ChunkedEncryptedFileTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+    private File file;
+    private byte[] src;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+        file = new File(System.getProperty("java.io.tmpdir"), "test.chunked");
+        src = new byte[10000];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 7);
+        }
+        ChunkedEncryptedFile.write(EncryptionUtils.initForEncrypt(), file,
+                new ByteArrayInputStream(src), 1000);
+    }
+
+    @Test
+    public void testReadSlices() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.ChunkedEncryptedFileTest.testReadSlices");
+        ChunkedEncryptedFile chunkedFile = ChunkedEncryptedFile.open(file);
+        try {
+            assertEquals(src.length, chunkedFile.length());
+            assertArrayEquals(Arrays.copyOfRange(src, 0, 10),
+                    chunkedFile.read(EncryptionUtils.initForDecrypt(), 0, 10));
+            assertArrayEquals(Arrays.copyOfRange(src, 995, 3010),
+                    chunkedFile.read(EncryptionUtils.initForDecrypt(), 995, 2015));
+            assertArrayEquals(Arrays.copyOfRange(src, 9990, 10000),
+                    chunkedFile.read(EncryptionUtils.initForDecrypt(), 9990, 100));
+            assertEquals(-1, chunkedFile.read(EncryptionUtils.initForDecrypt(), 10000,
+                    new byte[1], 0, 1));
+        } finally {
+            chunkedFile.close();
+        }
+    }
+
+    @Test
+    public void testDamagedFile() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.ChunkedEncryptedFileTest.testDamagedFile");
+        // chunk count, chunk size, data length and index offset
+        int[][] corruptions = {{12, 0x7fffffff}, {12, -1}, {8, 0}, {8, -5}, {20, 5}, {28, 0}};
+
+        for (int[] corruption : corruptions) {
+            setup();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.seek(corruption[0]);
+                randomAccessFile.writeInt(corruption[1]);
+            } finally {
+                randomAccessFile.close();
+            }
+            assertOpenFails();
+        }
+
+        setup();
+        randomAccessFileSetLength(file.length() - 8);
+        assertOpenFails();
+
+        // an index entry pointing outside of the file
+        setup();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(file.length() - 8);
+            randomAccessFile.writeLong(Long.MAX_VALUE - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertOpenFails();
+    }
+
+    @Test
+    public void testSwappedChunks() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.ChunkedEncryptedFileTest.testSwappedChunks");
+        // the short last chunk in the middle of the file
+        ChunkedEncryptedFile.write(EncryptionUtils.initForEncrypt(), file,
+                new ByteArrayInputStream(src, 0, 9500), 1000);
+        swapChunks(1, 9);
+        assertReadFails(1000);
+
+        // full chunks encrypted with an authenticated suite
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_GCM);
+        try {
+            ChunkedEncryptedFile.write(EncryptionUtils.initForEncrypt(), file,
+                    new ByteArrayInputStream(src), 1000);
+            swapChunks(1, 2);
+            assertReadFails(1000);
+        } finally {
+            EncryptionUtils.setCipherSuite(CipherSuite.AES_ECB);
+        }
+    }
+
+    /**
+     * Move the chunk <code>last</code> in front of the chunk <code>first</code> and fix the index
+     */
+    private void swapChunks(int first, int last) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(12);
+            int chunkCount = randomAccessFile.readInt();
+            randomAccessFile.readLong();
+            long indexOffset = randomAccessFile.readLong();
+
+            long[] offsets = new long[chunkCount + 1];
+            randomAccessFile.seek(indexOffset);
+            for (int i = 0; i < chunkCount; i++) {
+                offsets[i] = randomAccessFile.readLong();
+            }
+            offsets[chunkCount] = indexOffset;
+
+            ByteBuffer data = ByteBuffer.allocate((int) (offsets[last + 1] - offsets[first]));
+            byte[] moved = readRange(randomAccessFile, offsets[last], offsets[last + 1]);
+            data.put(moved);
+            data.put(readRange(randomAccessFile, offsets[first], offsets[last]));
+            randomAccessFile.seek(offsets[first]);
+            randomAccessFile.write(data.array());
+
+            long[] newOffsets = offsets.clone();
+            for (int i = first + 1; i <= last; i++) {
+                newOffsets[i] = offsets[i - 1] + moved.length;
+            }
+            randomAccessFile.seek(indexOffset);
+            for (int i = 0; i < chunkCount; i++) {
+                randomAccessFile.writeLong(newOffsets[i]);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static byte[] readRange(RandomAccessFile randomAccessFile, long start, long end)
+            throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        randomAccessFile.seek(start);
+        randomAccessFile.readFully(bytes);
+        return bytes;
+    }
+
+    private void assertReadFails(long position) throws Exception {
+        ChunkedEncryptedFile chunkedFile = ChunkedEncryptedFile.open(file);
+        try {
+            chunkedFile.read(EncryptionUtils.initForDecrypt(), position, 100);
+            fail("Damaged chunk has been read");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            chunkedFile.close();
+        }
+    }
+
+    private void randomAccessFileSetLength(long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void assertOpenFails() {
+        try {
+            ChunkedEncryptedFile.open(file).close();
+            fail("Damaged file opened");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
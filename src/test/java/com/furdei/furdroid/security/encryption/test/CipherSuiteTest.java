@@ -0,0 +1,165 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.ChunkedEncryptedFile;
+import com.furdei.furdroid.security.encryption.CipherSuite;
+import com.furdei.furdroid.security.encryption.EncryptedFileStorage;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * Tests encryption with different cipher suites
+ */
+public class CipherSuiteTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+    private File file;
+    private byte[] src;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+        file = new File(System.getProperty("java.io.tmpdir"), "test.suite");
+        src = new byte[10000];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 13);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_ECB);
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CipherSuiteTest.testValues");
+        for (CipherSuite suite : CipherSuite.values()) {
+            EncryptionUtils.setCipherSuite(suite);
+            Cipher encryptCipher = EncryptionUtils.initForEncrypt();
+            Cipher decryptCipher = EncryptionUtils.initForDecrypt();
+
+            byte[] first = EncryptionUtils.encryptBinary(encryptCipher, src);
+            byte[] second = EncryptionUtils.encryptBinary(encryptCipher, src);
+            assertEquals(suite == CipherSuite.AES_ECB, Arrays.equals(first, second));
+            assertArrayEquals(src, EncryptionUtils.decryptBinary(decryptCipher, first));
+            assertArrayEquals(src, EncryptionUtils.decrypt(decryptCipher,
+                    EncryptionUtils.encrypt(encryptCipher, src)));
+        }
+    }
+
+    @Test
+    public void testLegacyData() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CipherSuiteTest.testLegacyData");
+        byte[] legacyValue = EncryptionUtils.encryptBinary(EncryptionUtils.initForEncrypt(), src);
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, src);
+
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_GCM);
+        Cipher decryptCipher = EncryptionUtils.borrowCipher(Cipher.DECRYPT_MODE);
+        try {
+            assertArrayEquals(src, EncryptionUtils.decryptBinary(decryptCipher, legacyValue));
+            assertArrayEquals(src, EncryptedFileStorage.read(decryptCipher, file));
+        } finally {
+            EncryptionUtils.releaseCipher(decryptCipher);
+        }
+
+        // data of a new suite is readable by ciphers of the old one
+        byte[] gcmValue = EncryptionUtils.encryptBinary(EncryptionUtils.initForEncrypt(), src);
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_ECB);
+        assertArrayEquals(src, EncryptionUtils.decryptBinary(EncryptionUtils.initForDecrypt(),
+                gcmValue));
+    }
+
+    @Test
+    public void testFiles() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CipherSuiteTest.testFiles");
+        for (CipherSuite suite : CipherSuite.values()) {
+            EncryptionUtils.setCipherSuite(suite);
+            EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, src);
+            assertArrayEquals(src, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(),
+                    file));
+            assertArrayEquals(Arrays.copyOfRange(src, 1234, 1334), EncryptedFileStorage.read(
+                    EncryptionUtils.initForDecrypt(), file, 1234, 100));
+            assertArrayEquals(Arrays.copyOfRange(src, 9990, 10000), EncryptedFileStorage.read(
+                    EncryptionUtils.initForDecrypt(), file, 9990, 100));
+            assertEquals(0, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), file,
+                    20000, 10).length);
+
+            EncryptedFileStorage.writeCompressed(EncryptionUtils.initForEncrypt(), file,
+                    new byte[5000]);
+            assertArrayEquals(new byte[5000], EncryptedFileStorage.read(
+                    EncryptionUtils.initForDecrypt(), file));
+        }
+    }
+
+    @Test
+    public void testGcmFileSegments() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CipherSuiteTest.testGcmFileSegments");
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_GCM);
+        byte[] large = new byte[200000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 7);
+        }
+
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, large);
+        assertArrayEquals(large, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), file));
+        assertArrayEquals(Arrays.copyOfRange(large, 70000, 70100), EncryptedFileStorage.read(
+                EncryptionUtils.initForDecrypt(), file, 70000, 100));
+
+        // header, initialization vector and two whole segments of 64 KB with their tags
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(8 + 12 + 2 * (65536 + 16));
+        } finally {
+            randomAccessFile.close();
+        }
+        assertReadFails();
+
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, large);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(100000);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(100000);
+            randomAccessFile.write(b ^ 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertReadFails();
+    }
+
+    private void assertReadFails() throws Exception {
+        try {
+            EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), file);
+            fail("Damaged file has been read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChunkedFiles() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CipherSuiteTest.testChunkedFiles");
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_CTR);
+        ChunkedEncryptedFile.write(EncryptionUtils.initForEncrypt(), file, src);
+
+        EncryptionUtils.setCipherSuite(CipherSuite.AES_ECB);
+        ChunkedEncryptedFile chunkedFile = ChunkedEncryptedFile.open(file);
+        try {
+            assertArrayEquals(Arrays.copyOfRange(src, 995, 3010),
+                    chunkedFile.read(EncryptionUtils.initForDecrypt(), 995, 2015));
+        } finally {
+            chunkedFile.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests compression of encrypted column values
+ */
+public class CompressedColumnTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.CompressedColumnTest.testWriteAndRead");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            body.append("{\"id\": ").append(i).append(", \"name\": \"customer\"}");
+        }
+        byte[] attachment = new byte[10000];
+        new Random(1).nextBytes(attachment);
+
+        String encryptedBody = EncryptionUtils.encryptText(EncryptionUtils.initForEncrypt(),
+                body.toString().getBytes("UTF-8"), true);
+        byte[] encryptedAttachment = EncryptionUtils.encryptBinary(
+                EncryptionUtils.initForEncrypt(), attachment, true);
+        // text compresses, random bytes are stored uncompressed
+        Assert.assertTrue(encryptedBody.length() < body.length() / 5);
+        Assert.assertTrue(encryptedAttachment.length > attachment.length);
+
+        Assert.assertEquals(body.toString(),
+                EncryptionUtils.decrypt(EncryptionUtils.initForDecrypt(), encryptedBody));
+        Assert.assertArrayEquals(attachment,
+                EncryptionUtils.decryptBinary(EncryptionUtils.initForDecrypt(), encryptedAttachment));
+
+        // compressed binary values
+        byte[] document = body.toString().getBytes("UTF-8");
+        byte[] encryptedDocument = EncryptionUtils.encryptBinary(
+                EncryptionUtils.initForEncrypt(), document, true);
+        Assert.assertTrue(encryptedDocument.length < document.length / 5);
+        Assert.assertArrayEquals(document,
+                EncryptionUtils.decryptBinary(EncryptionUtils.initForDecrypt(), encryptedDocument));
+
+        // short values are never compressed
+        String encryptedShort = EncryptionUtils.encryptText(EncryptionUtils.initForEncrypt(),
+                "short".getBytes("UTF-8"), true);
+        Assert.assertEquals("short",
+                EncryptionUtils.decrypt(EncryptionUtils.initForDecrypt(), encryptedShort));
+    }
+}
@@ -0,0 +1,120 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.EncryptedFileBatch;
+import com.furdei.furdroid.security.encryption.EncryptedFileStorage;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests parallel reads and writes of encrypted files
+ */
+public class EncryptedFileBatchTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+    private File baseDir;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+        baseDir = File.createTempFile("batch", "");
+        Assert.assertTrue(baseDir.delete() && baseDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = baseDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        baseDir.delete();
+    }
+
+    @Test
+    public void testWriteAndReadAll() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileBatchTest.testWriteAndReadAll");
+        Map<File, byte[]> files = new LinkedHashMap<File, byte[]>();
+        for (int i = 0; i < 50; i++) {
+            files.put(new File(baseDir, "file" + i + ".json"), ("{\"id\": " + i + "}").getBytes("UTF-8"));
+        }
+        File missing = new File(new File(baseDir, "missing"), "file.json");
+        files.put(missing, new byte[10]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // small in-flight limit makes workers wait for each other
+            EncryptedFileBatch batch = new EncryptedFileBatch(executor, 4, 20);
+            List<EncryptedFileBatch.Result> results = batch.writeAll(files);
+
+            Assert.assertEquals(files.size(), results.size());
+            for (EncryptedFileBatch.Result result : results) {
+                Assert.assertEquals(result.getFile() != missing, result.isSuccessful());
+            }
+
+            // a temporary file of an atomic write interrupted by a crash
+            File temp = new File(baseDir, ".file0.json-123.tmp");
+            Assert.assertTrue(temp.createNewFile());
+
+            final Map<File, byte[]> read = new ConcurrentHashMap<File, byte[]>();
+            results = batch.readAll(baseDir, new EncryptedFileBatch.ReadCallback() {
+                @Override
+                public void onFileRead(File file, byte[] data) throws IOException {
+                    read.put(file, data);
+                }
+            });
+
+            Assert.assertEquals(50, results.size());
+            Assert.assertEquals(1, EncryptedFileStorage.deleteTempFiles(baseDir));
+            Assert.assertFalse(temp.exists());
+            for (EncryptedFileBatch.Result result : results) {
+                Assert.assertTrue(result.isSuccessful());
+                Assert.assertArrayEquals(files.get(result.getFile()), read.get(result.getFile()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testError() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileBatchTest.testError");
+        Map<File, byte[]> files = new LinkedHashMap<File, byte[]>();
+        for (int i = 0; i < 10; i++) {
+            files.put(new File(baseDir, "error" + i + ".json"), ("{\"id\": " + i + "}").getBytes("UTF-8"));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EncryptedFileBatch batch = new EncryptedFileBatch(executor);
+            batch.writeAll(files);
+
+            try {
+                batch.readAll(files.keySet(), new EncryptedFileBatch.ReadCallback() {
+                    @Override
+                    public void onFileRead(File file, byte[] data) throws IOException {
+                        throw new OutOfMemoryError("test");
+                    }
+                });
+                Assert.fail("Error has not been rethrown");
+            } catch (OutOfMemoryError e) {
+                Assert.assertEquals("test", e.getMessage());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
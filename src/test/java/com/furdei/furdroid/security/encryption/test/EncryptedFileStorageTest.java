@@ -2,11 +2,14 @@ package com.furdei.furdroid.security.encryption.test;
 
 import com.furdei.furdroid.security.encryption.EncryptionUtils;
 import com.furdei.furdroid.security.encryption.EncryptedFileStorage;
+import com.furdei.furdroid.security.encryption.GroupCommit;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.security.InvalidKeyException;
@@ -41,4 +44,84 @@ public class EncryptedFileStorageTest extends Assert {
 
         Assert.assertEquals(fileBodySrc, fileBodyDst);
     }
+
+    @Test
+    public void testStreamWriteAndRead() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileStorageTest.testStreamWriteAndRead");
+        byte[] src = new byte[100 * 1024 + 7];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 31);
+        }
+
+        File file = new File(baseDir, "test.bin");
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, new ByteArrayInputStream(src));
+        ByteArrayOutputStream dst = new ByteArrayOutputStream();
+        EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), file, dst);
+
+        Assert.assertArrayEquals(src, dst.toByteArray());
+    }
+
+    @Test
+    public void testWriteAtomically() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileStorageTest.testWriteAtomically");
+        File dir = new File(baseDir, "atomic-test");
+        dir.mkdirs();
+        File file = new File(dir, "test.bin");
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), file, "old".getBytes("UTF-8"));
+        EncryptedFileStorage.writeAtomically(EncryptionUtils.initForEncrypt(), file, "new".getBytes("UTF-8"));
+
+        Assert.assertEquals("new", new String(EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), file), "UTF-8"));
+        Assert.assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileStorageTest.testGroupCommit");
+        File dir = new File(baseDir, "group-commit-test");
+        dir.mkdirs();
+        File first = new File(dir, "first.bin");
+        File second = new File(dir, "second.bin");
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), first, "old".getBytes("UTF-8"));
+        second.delete();
+
+        GroupCommit groupCommit = new GroupCommit();
+        try {
+            groupCommit.write(EncryptionUtils.initForEncrypt(), first, "first".getBytes("UTF-8"));
+            groupCommit.write(EncryptionUtils.initForEncrypt(), second, "second".getBytes("UTF-8"));
+            Assert.assertEquals(2, groupCommit.getPendingCount());
+            Assert.assertEquals("old", new String(EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), first), "UTF-8"));
+            Assert.assertFalse(second.exists());
+
+            groupCommit.commit();
+        } finally {
+            groupCommit.close();
+        }
+
+        Assert.assertEquals(0, groupCommit.getPendingCount());
+        Assert.assertEquals("first", new String(EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), first), "UTF-8"));
+        Assert.assertEquals("second", new String(EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), second), "UTF-8"));
+        Assert.assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testWriteCompressed() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedFileStorageTest.testWriteCompressed");
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"id\": ").append(i).append(", \"name\": \"customer\"},");
+        }
+        byte[] src = json.append("{}]").toString().getBytes("UTF-8");
+
+        File compressed = new File(baseDir, "compressed.json");
+        EncryptedFileStorage.writeCompressed(EncryptionUtils.initForEncrypt(), compressed, src);
+        Assert.assertTrue(compressed.length() < src.length / 5);
+        Assert.assertArrayEquals(src, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), compressed));
+
+        byte[] random = new byte[10000];
+        new java.util.Random(1).nextBytes(random);
+        File incompressible = new File(baseDir, "random.bin");
+        EncryptedFileStorage.writeCompressed(EncryptionUtils.initForEncrypt(), incompressible, random);
+        Assert.assertEquals(0, incompressible.length() % 16);
+        Assert.assertArrayEquals(random, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), incompressible));
+    }
 }
@@ -0,0 +1,190 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.EncryptedSegmentStore;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests encrypted append-only key/value store
+ */
+public class EncryptedSegmentStoreTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+    private File baseDir;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "segments");
+        File[] files = baseDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testPutGetAndReopen() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedSegmentStoreTest.testPutGetAndReopen");
+        EncryptedSegmentStore store = EncryptedSegmentStore.open(baseDir, 1024, null);
+        for (int i = 0; i < 200; i++) {
+            store.putString("key" + i, "value " + i);
+        }
+        store.putString("key7", "новое значение");
+        Assert.assertTrue(store.remove("key8"));
+        Assert.assertFalse(store.remove("key8"));
+
+        Assert.assertEquals("новое значение", store.getString("key7"));
+        Assert.assertNull(store.getString("key8"));
+        Assert.assertEquals(199, store.size());
+        store.close();
+
+        // segments are loaded from hint files
+        store = EncryptedSegmentStore.open(baseDir, 1024, null);
+        Assert.assertEquals(199, store.size());
+        Assert.assertEquals("value 150", store.getString("key150"));
+        Assert.assertEquals("новое значение", store.getString("key7"));
+        Assert.assertNull(store.getString("key8"));
+        store.close();
+
+        // segments are scanned
+        for (File file : baseDir.listFiles()) {
+            if (file.getName().endsWith(".hint")) {
+                file.delete();
+            }
+        }
+        store = EncryptedSegmentStore.open(baseDir, 1024, null);
+        Assert.assertEquals(199, store.size());
+        Assert.assertEquals("value 199", store.getString("key199"));
+        Assert.assertNull(store.getString("key8"));
+        store.close();
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedSegmentStoreTest.testTornRecord");
+        EncryptedSegmentStore store = EncryptedSegmentStore.open(baseDir, 1024 * 1024, null);
+        store.putString("first", "1");
+        store.putString("second", "2");
+        store.flush();
+        store.close();
+
+        File segment = new File(baseDir, "segment-1.dat");
+        new File(baseDir, "segment-1.hint").delete();
+        FileOutputStream output = new FileOutputStream(segment, true);
+        output.write(new byte[] { 0, 0, 0, 32, 1, 2, 3 });
+        output.close();
+
+        store = EncryptedSegmentStore.open(baseDir, 1024 * 1024, null);
+        Assert.assertEquals("2", store.getString("second"));
+        store.putString("third", "3");
+        store.close();
+
+        store = EncryptedSegmentStore.open(baseDir, 1024 * 1024, null);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals("3", store.getString("third"));
+        store.close();
+    }
+
+    @Test
+    public void testDamagedSealedSegment() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedSegmentStoreTest.testDamagedSealedSegment");
+        EncryptedSegmentStore store = EncryptedSegmentStore.open(baseDir, 1024, null);
+        for (int i = 0; i < 50; i++) {
+            store.putString("key" + i, "value " + i);
+        }
+        store.close();
+
+        // damage the first record of a sealed segment
+        new File(baseDir, "segment-1.hint").delete();
+        RandomAccessFile segment = new RandomAccessFile(new File(baseDir, "segment-1.dat"), "rw");
+        try {
+            segment.seek(16 + 8 + 4);
+            int b = segment.read();
+            segment.seek(16 + 8 + 4);
+            segment.write(b ^ 0xff);
+        } finally {
+            segment.close();
+        }
+
+        // records after the damaged one are kept
+        store = EncryptedSegmentStore.open(baseDir, 1024, null);
+        Assert.assertEquals(49, store.size());
+        Assert.assertNull(store.getString("key0"));
+        Assert.assertEquals("value 1", store.getString("key1"));
+        Assert.assertEquals("value 49", store.getString("key49"));
+        store.close();
+    }
+
+    @Test
+    public void testInterruptedReader() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedSegmentStoreTest.testInterruptedReader");
+        EncryptedSegmentStore store = EncryptedSegmentStore.open(baseDir, 1024 * 1024, null);
+        try {
+            store.putString("first", "1");
+
+            Thread.currentThread().interrupt();
+            try {
+                Assert.assertEquals("1", store.getString("first"));
+                store.putString("second", "2");
+            } finally {
+                Thread.interrupted();
+            }
+
+            // the store still works for other threads
+            final String[] value = new String[1];
+            final EncryptedSegmentStore openStore = store;
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        value[0] = openStore.getString("second");
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            reader.start();
+            reader.join();
+            Assert.assertEquals("2", value[0]);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptedSegmentStoreTest.testCompact");
+        EncryptedSegmentStore store = EncryptedSegmentStore.open(baseDir, 512, null);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20; i++) {
+                store.putString("key" + i, "value " + i + " round " + round);
+            }
+        }
+        store.remove("key0");
+        int segmentCount = baseDir.list().length;
+
+        store.compact();
+
+        Assert.assertTrue(baseDir.list().length < segmentCount);
+        Assert.assertEquals(19, store.size());
+        Assert.assertEquals("value 5 round 9", store.getString("key5"));
+        Assert.assertNull(store.getString("key0"));
+        store.putString("key0", "again");
+        store.close();
+
+        store = EncryptedSegmentStore.open(baseDir, 512, null);
+        Assert.assertEquals(20, store.size());
+        Assert.assertEquals("value 19 round 9", store.getString("key19"));
+        Assert.assertEquals("again", store.getString("key0"));
+        store.close();
+    }
+}
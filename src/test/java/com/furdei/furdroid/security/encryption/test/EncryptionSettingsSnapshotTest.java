@@ -0,0 +1,123 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettingsProvider;
+import com.furdei.furdroid.security.encryption.EncryptionSettingsSnapshot;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+import com.furdei.furdroid.security.encryption.PrecompiledEncryptionSettingsProvider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests precompiled encryption settings
+ */
+public class EncryptionSettingsSnapshotTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+    private EncryptionSettings settings;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+
+        EncryptedTableSettings customers = new EncryptedTableSettings("customers");
+        customers.markColumnEncrypted("phone");
+        customers.setBlindIndexColumn("phone", "phone_index");
+        customers.markColumnEncryptedBinary("photo");
+        customers.markColumnEncrypted("profile");
+        customers.markColumnCompressed("profile");
+
+        EncryptedTableSettings payments = new EncryptedTableSettings("payments");
+        payments.markColumnEncrypted("account_from");
+
+        Map<String, EncryptedTableSettings> tables = new HashMap<String, EncryptedTableSettings>();
+        tables.put("customers", customers);
+        tables.put("payments", payments);
+        settings = new EncryptionSettings();
+        settings.setEncryptedTables(tables);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptionSettingsSnapshotTest.testWriteAndRead");
+        byte[] snapshot = write(7);
+        EncryptionSettings loaded =
+                EncryptionSettingsSnapshot.read(new ByteArrayInputStream(snapshot), 7);
+
+        assertEquals(2, loaded.getEncryptedTables().size());
+        EncryptedTableSettings customers = loaded.getEncryptedTables().get("customers");
+        assertEquals(settings.getEncryptedTables().get("customers").getEncColumns(),
+                customers.getEncColumns());
+        assertTrue(customers.getBinaryColumns().contains("photo"));
+        assertTrue(customers.getCompressedColumns().contains("profile"));
+        assertEquals("phone_index", customers.getBlindIndexColumns().get("phone"));
+        assertTrue(loaded.getEncryptedTables().get("payments").getEncColumns()
+                .contains("account_from"));
+
+        // the same settings give the same snapshot
+        assertArrayEquals(snapshot, write(7));
+    }
+
+    @Test
+    public void testSourceDigest() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptionSettingsSnapshotTest.testSourceDigest");
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest("<encryption />".getBytes("UTF-8"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EncryptionSettingsSnapshot.write(settings, 7, digest, output);
+
+        assertArrayEquals(digest, EncryptionSettingsSnapshot.readSourceDigest(
+                new ByteArrayInputStream(output.toByteArray())));
+        assertArrayEquals(new byte[32], EncryptionSettingsSnapshot.readSourceDigest(
+                new ByteArrayInputStream(write(7))));
+        assertEquals(2, EncryptionSettingsSnapshot.read(
+                new ByteArrayInputStream(output.toByteArray()), 7).getEncryptedTables().size());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptionSettingsSnapshotTest.testFallback");
+        final EncryptionSettings parsed = new EncryptionSettings();
+        EncryptionSettingsProvider fallback = new EncryptionSettingsProvider() {
+            @Override
+            public EncryptionSettings getEncryptionSettings() {
+                return parsed;
+            }
+        };
+
+        assertNull(EncryptionSettingsSnapshot.read(new ByteArrayInputStream(write(7)), 8));
+        assertSame(parsed, new PrecompiledEncryptionSettingsProvider(
+                new ByteArrayInputStream(write(7)), 8, fallback).getEncryptionSettings());
+        // the stream is read once and kept for later calls
+        PrecompiledEncryptionSettingsProvider provider = new PrecompiledEncryptionSettingsProvider(
+                new ByteArrayInputStream(write(7)), 7, fallback);
+        assertNotSame(parsed, provider.getEncryptionSettings());
+        assertNotSame(parsed, provider.getEncryptionSettings());
+        assertSame(parsed, new PrecompiledEncryptionSettingsProvider(null, 7, fallback)
+                .getEncryptionSettings());
+
+        byte[] damaged = write(7);
+        damaged[damaged.length - 1] ^= 1;
+        try {
+            EncryptionSettingsSnapshot.read(new ByteArrayInputStream(damaged), 7);
+            fail("Damaged snapshot has been read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private byte[] write(long version) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EncryptionSettingsSnapshot.write(settings, version, output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,62 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.EncryptedTablePlan;
+import com.furdei.furdroid.security.encryption.EncryptedTableSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettings;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests replacing encryption settings at runtime
+ */
+public class EncryptionSettingsTest extends Assert {
+
+    private static final String keyPassword="keyPassword";
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(keyPassword);
+    }
+
+    @Test
+    public void testSetEncSettings() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.EncryptionSettingsTest.testSetEncSettings");
+        EncryptionSettings settings = new EncryptionSettings();
+        EncryptedTableSettings customers = new EncryptedTableSettings("customers");
+        customers.markColumnEncrypted("phone");
+        settings.getEncryptedTables().put("customers", customers);
+
+        long version = EncryptionUtils.setEncSettings(settings);
+        assertEquals(version, EncryptionUtils.getEncSettingsVersion());
+        EncryptedTablePlan oldPlan = EncryptionUtils.getTablePlan("customers");
+        assertTrue(oldPlan.isColumnEncrypted("phone"));
+
+        // settings are copied
+        customers.markColumnEncrypted("address");
+        assertFalse(EncryptionUtils.getTablePlan("customers").isColumnEncrypted("address"));
+
+        long newVersion = EncryptionUtils.setEncSettings(settings);
+        assertTrue(newVersion > version);
+        assertTrue(EncryptionUtils.getTablePlan("customers").isColumnEncrypted("address"));
+        // plans taken before the swap don't change
+        assertFalse(oldPlan.isColumnEncrypted("address"));
+
+        EncryptedTableSettings current =
+                EncryptionUtils.getEncSettings().getEncryptedTables().get("customers");
+        try {
+            current.markColumnEncrypted("email");
+            fail("Settings in use have been changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            EncryptionUtils.getEncSettings().getEncryptedTables().remove("customers");
+            fail("Settings in use have been changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.furdei.furdroid.security.encryption.test;
+
+import com.furdei.furdroid.security.encryption.ChunkedEncryptedFile;
+import com.furdei.furdroid.security.encryption.EncryptedFileStorage;
+import com.furdei.furdroid.security.encryption.EncryptionUtils;
+import com.furdei.furdroid.security.encryption.FileKeyRotation;
+import com.furdei.furdroid.security.encryption.KeyDerivationParams;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Tests re-encryption of files with a new key
+ */
+public class FileKeyRotationTest extends Assert {
+
+    private static final String oldPassword="keyPassword";
+    private static final String newPassword="newKeyPassword";
+    private File baseDir;
+    private byte[] src;
+
+    @Before
+    public void setup() throws Exception {
+        EncryptionUtils.setPassword(oldPassword);
+        baseDir = File.createTempFile("rotation", "");
+        Assert.assertTrue(baseDir.delete() && baseDir.mkdir());
+        File subDir = new File(baseDir, "sub");
+        subDir.mkdirs();
+
+        src = new byte[5000];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (byte) (i * 13);
+        }
+
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), new File(baseDir, "a.bin"), src);
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), new File(subDir, "b.bin"), src);
+        ChunkedEncryptedFile.write(EncryptionUtils.initForEncrypt(), new File(subDir, "c.chunked"),
+                new ByteArrayInputStream(src), 1000);
+    }
+
+    @After
+    public void tearDown() {
+        delete(baseDir);
+    }
+
+    @Test
+    public void testRotate() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.FileKeyRotationTest.testRotate");
+        SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+        EncryptionUtils.setPassword(newPassword);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            FileKeyRotation rotation = new FileKeyRotation(baseDir, oldKey);
+            Assert.assertEquals(3, rotation.run(executor));
+            Assert.assertFalse(rotation.isInProgress());
+        } finally {
+            executor.shutdown();
+        }
+        assertReadable();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.FileKeyRotationTest.testResume");
+        SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+        EncryptionUtils.setPassword(newPassword);
+
+        // a.bin has been re-encrypted and journaled but not replaced before a process kill,
+        // sub/b.bin has been killed in the middle of re-encryption
+        File file = new File(baseDir, "a.bin");
+        File unfinished = new File(baseDir, "sub/b.bin.rotating");
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), new File(baseDir, "a.bin.rotating"), src);
+        FileOutputStream output = new FileOutputStream(unfinished);
+        output.write(new byte[100]);
+        output.close();
+        FileOutputStream journal = new FileOutputStream(new File(baseDir, ".furdroid-key-rotation"));
+        journal.write(("R " + EncryptionUtils.keyFingerprint(oldKey) + " " + EncryptionUtils.keyFingerprint()
+                + "\nT a.bin\nP a.bin\nT sub/b.bin\n").getBytes("UTF-8"));
+        journal.close();
+
+        FileKeyRotation rotation = new FileKeyRotation(baseDir, oldKey);
+        Assert.assertTrue(rotation.isInProgress());
+        Executor sameThread = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        Assert.assertEquals(2, rotation.run(sameThread));
+        Assert.assertTrue(file.exists());
+        Assert.assertFalse(unfinished.exists());
+        assertReadable();
+    }
+
+    @Test
+    public void testRunTwice() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.FileKeyRotationTest.testRunTwice");
+        SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+        EncryptionUtils.setPassword(newPassword);
+
+        FileKeyRotation rotation = new FileKeyRotation(baseDir, oldKey);
+        Assert.assertEquals(3, rotation.run(sameThread()));
+        try {
+            rotation.run(sameThread());
+            Assert.fail("A finished rotation has been run again");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertReadable();
+    }
+
+    @Test
+    public void testForeignTempFile() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.FileKeyRotationTest.testForeignTempFile");
+        SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+        EncryptionUtils.setPassword(newPassword);
+
+        // not created by a rotation, must be re-encrypted like any other file
+        File foreign = new File(baseDir, "sub/data.rotating");
+        EncryptionUtils.setPassword(oldPassword);
+        EncryptedFileStorage.write(EncryptionUtils.initForEncrypt(), foreign, src);
+        EncryptionUtils.setPassword(newPassword);
+
+        FileKeyRotation rotation = new FileKeyRotation(baseDir, oldKey);
+        Assert.assertEquals(4, rotation.run(sameThread()));
+        Assert.assertTrue(foreign.exists());
+        Assert.assertArrayEquals(src, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(), foreign));
+        assertReadable();
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        System.out.println("com.furdei.furdroid.security.encryption.test.FileKeyRotationTest.testFilter");
+        SecretKey oldKey = EncryptionUtils.deriveKey(oldPassword, KeyDerivationParams.DEFAULT);
+        EncryptionUtils.setPassword(newPassword);
+
+        // files of other formats next to the encrypted ones
+        byte[] plain = "plain text".getBytes("UTF-8");
+        File notes = new File(baseDir, "notes.txt");
+        File segments = new File(baseDir, "segments");
+        Assert.assertTrue(segments.mkdir());
+        File segment = new File(segments, "00000000.seg");
+        for (File file : new File[] {notes, segment}) {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(plain);
+            output.close();
+        }
+
+        FileKeyRotation rotation = new FileKeyRotation(baseDir, oldKey, new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() ? !file.getName().equals("segments") :
+                        !file.getName().endsWith(".txt");
+            }
+        });
+        Assert.assertEquals(3, rotation.run(sameThread()));
+        Assert.assertEquals(plain.length, notes.length());
+        Assert.assertEquals(plain.length, segment.length());
+        assertReadable();
+    }
+
+    private static Executor sameThread() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void assertReadable() throws Exception {
+        Assert.assertArrayEquals(src, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(),
+                new File(baseDir, "a.bin")));
+        Assert.assertArrayEquals(src, EncryptedFileStorage.read(EncryptionUtils.initForDecrypt(),
+                new File(baseDir, "sub/b.bin")));
+
+        ChunkedEncryptedFile chunkedFile = ChunkedEncryptedFile.open(new File(baseDir, "sub/c.chunked"));
+        try {
+            Assert.assertArrayEquals(src, chunkedFile.read(EncryptionUtils.initForDecrypt(), 0, src.length));
+        } finally {
+            chunkedFile.close();
+        }
+    }
+}
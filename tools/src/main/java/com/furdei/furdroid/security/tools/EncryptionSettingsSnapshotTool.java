@@ -0,0 +1,101 @@
+package com.furdei.furdroid.security.tools;
+
+import com.furdei.furdroid.security.encryption.EncryptionSettings;
+import com.furdei.furdroid.security.encryption.EncryptionSettingsParser;
+import com.furdei.furdroid.security.encryption.EncryptionSettingsSnapshot;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Generates a snapshot of encryption settings from an XML settings file, see
+ * {@link com.furdei.furdroid.security.encryption.EncryptionSettingsSnapshot}. Run it as a step of
+ * the app build before resources are packaged. With <code>--check</code> the snapshot isn't
+ * written, the tool fails if the snapshot has been generated from another XML file or for another
+ * settings version.
+ */
+public final class EncryptionSettingsSnapshotTool {
+
+    private EncryptionSettingsSnapshotTool() {
+    }
+
+    /**
+     * @param args optional <code>--check</code>, an XML settings file, a snapshot file and
+     *             a settings version
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        boolean check = args.length == 4 && "--check".equals(args[0]);
+        if (args.length != (check ? 4 : 3)) {
+            System.err.println("Usage: EncryptionSettingsSnapshotTool [--check] <settings.xml> " +
+                    "<snapshot> <settings version>");
+            System.exit(1);
+        }
+
+        int arg = check ? 1 : 0;
+        byte[] xml = readFile(new File(args[arg]));
+        File snapshotFile = new File(args[arg + 1]);
+        long settingsVersion = Long.parseLong(args[arg + 2]);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(xml);
+
+        if (check) {
+            if (!isUpToDate(snapshotFile, digest, settingsVersion)) {
+                System.err.println("Encryption settings snapshot " + snapshotFile +
+                        " is stale, generate it again");
+                System.exit(1);
+            }
+            return;
+        }
+
+        XmlPullParser parser = new KXmlParser();
+        parser.setInput(new InputStreamReader(new ByteArrayInputStream(xml), "UTF-8"));
+        EncryptionSettings settings = new EncryptionSettingsParser(parser).getEncryptionSettings();
+
+        OutputStream output = new FileOutputStream(snapshotFile);
+        try {
+            EncryptionSettingsSnapshot.write(settings, settingsVersion, digest, output);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static boolean isUpToDate(File snapshotFile, byte[] digest, long settingsVersion)
+            throws IOException {
+        if (!snapshotFile.isFile()) {
+            return false;
+        }
+
+        byte[] snapshot = readFile(snapshotFile);
+        return Arrays.equals(digest,
+                EncryptionSettingsSnapshot.readSourceDigest(new ByteArrayInputStream(snapshot)))
+                && EncryptionSettingsSnapshot.read(new ByteArrayInputStream(snapshot),
+                settingsVersion) != null;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+}